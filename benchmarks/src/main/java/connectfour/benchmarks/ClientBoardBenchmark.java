@@ -0,0 +1,142 @@
+package connectfour.benchmarks;
+
+import connectfour.client.ConnectFourBoard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client's model, {@link ConnectFourBoard}, replaying {@link Games}
+ * the way {@link EngineBenchmark} does, with some number of observers
+ * attached to every board. Every change to the model alerts its observers,
+ * so {@link #moveMade()} includes that, and {@link #alertObservers()}
+ * measures it alone through {@link ConnectFourBoard#makeMove()}, which
+ * does nothing else.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ClientBoardBenchmark {
+    /** the number of games and of boards to cycle through; a power of 2 */
+    private static final int COUNT = 1024;
+
+    /** the seed the games are played from */
+    @Param("42")
+    private long seed;
+
+    /** the number of observers of each board */
+    @Param({"1", "4"})
+    private int observers;
+
+    /** the games */
+    private int[][] games;
+
+    /** boards part way through the games */
+    private ConnectFourBoard[] boards;
+
+    /** the columns to check, one per board */
+    private int[] columns;
+
+    /** the board {@link #moveMade()} is playing on */
+    private ConnectFourBoard board;
+
+    /** the game {@link #moveMade()} is replaying */
+    private int game;
+
+    /** the next move of that game */
+    private int move;
+
+    /** the board the next call runs on */
+    private int next;
+
+    /** bumped by every observer, so that alerts are not optimized away */
+    private int alerts;
+
+    /**
+     * Plays the games and sets up the boards.
+     */
+    @Setup
+    public void setUp() {
+        games = Games.generate(seed, COUNT);
+        SplittableRandom random = new SplittableRandom(seed);
+        boards = new ConnectFourBoard[COUNT];
+        columns = new int[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            int[] moves = games[i];
+            boards[i] = newBoard();
+            int played = random.nextInt(moves.length) + 1;
+            for (int m = 0; m < played; m++) {
+                boards[i].moveMade(moves[m]);
+            }
+            columns[i] = random.nextInt(Games.COLS);
+        }
+        board = newBoard();
+    }
+
+    /**
+     * Creates a board with the observers attached.
+     *
+     * @return the board
+     */
+    private ConnectFourBoard newBoard() {
+        ConnectFourBoard board = new ConnectFourBoard();
+        for (int i = 0; i < observers; i++) {
+            board.addObserver(subject -> alerts++);
+        }
+        return board;
+    }
+
+    /**
+     * Plays the next move of the games.
+     *
+     * @return the board played on
+     */
+    @Benchmark
+    public ConnectFourBoard moveMade() {
+        int[] moves = games[game];
+        board.moveMade(moves[move++]);
+        ConnectFourBoard played = board;
+        if (move == moves.length) {
+            game = (game + 1) & (COUNT - 1);
+            move = 0;
+            board = newBoard();
+        }
+        return played;
+    }
+
+    /**
+     * Checks whether a column can be played on a board.
+     *
+     * @return whether it can
+     */
+    @Benchmark
+    public boolean isValidMove() {
+        int i = next++ & (COUNT - 1);
+        return boards[i].isValidMove(columns[i]);
+    }
+
+    /**
+     * Alerts a board's observers.
+     *
+     * @return the alerts so far
+     */
+    @Benchmark
+    public int alertObservers() {
+        boards[next++ & (COUNT - 1)].makeMove();
+        return alerts;
+    }
+}
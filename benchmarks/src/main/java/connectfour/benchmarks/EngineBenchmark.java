@@ -0,0 +1,128 @@
+package connectfour.benchmarks;
+
+import connectfour.ConnectFourException;
+import connectfour.server.ConnectFour;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's game engine, {@link ConnectFour}, replaying {@link Games}.
+ * {@link #makeMove()} plays the games one move per call, starting a new
+ * board whenever a game ends, so the board's creation is spread over its
+ * moves as in a real game. The queries run on boards taken at random
+ * points of the games, some of them won or full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EngineBenchmark {
+    /** the number of games and of boards to cycle through; a power of 2 */
+    private static final int COUNT = 1024;
+
+    /** the seed the games are played from */
+    @Param("42")
+    private long seed;
+
+    /** the games */
+    private int[][] games;
+
+    /** boards part way through the games */
+    private ConnectFour[] boards;
+
+    /** the board {@link #makeMove()} is playing on */
+    private ConnectFour board;
+
+    /** the game {@link #makeMove()} is replaying */
+    private int game;
+
+    /** the next move of that game */
+    private int move;
+
+    /** the board the next query runs on */
+    private int next;
+
+    /**
+     * Plays the games and sets up the boards.
+     *
+     * @throws ConnectFourException If a game has an illegal move.
+     */
+    @Setup
+    public void setUp() throws ConnectFourException {
+        games = Games.generate(seed, COUNT);
+        SplittableRandom random = new SplittableRandom(seed);
+        boards = new ConnectFour[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            int[] moves = games[i];
+            boards[i] = new ConnectFour();
+            int played = random.nextInt(moves.length) + 1;
+            for (int m = 0; m < played; m++) {
+                boards[i].makeMove(moves[m]);
+            }
+        }
+        board = new ConnectFour();
+    }
+
+    /**
+     * Plays the next move of the games.
+     *
+     * @return the board played on
+     * @throws ConnectFourException If a game has an illegal move.
+     */
+    @Benchmark
+    public ConnectFour makeMove() throws ConnectFourException {
+        int[] moves = games[game];
+        board.makeMove(moves[move++]);
+        ConnectFour played = board;
+        if (move == moves.length) {
+            game = (game + 1) & (COUNT - 1);
+            move = 0;
+            board = new ConnectFour();
+        }
+        return played;
+    }
+
+    /**
+     * Checks a board for a win.
+     *
+     * @return whether it is won
+     */
+    @Benchmark
+    public boolean hasWonGame() {
+        return boards[next++ & (COUNT - 1)].hasWonGame();
+    }
+
+    /**
+     * Checks a board for a tie.
+     *
+     * @return whether it is full
+     */
+    @Benchmark
+    public boolean hasTiedGame() {
+        return boards[next++ & (COUNT - 1)].hasTiedGame();
+    }
+
+    /**
+     * Draws a board as text.
+     *
+     * @return the text
+     */
+    @Benchmark
+    public String boardToString() {
+        return boards[next++ & (COUNT - 1)].toString();
+    }
+}
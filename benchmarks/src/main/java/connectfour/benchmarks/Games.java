@@ -0,0 +1,89 @@
+package connectfour.benchmarks;
+
+import connectfour.ai.Position;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Realistic move sequences for the benchmarks to replay: whole games on the
+ * standard board between two players who take a win when they see one,
+ * block the opponent's when they must, and otherwise move at random. The
+ * same seed always gives the same games, so runs can be compared.
+ */
+final class Games {
+    /** the number of rows */
+    static final int ROWS = 6;
+
+    /** the number of columns */
+    static final int COLS = 7;
+
+    /**
+     * Not to be created.
+     */
+    private Games() {
+    }
+
+    /**
+     * Plays out games.
+     *
+     * @param seed the seed
+     * @param count the number of games
+     * @return the columns played in each game, to the win or a full board
+     */
+    static int[][] generate(long seed, int count) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[][] games = new int[count][];
+        int[] moves = new int[ROWS * COLS];
+        for (int g = 0; g < count; g++) {
+            Position position = new Position(ROWS, COLS);
+            int length = 0;
+            while (!position.isFull()) {
+                int col = winningMove(position);
+                if (col >= 0) {
+                    moves[length++] = col;
+                    break;
+                }
+                long safe = position.nonLosingMoves();
+                col = pick(position, safe != 0 ? safe :
+                        position.playableCells(), random);
+                position.play(col);
+                moves[length++] = col;
+            }
+            games[g] = Arrays.copyOf(moves, length);
+        }
+        return games;
+    }
+
+    /**
+     * A column that wins at once for the player to move.
+     *
+     * @param position the position
+     * @return the column, or -1 if there is none
+     */
+    private static int winningMove(Position position) {
+        for (int col = 0; col < COLS; col++) {
+            if (position.canPlay(col) && position.isWinningMove(col)) {
+                return col;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Picks one of a set of cells at random.
+     *
+     * @param position the position the cells are in
+     * @param cells the cells, one bit each; not empty
+     * @param random where the choice comes from
+     * @return the column of the cell picked
+     */
+    private static int pick(Position position, long cells,
+                            SplittableRandom random) {
+        for (int skip = random.nextInt(Long.bitCount(cells)); skip > 0;
+             skip--) {
+            cells &= cells - 1;
+        }
+        return position.columnOf(Long.lowestOneBit(cells));
+    }
+}
@@ -0,0 +1,63 @@
+package connectfour;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link ConnectFourCodec} framing.
+ */
+public class ConnectFourCodecTest {
+    /**
+     * A stream of a text BINARY line followed by one binary frame.
+     *
+     * @param frame the frame's bytes
+     * @return the stream
+     */
+    private static InputStream binary(int... frame) {
+        byte[] line = "BINARY\n".getBytes();
+        byte[] bytes = new byte[line.length + frame.length];
+        System.arraycopy(line, 0, bytes, 0, line.length);
+        for (int i = 0; i < frame.length; i++) {
+            bytes[line.length + i] = (byte) frame[i];
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Test
+    public void readsShortTextFrame() throws IOException, ConnectFourException {
+        ConnectFourCodec codec = new ConnectFourCodec();
+        InputStream stream = binary(8, 3, 'b', 'a', 'd');
+        assertEquals(ConnectFourCodec.Message.BINARY,
+                codec.readMessage(stream));
+        assertEquals(ConnectFourCodec.Message.ERROR,
+                codec.readMessage(stream));
+        assertEquals("bad", codec.arguments());
+    }
+
+    /**
+     * A text frame longer than the input buffer can never complete, so it
+     * must be rejected rather than waited for.
+     */
+    @Test
+    @Timeout(5)
+    public void rejectsTextFrameLongerThanBuffer()
+            throws IOException, ConnectFourException {
+        ConnectFourCodec codec = new ConnectFourCodec();
+        int[] frame = new int[ConnectFourCodec.MAX_LINE];
+        frame[0] = 8;
+        frame[1] = 0xff;
+        InputStream stream = binary(frame);
+        assertEquals(ConnectFourCodec.Message.BINARY,
+                codec.readMessage(stream));
+        ConnectFourException e = assertThrows(ConnectFourException.class,
+                () -> codec.readMessage(stream));
+        assertEquals("Message too long", e.getMessage());
+    }
+}
@@ -0,0 +1,116 @@
+package connectfour.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests of {@link TranspositionTable} stores and probes.
+ */
+public class TranspositionTableTest {
+    /** log<sub>2</sub> of the entries in each test table */
+    private static final int BITS = 10;
+
+    /** a position's key */
+    private static final long KEY = 0x123456789ABCDEFL;
+
+    /** another key in the same bucket as {@link #KEY}, in any test table */
+    private static final long OTHER = KEY + (1L << BITS);
+
+    @Test
+    public void probesWhatWasStored() {
+        TranspositionTable table = new TranspositionTable(BITS);
+        table.put(KEY, -1234, 17, TranspositionTable.LOWER, 4);
+        long entry = table.get(KEY);
+        assertEquals(-1234, TranspositionTable.score(entry));
+        assertEquals(17, TranspositionTable.depth(entry));
+        assertEquals(TranspositionTable.LOWER, TranspositionTable.bound(entry));
+        assertEquals(4, TranspositionTable.move(entry));
+    }
+
+    @Test
+    public void missesOtherKeysInTheSameSlot() {
+        TranspositionTable table = new TranspositionTable(BITS,
+                TranspositionTable.Replacement.ALWAYS);
+        assertEquals(0, table.get(KEY));
+        table.put(KEY, 5, 3, TranspositionTable.EXACT, 1);
+        assertEquals(0, table.get(OTHER));
+        table.put(OTHER, 6, 2, TranspositionTable.EXACT, 2);
+        assertEquals(0, table.get(KEY));
+        assertEquals(6, TranspositionTable.score(table.get(OTHER)));
+    }
+
+    @Test
+    public void keepsDeeperEntriesUntilTheNextSearch() {
+        TranspositionTable table = new TranspositionTable(BITS,
+                TranspositionTable.Replacement.DEEPER);
+        table.put(KEY, 5, 10, TranspositionTable.EXACT, 1);
+        table.put(OTHER, 6, 2, TranspositionTable.EXACT, 2);
+        assertEquals(0, table.get(OTHER));
+        assertEquals(10, TranspositionTable.depth(table.get(KEY)));
+
+        table.newSearch();
+        table.put(OTHER, 6, 2, TranspositionTable.EXACT, 2);
+        assertEquals(0, table.get(KEY));
+        assertEquals(2, TranspositionTable.depth(table.get(OTHER)));
+    }
+
+    @Test
+    public void keepsDeepAndRecentInTwoTiers() {
+        TranspositionTable table = new TranspositionTable(BITS);
+        table.put(KEY, 5, 10, TranspositionTable.EXACT, 1);
+        table.put(OTHER, 6, 2, TranspositionTable.UPPER, 2);
+        assertEquals(10, TranspositionTable.depth(table.get(KEY)));
+        assertEquals(2, TranspositionTable.depth(table.get(OTHER)));
+    }
+
+    @Test
+    public void clearEmptiesTheTable() {
+        TranspositionTable table = new TranspositionTable(BITS);
+        table.put(KEY, 5, 10, TranspositionTable.EXACT, 1);
+        table.clear();
+        assertEquals(0, table.get(KEY));
+    }
+
+    /**
+     * Two threads keep overwriting one slot with two positions while a
+     * third probes it; the XOR check must never hand back one position's
+     * data for the other's key, however the writes interleave.
+     */
+    @Test
+    public void neverReturnsATornEntry() throws InterruptedException {
+        TranspositionTable table = new TranspositionTable(BITS,
+                TranspositionTable.Replacement.ALWAYS);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread[] writers = new Thread[2];
+        for (int i = 0; i < writers.length; i++) {
+            long key = i == 0 ? KEY : OTHER;
+            int score = i + 1;
+            writers[i] = new Thread(() -> {
+                int depth = 0;
+                while (!done.get()) {
+                    table.put(key, score, depth++ & 0xFF,
+                            TranspositionTable.EXACT, score);
+                }
+            });
+            writers[i].start();
+        }
+        boolean torn = false;
+        try {
+            for (int i = 0; i < 2_000_000 && !torn; i++) {
+                long entry = table.get(KEY);
+                torn = entry != 0 && (TranspositionTable.score(entry) != 1 ||
+                        TranspositionTable.move(entry) != 1);
+            }
+        } finally {
+            done.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        assertFalse(torn);
+    }
+}
@@ -0,0 +1,97 @@
+package connectfour.client;
+
+import connectfour.ConnectFourException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link ConnectFourBoard} snapshots and observers.
+ */
+public class ConnectFourBoardTest {
+    @Test
+    public void readsWhatWasWritten() throws ConnectFourException {
+        ConnectFourBoard board = new ConnectFourBoard();
+        for (int col : new int[] {3, 3, 4}) {
+            board.moveMade(col);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ConnectFourBoard.SNAPSHOT_SIZE);
+        board.write(buffer);
+        ConnectFourBoard copy = new ConnectFourBoard();
+        copy.read(buffer.flip());
+        assertEquals(board.toString(), copy.toString());
+        assertEquals(board.getMovesLeft(), copy.getMovesLeft());
+    }
+
+    @Test
+    public void rejectsShortBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(ConnectFourBoard.SNAPSHOT_SIZE);
+        new ConnectFourBoard().write(buffer);
+        buffer.flip().limit(ConnectFourBoard.SNAPSHOT_SIZE - 1);
+        assertThrows(ConnectFourException.class,
+                () -> new ConnectFourBoard().read(buffer));
+    }
+
+    @Test
+    public void rejectsUnevenPieceCounts() {
+        // two pieces in column 0, both the opponent's
+        long key = 0b100;
+        for (int col = 1; col < ConnectFourBoard.COLS; col++) {
+            key |= 1L << (col * (ConnectFourBoard.ROWS + 1));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ConnectFourBoard.SNAPSHOT_SIZE);
+        buffer.putLong(key).put((byte) 0).flip();
+        assertThrows(ConnectFourException.class,
+                () -> new ConnectFourBoard().read(buffer));
+    }
+
+    /**
+     * An observer waiting on another thread that reads the board must not
+     * deadlock, as the board's lock is not held while observers are told.
+     */
+    @Test
+    public void toldWithoutTheLockHeld() throws InterruptedException {
+        ConnectFourBoard board = new ConnectFourBoard();
+        CountDownLatch read = new CountDownLatch(1);
+        board.addObserver(subject -> {
+            Thread reader = new Thread(() -> {
+                subject.getMovesLeft();
+                read.countDown();
+            });
+            reader.start();
+            try {
+                reader.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        board.moveMade(3);
+        assertTrue(read.await(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void asyncObserverThreadStopsOnClose()
+            throws InterruptedException {
+        ConnectFourBoard board = new ConnectFourBoard();
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        CountDownLatch told = new CountDownLatch(1);
+        board.addAsyncObserver(subject -> {
+            thread.set(Thread.currentThread());
+            told.countDown();
+        });
+        board.close();
+        assertTrue(told.await(5, TimeUnit.SECONDS));
+        thread.get().join(5000);
+        assertFalse(thread.get().isAlive());
+        // a change after closing is not an error
+        board.gameTied();
+    }
+}
@@ -0,0 +1,170 @@
+package connectfour.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of recovering games from a {@link Journal}, including after a crash
+ * that cut a batch or a segment's header short.
+ */
+public class JournalTest {
+    /** a session token, in hex */
+    private static final String TOKEN = "00000000deadbeef";
+
+    /** the journal's directory, emptied for each test */
+    @TempDir
+    Path directory;
+
+    /**
+     * Opens the journal in the test's directory, committing every
+     * millisecond.
+     *
+     * @return the journal
+     * @throws IOException If it cannot be opened.
+     */
+    private Journal open() throws IOException {
+        return new Journal(directory, Journal.Sync.NONE, 1, 1 << 20);
+    }
+
+    /**
+     * The newest segment.
+     *
+     * @return the segment file
+     * @throws IOException If the directory cannot be read.
+     */
+    private Path newest() throws IOException {
+        List<Path> segments = Journal.segments(directory);
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Waits for the writer to commit something to the newest segment.
+     *
+     * @param size the segment's size before
+     * @throws IOException If the segment cannot be read.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void awaitCommit(long size)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.size(newest()) == size) {
+            assertTrue(System.currentTimeMillis() < deadline, "no commit");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void recoversUnfinishedGames() throws IOException {
+        try (Journal journal = open()) {
+            GameRecord playing = Journal.open(journal, 1);
+            playing.seat(TOKEN, null);
+            playing.moveMade(3);
+            playing.moveMade(3);
+            playing.moveMade(4);
+            GameRecord over = Journal.open(journal, 2);
+            over.moveMade(0);
+            over.gameOver("PLAYER_ONE");
+        }
+        try (Journal journal = open()) {
+            assertEquals(2, journal.getLastGameId());
+            List<GameRecord> unfinished = journal.getUnfinished();
+            assertEquals(1, unfinished.size());
+            GameRecord record = unfinished.get(0);
+            assertEquals(1, record.getId());
+            assertArrayEquals(new byte[] {3, 3, 4}, record.getMoves());
+            assertEquals(TOKEN, record.getToken(0));
+            assertEquals(null, record.getToken(1));
+        }
+        // and once more, from the checkpoint alone
+        try (Journal journal = open()) {
+            assertArrayEquals(new byte[] {3, 3, 4},
+                    journal.getUnfinished().get(0).getMoves());
+        }
+    }
+
+    @Test
+    public void stopsAtATornBatch()
+            throws IOException, InterruptedException {
+        try (Journal journal = open()) {
+            GameRecord record = Journal.open(journal, 1);
+            long size = Files.size(newest());
+            record.moveMade(3);
+            awaitCommit(size);
+            record.moveMade(4);
+        }
+        // a crash in the middle of writing the second batch
+        try (FileChannel channel = FileChannel.open(newest(),
+                StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (Journal journal = open()) {
+            assertArrayEquals(new byte[] {3},
+                    journal.getUnfinished().get(0).getMoves());
+        }
+    }
+
+    @Test
+    public void ignoresABatchFailingItsChecksum() throws IOException {
+        try (Journal journal = open()) {
+            Journal.open(journal, 1).moveMade(3);
+        }
+        // garbage where the next batch would be
+        Files.write(newest(), new byte[] {0, 0, 0, 2, 1, 2, 3, 4, 5, 6},
+                StandardOpenOption.APPEND);
+        try (Journal journal = open()) {
+            assertArrayEquals(new byte[] {3},
+                    journal.getUnfinished().get(0).getMoves());
+        }
+    }
+
+    @Test
+    public void deletesAHeaderlessSegment() throws IOException {
+        try (Journal journal = open()) {
+            Journal.open(journal, 1).moveMade(3);
+        }
+        // a crash between creating the next segment and writing its header
+        Path segment = newest();
+        Path torn = segment.resolveSibling("journal-99999999.c4j");
+        Files.write(torn, new byte[] {0x43, 0x34});
+        assertFalse(JournalReader.hasHeader(torn));
+        assertTrue(JournalReader.hasHeader(segment));
+        try (Journal journal = open()) {
+            assertFalse(Files.exists(torn));
+            assertEquals(1, journal.getLastGameId());
+            assertArrayEquals(new byte[] {3},
+                    journal.getUnfinished().get(0).getMoves());
+        }
+    }
+
+    @Test
+    public void fallsBackPastAnIncompleteCheckpoint() throws IOException {
+        try (Journal journal = open()) {
+            Journal.open(journal, 1).moveMade(3);
+        }
+        // a segment whose checkpoint never got its closing empty batch
+        Path segment = newest();
+        Path next = segment.resolveSibling("journal-99999999.c4j");
+        byte[] header = new byte[Journal.HEADER_SIZE];
+        System.arraycopy(Files.readAllBytes(segment), 0, header, 0,
+                header.length);
+        Files.write(next, header);
+        assertFalse(JournalReader.read(next, true, (id, status, columns,
+                                                    count, seats) -> { }));
+        try (Journal journal = open()) {
+            assertArrayEquals(new byte[] {3},
+                    journal.getUnfinished().get(0).getMoves());
+        }
+    }
+}
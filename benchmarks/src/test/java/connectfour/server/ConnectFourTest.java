@@ -0,0 +1,106 @@
+package connectfour.server;
+
+import connectfour.ConnectFourException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link ConnectFour} snapshots.
+ */
+public class ConnectFourTest {
+    /**
+     * A snapshot of a standard game from its columns, each given as the
+     * bits of the player to move's pieces from the bottom up, with a
+     * marker bit on top; columns not given are empty.
+     *
+     * @param last the last column played
+     * @param columns the bits of the first columns
+     * @return the snapshot, ready to read
+     */
+    private static ByteBuffer snapshot(int last, long... columns) {
+        int colBits = ConnectFour.ROWS + 1;
+        long key = 0;
+        for (int col = 0; col < ConnectFour.COLS; col++) {
+            long bits = col < columns.length ? columns[col] : 1;
+            key |= bits << (col * colBits);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ConnectFour.SNAPSHOT_SIZE);
+        buffer.put((byte) ConnectFour.ROWS);
+        buffer.put((byte) ConnectFour.COLS);
+        buffer.putLong(key);
+        buffer.put((byte) ConnectFour.WIN_LEN);
+        buffer.put((byte) last);
+        return buffer.flip();
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws ConnectFourException {
+        ConnectFour game = new ConnectFour();
+        for (int col : new int[] {3, 3, 4, 2, 5}) {
+            game.makeMove(col);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ConnectFour.SNAPSHOT_SIZE);
+        game.write(buffer);
+        ConnectFour copy = ConnectFour.read(buffer.flip());
+        assertEquals(game.toString(), copy.toString());
+        assertEquals(game.getMoveCount(), copy.getMoveCount());
+    }
+
+    @Test
+    public void readsWonGame() throws ConnectFourException {
+        // player one's four in column 0, player two's three in column 1
+        ConnectFour game = ConnectFour.read(snapshot(0, 0b10000, 0b1111));
+        assertTrue(game.hasWonGame());
+    }
+
+    @Test
+    public void readsLongestWinLength() throws ConnectFourException {
+        ByteBuffer buffer = ByteBuffer.allocate(ConnectFour.SNAPSHOT_SIZE);
+        new ConnectFour(ConnectFour.ROWS, ConnectFour.COLS, ConnectFour.COLS)
+                .write(buffer);
+        assertEquals(ConnectFour.COLS,
+                ConnectFour.read(buffer.flip()).getWinLength());
+    }
+
+    @Test
+    public void rejectsWinLengthLongerThanBoard() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ConnectFour(ConnectFour.ROWS, ConnectFour.COLS,
+                        ConnectFour.COLS + 1));
+    }
+
+    @Test
+    public void rejectsShortBuffer() {
+        ByteBuffer buffer = snapshot(-1);
+        buffer.limit(ConnectFour.SNAPSHOT_SIZE - 1);
+        assertThrows(ConnectFourException.class,
+                () -> ConnectFour.read(buffer));
+    }
+
+    @Test
+    public void rejectsKeyBitsPastLastColumn() {
+        ByteBuffer buffer = snapshot(-1);
+        buffer.put(2, (byte) 0x40);
+        assertThrows(ConnectFourException.class,
+                () -> ConnectFour.read(buffer));
+    }
+
+    @Test
+    public void rejectsUnevenPieceCounts() {
+        // two pieces, both player two's
+        assertThrows(ConnectFourException.class,
+                () -> ConnectFour.read(snapshot(0, 0b100)));
+    }
+
+    @Test
+    public void rejectsWinBeforeLastMove() {
+        // player one's four in column 0, then player two played on
+        assertThrows(ConnectFourException.class,
+                () -> ConnectFour.read(snapshot(2, 0b11111, 0b1000, 0b10)));
+    }
+}
@@ -0,0 +1,77 @@
+package connectfour.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link TimerWheel} expiry and cancelling.
+ */
+public class TimerWheelTest {
+    /** the wheel: 1 ms ticks and 8 slots, so it turns every 8 ms */
+    private TimerWheel wheel;
+
+    @BeforeEach
+    public void start() {
+        wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8);
+        Thread thread = new Thread(wheel, "timer-wheel-test");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        wheel.close();
+    }
+
+    @Test
+    public void expiresAfterSeveralTurns() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimerWheel.Timeout timeout =
+                wheel.schedule(ran::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // accurate to about a tick, but never early by more than that
+        assertTrue(elapsed >= 29, "expired after " + elapsed + " ms");
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void expiresInDeadlineOrder() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(2);
+        AtomicBoolean lateFirst = new AtomicBoolean();
+        TimerWheel.Timeout early =
+                wheel.schedule(ran::countDown, 5, TimeUnit.MILLISECONDS);
+        // same slot as the early one, a turn later
+        wheel.schedule(() -> {
+            lateFirst.set(!early.isExpired());
+            ran.countDown();
+        }, 13, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(lateFirst.get());
+    }
+
+    @Test
+    public void cancelledNeverRuns() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        TimerWheel.Timeout timeout =
+                wheel.schedule(() -> ran.set(true), 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertFalse(timeout.isExpired());
+    }
+}
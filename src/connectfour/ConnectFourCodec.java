@@ -0,0 +1,475 @@
+package connectfour;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes {@link ConnectFourProtocol} messages directly as bytes, so
+ * that the per-message path on both the server and the client allocates
+ * nothing. Each message keyword is encoded once up front; column arguments
+ * are written and parsed as ASCII digits in place.<P>
+ *
+ * A codec object holds the input buffer for one connection. Bytes are added
+ * to it either by a channel reading into {@link #inputBuffer()} or by
+ * {@link #fill(InputStream)}, and {@link #decode()} takes complete messages
+ * back out. The {@code encode} methods write messages into a caller's
+ * buffer.<P>
+ *
+ * Each direction starts out in the text protocol and switches to compact
+ * binary frames once a {@link Message#BINARY} message passes through it (see
+ * {@link ConnectFourProtocol#BINARY}). A frame is one opcode byte, followed
+ * by a column byte for {@link Message#MOVE} and {@link Message#MOVE_MADE},
+ * or by a length byte and that many ASCII bytes for {@link Message#ERROR}
+ * and other messages that carry text.
+ */
+public class ConnectFourCodec {
+    /**
+     * The messages of the {@link ConnectFourProtocol}, each with its
+     * pre-encoded keyword.
+     */
+    public enum Message {
+        CONNECT(ConnectFourProtocol.CONNECT, 1),
+        MAKE_MOVE(ConnectFourProtocol.MAKE_MOVE, 2),
+        MOVE(ConnectFourProtocol.MOVE, 3),
+        MOVE_MADE(ConnectFourProtocol.MOVE_MADE, 4),
+        GAME_WON(ConnectFourProtocol.GAME_WON, 5),
+        GAME_LOST(ConnectFourProtocol.GAME_LOST, 6),
+        GAME_TIED(ConnectFourProtocol.GAME_TIED, 7),
+        ERROR(ConnectFourProtocol.ERROR, 8),
+        BINARY(ConnectFourProtocol.BINARY, 9),
+        WATCH(ConnectFourProtocol.WATCH, 10),
+        SNAPSHOT(ConnectFourProtocol.SNAPSHOT, 11),
+        GAME_OVER(ConnectFourProtocol.GAME_OVER, 12),
+        RESUME(ConnectFourProtocol.RESUME, 13);
+
+        /** the keyword as ASCII bytes */
+        private final byte[] keyword;
+
+        /** the first byte of the message's binary frame */
+        private final byte opcode;
+
+        Message(String keyword, int opcode) {
+            this.keyword = keyword.getBytes(StandardCharsets.US_ASCII);
+            this.opcode = (byte) opcode;
+        }
+
+        /**
+         * Whether this message carries a column number.
+         *
+         * @return true for {@link #MOVE} and {@link #MOVE_MADE}
+         */
+        public boolean hasColumn() {
+            return this == MOVE || this == MOVE_MADE;
+        }
+
+        /**
+         * Whether this message may carry free text.
+         *
+         * @return true for {@link #CONNECT}, {@link #ERROR}, {@link #RESUME}
+         * and the spectator messages
+         */
+        public boolean hasText() {
+            return this == CONNECT || this == ERROR || this == WATCH ||
+                    this == SNAPSHOT || this == GAME_OVER || this == RESUME;
+        }
+    }
+
+    /** the longest line that will be accepted */
+    public static final int MAX_LINE = 256;
+
+    /** all messages, cached because {@code values()} copies its array */
+    private static final Message[] MESSAGES = Message.values();
+
+    /** messages indexed by their binary opcode */
+    private static final Message[] OPCODES = new Message[MESSAGES.length + 1];
+
+    static {
+        for (Message message : MESSAGES) {
+            OPCODES[message.opcode] = message;
+        }
+    }
+
+    /**
+     * Received bytes, in write mode: data runs from {@link #consumed} up to
+     * the position.
+     */
+    private ByteBuffer in;
+
+    /** how many bytes at the front of {@link #in} have been decoded */
+    private int consumed;
+
+    /** where the arguments of the last decoded message start in {@link #in} */
+    private int argStart;
+
+    /** where the last decoded line ends in {@link #in} */
+    private int lineEnd;
+
+    /** where the last decoded line starts in {@link #in} */
+    private int lineStart;
+
+    /** the column argument of the last decoded message, if it has one */
+    private int column;
+
+    /** the last decoded message */
+    private Message last;
+
+    /** whether incoming bytes are binary frames rather than text lines */
+    private boolean binaryInput;
+
+    /** whether messages are encoded as binary frames rather than text */
+    private boolean binaryOutput;
+
+    /**
+     * Creates a codec with an empty input buffer.
+     */
+    public ConnectFourCodec() {
+        in = ByteBuffer.allocate(MAX_LINE);
+    }
+
+    /**
+     * The buffer a channel should read new bytes into. Bytes already decoded
+     * are dropped first to make room, which invalidates the arguments of the
+     * last decoded message.
+     *
+     * @return the input buffer, positioned after any undecoded bytes
+     */
+    public ByteBuffer inputBuffer() {
+        if (consumed > 0) {
+            in.flip();
+            in.position(consumed);
+            in.compact();
+            consumed = 0;
+        }
+        return in;
+    }
+
+    /**
+     * Reads whatever bytes are available from a stream into the input
+     * buffer, blocking until at least one arrives.
+     *
+     * @param stream the stream to read from
+     * @return false if the stream has ended
+     * @throws IOException If the stream cannot be read.
+     */
+    public boolean fill(InputStream stream) throws IOException {
+        ByteBuffer buffer = inputBuffer();
+        int n = stream.read(buffer.array(), buffer.position(),
+                buffer.remaining());
+        if (n < 0) {
+            return false;
+        }
+        buffer.position(buffer.position() + n);
+        return true;
+    }
+
+    /**
+     * Decodes the next complete message in the input buffer. Decoding a
+     * text {@link Message#BINARY} switches the input over to binary frames.
+     *
+     * @return the message, or null if all of it has not arrived yet
+     * @throws ConnectFourException If the bytes are not a valid message or
+     * a line is longer than {@link #MAX_LINE}.
+     */
+    public Message decode() throws ConnectFourException {
+        Message message = binaryInput ? decodeFrame() : decodeLine();
+        if (message != null) {
+            last = message;
+            if (message == Message.BINARY) {
+                binaryInput = true;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Decodes the next complete text line in the input buffer.
+     *
+     * @return the message, or null if a full line has not arrived yet
+     * @throws ConnectFourException If the line is not a valid message or is
+     * longer than {@link #MAX_LINE}.
+     */
+    private Message decodeLine() throws ConnectFourException {
+        int end = -1;
+        for (int i = consumed; i < in.position(); i++) {
+            if (in.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (consumed == 0 && !in.hasRemaining()) {
+                throw new ConnectFourException("Message too long");
+            }
+            return null;
+        }
+
+        lineStart = consumed;
+        lineEnd = end > lineStart && in.get(end - 1) == '\r' ? end - 1 : end;
+        consumed = end + 1;
+
+        Message message = match();
+        if (message == null) {
+            throw new ConnectFourException("Unrecognized message: " + line());
+        }
+        if (message.hasColumn()) {
+            column = parseColumn();
+        }
+        return message;
+    }
+
+    /**
+     * Decodes the next complete binary frame in the input buffer.
+     *
+     * @return the message, or null if the whole frame has not arrived yet
+     * @throws ConnectFourException If the opcode is not recognized, or the
+     * frame is too long to fit in the input buffer.
+     */
+    private Message decodeFrame() throws ConnectFourException {
+        int available = in.position() - consumed;
+        if (available < 1) {
+            return null;
+        }
+        int opcode = in.get(consumed) & 0xff;
+        Message message = opcode < OPCODES.length ? OPCODES[opcode] : null;
+        if (message == null) {
+            throw new ConnectFourException("Unrecognized opcode: " + opcode);
+        }
+
+        int size = 1;
+        if (message.hasColumn()) {
+            size = 2;
+        }
+        else if (message.hasText()) {
+            if (available < 2) {
+                return null;
+            }
+            size = 2 + (in.get(consumed + 1) & 0xff);
+            if (size > in.capacity()) {
+                // the frame could never be completed
+                throw new ConnectFourException("Message too long");
+            }
+        }
+        if (available < size) {
+            return null;
+        }
+
+        lineStart = consumed;
+        lineEnd = consumed + size;
+        argStart = message.hasText() ? consumed + 2 : lineEnd;
+        if (message.hasColumn()) {
+            column = in.get(consumed + 1) & 0xff;
+        }
+        consumed += size;
+        return message;
+    }
+
+    /**
+     * Blocks until the next message arrives on a stream.
+     *
+     * @param stream the stream to read from
+     * @return the message, or null if the stream ended first
+     * @throws IOException If the stream cannot be read.
+     * @throws ConnectFourException If a line is not a valid message.
+     */
+    public Message readMessage(InputStream stream)
+            throws IOException, ConnectFourException {
+        Message message;
+        while ((message = decode()) == null) {
+            if (!fill(stream)) {
+                return null;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * The column argument of the last decoded {@link Message#MOVE} or
+     * {@link Message#MOVE_MADE}.
+     *
+     * @return the column number
+     */
+    public int column() {
+        return column;
+    }
+
+    /**
+     * The text following the keyword of the last decoded message, e.g. the
+     * text of an {@link Message#ERROR}. Builds a new string, so it is meant
+     * for the rare messages that carry text.
+     *
+     * @return the arguments with surrounding spaces removed
+     */
+    public String arguments() {
+        return new String(in.array(), argStart, lineEnd - argStart,
+                StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * The whole of the last decoded message as text, for error reports.
+     *
+     * @return the line without its terminator
+     */
+    public String line() {
+        if (!binaryInput || last == Message.BINARY) {
+            return new String(in.array(), lineStart, lineEnd - lineStart,
+                    StandardCharsets.US_ASCII);
+        }
+        else if (last.hasColumn()) {
+            return last + " " + column;
+        }
+        else if (last.hasText()) {
+            return last + " " + arguments();
+        }
+        return last.toString();
+    }
+
+    /**
+     * Whether outgoing messages are being encoded as binary frames.
+     *
+     * @return true once a {@link Message#BINARY} has been encoded
+     */
+    public boolean isBinaryOutput() {
+        return binaryOutput;
+    }
+
+    /**
+     * Finds the message whose keyword starts the current line and is
+     * followed by a space or the end of the line.
+     *
+     * @return the message, or null if no keyword matches
+     */
+    private Message match() {
+        for (Message message : MESSAGES) {
+            byte[] keyword = message.keyword;
+            int after = lineStart + keyword.length;
+            if (after > lineEnd ||
+                    (after < lineEnd && in.get(after) != ' ')) {
+                continue;
+            }
+            boolean same = true;
+            for (int i = 0; i < keyword.length && same; i++) {
+                same = in.get(lineStart + i) == keyword[i];
+            }
+            if (same) {
+                argStart = after;
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the single integer argument of the current line.
+     *
+     * @return the integer
+     * @throws ConnectFourException If the arguments are not exactly one
+     * integer.
+     */
+    private int parseColumn() throws ConnectFourException {
+        int i = argStart;
+        while (i < lineEnd && in.get(i) == ' ') {
+            i++;
+        }
+        boolean negative = i < lineEnd && in.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int digits = 0;
+        int value = 0;
+        while (i < lineEnd && in.get(i) >= '0' && in.get(i) <= '9' &&
+                digits < 9) {
+            value = value * 10 + (in.get(i) - '0');
+            digits++;
+            i++;
+        }
+        while (i < lineEnd && in.get(i) == ' ') {
+            i++;
+        }
+        if (digits == 0 || i != lineEnd) {
+            throw new ConnectFourException("Invalid message: " + line());
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Writes a message that has no arguments. Encoding a text
+     * {@link Message#BINARY} switches the output over to binary frames.
+     *
+     * @param out the buffer to write to
+     * @param message the message
+     */
+    public void encode(ByteBuffer out, Message message) {
+        if (binaryOutput) {
+            out.put(message.opcode);
+        }
+        else {
+            out.put(message.keyword);
+            out.put((byte) '\n');
+            binaryOutput = message == Message.BINARY;
+        }
+    }
+
+    /**
+     * Writes a message that carries a column number.
+     *
+     * @param out the buffer to write to
+     * @param message the message
+     * @param column the column
+     */
+    public void encode(ByteBuffer out, Message message, int column) {
+        if (binaryOutput) {
+            out.put(message.opcode);
+            out.put((byte) column);
+            return;
+        }
+
+        out.put(message.keyword);
+        out.put((byte) ' ');
+        if (column < 0) {
+            out.put((byte) '-');
+            column = -column;
+        }
+        int divisor = 1;
+        while (divisor <= column / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + column / divisor % 10));
+        }
+        out.put((byte) '\n');
+    }
+
+    /**
+     * Writes a message followed by free text, e.g. an
+     * {@link Message#ERROR}. Text that would not fit in the buffer or in a
+     * {@link #MAX_LINE} message is cut short, and line breaks become spaces.
+     *
+     * @param out the buffer to write to
+     * @param message the message
+     * @param text the text to follow the keyword
+     */
+    public void encode(ByteBuffer out, Message message, String text) {
+        int room;
+        if (binaryOutput) {
+            room = Math.min(out.remaining(), MAX_LINE) - 2;
+            room = Math.min(room, text.length());
+            out.put(message.opcode);
+            out.put((byte) room);
+        }
+        else {
+            out.put(message.keyword);
+            out.put((byte) ' ');
+            room = Math.min(out.remaining(),
+                    MAX_LINE - message.keyword.length - 1) - 1;
+        }
+        for (int i = 0; i < text.length() && i < room; i++) {
+            char c = text.charAt(i);
+            out.put((byte) (c == '\n' || c == '\r' || c > 0x7e ? ' ' : c));
+        }
+        if (!binaryOutput) {
+            out.put((byte) '\n');
+        }
+    }
+}
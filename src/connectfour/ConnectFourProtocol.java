@@ -13,7 +13,13 @@ public interface ConnectFourProtocol {
      * Request sent from the server to the client after the client initially
      * opens a {@link java.net.Socket} connection to the server. This is the
      * first part of the handshake used to establish that the client
-     * understands the {@link ConnectFourProtocol protocol}.
+     * understands the {@link ConnectFourProtocol protocol}. A server that
+     * supports {@link #BINARY} framing offers it as an argument, and a
+     * server holding games open for their players to {@link #RESUME} offers
+     * that too. A server that keeps a player's seat when its connection
+     * drops follows RESUME with the client's session token.<P>
+     *
+     * For example: CONNECT BINARY RESUME 9c1e5a0f7b3d2486\n
      */
     public static final String CONNECT = "CONNECT";
 
@@ -64,4 +70,63 @@ public interface ConnectFourProtocol {
      * client and the connection is terminated (as is the game).
      */
     public static final String ERROR = "ERROR";
+
+    /**
+     * Switches one direction of the connection from text lines to compact
+     * binary frames. A client that was offered binary framing in
+     * {@link #CONNECT} may send this line; everything it sends after it is
+     * binary. The server answers with its own BINARY line once it has read
+     * the client's, and everything it sends after that is binary. Clients
+     * that never send it keep talking text.<P>
+     *
+     * A binary frame is one opcode byte, followed by a column byte for
+     * {@link #MOVE} and {@link #MOVE_MADE}, or by a length byte and that many
+     * characters for {@link #ERROR}.
+     */
+    public static final String BINARY = "BINARY";
+
+    /**
+     * Request sent from a spectator to the server's spectator port, after
+     * the {@link #CONNECT}, naming the game to watch. Without a game number
+     * the most recently started game is watched.<P>
+     *
+     * For example (to watch game 17): WATCH 17\n
+     */
+    public static final String WATCH = "WATCH";
+
+    /**
+     * Sent from the server to a new spectator with the game number and every
+     * column moved in so far, in order. Each later move arrives as a
+     * {@link #MOVE_MADE}.<P>
+     *
+     * For example (after two moves in the 3rd column): SNAPSHOT 17 3 3\n
+     */
+    public static final String SNAPSHOT = "SNAPSHOT";
+
+    /**
+     * Sent from the server to spectators when the game they watch ends,
+     * with the result: PLAYER_ONE or PLAYER_TWO for the winner, TIE, or
+     * ERROR. The connection is closed afterwards.<P>
+     *
+     * For example: GAME_OVER PLAYER_TWO\n
+     */
+    public static final String GAME_OVER = "GAME_OVER";
+
+    /**
+     * Sent from a client to the server as its first message after a
+     * {@link #CONNECT} that offers it, with the session token it was given
+     * in an earlier CONNECT. If that connection dropped, the client takes
+     * its place in its game: the server answers with a {@link #SNAPSHOT}
+     * of the game so far, and asks again with a {@link #MAKE_MOVE} if it was
+     * the client's turn. If the game was being played when the server
+     * stopped, the client takes its seat again: the server answers with a
+     * SNAPSHOT, and play carries on with a MAKE_MOVE to whoever's turn it
+     * is once both players are back. A game a player does not come back to
+     * in time ends in an {@link #ERROR}, as does a RESUME the server cannot
+     * honour. A client with nothing to resume sends RESUME alone, so that
+     * the server need not wait to see whether it will.<P>
+     *
+     * For example: RESUME 9c1e5a0f7b3d2486\n
+     */
+    public static final String RESUME = "RESUME";
 }
@@ -0,0 +1,327 @@
+package connectfour.ai;
+
+import static connectfour.ai.TranspositionTable.EXACT;
+import static connectfour.ai.TranspositionTable.LOWER;
+import static connectfour.ai.TranspositionTable.NO_MOVE;
+import static connectfour.ai.TranspositionTable.UPPER;
+
+/**
+ * A Connect Four engine: negamax with alpha-beta pruning, searched deeper
+ * and deeper until a time budget runs out. Moves are tried best-known first
+ * and then from the centre outwards, and positions already searched are
+ * remembered in a {@link TranspositionTable} keyed by their Zobrist hash,
+ * which may be shared with other engines searching at the same time.<P>
+ *
+ * An engine follows one game through {@link #play(int)} and is used by one
+ * thread at a time; {@link #stop()} may be called from any thread.
+ */
+public class AlphaBeta {
+    /**
+     * The score of a win on the very first move. Wins score this less the
+     * number of pieces on the board once won, so quicker wins score higher;
+     * every heuristic score is far smaller.
+     */
+    public static final int WIN = 1000;
+
+    /** how many nodes are searched between looks at the clock */
+    private static final int CHECK_INTERVAL = 1024;
+
+    /**
+     * Thrown to unwind the search once the time budget has run out. It has
+     * no stack trace and is never seen outside the engine.
+     */
+    private static final class OutOfTime extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates the exception.
+         */
+        OutOfTime() {
+            super(null, null, false, false);
+        }
+    }
+
+    /** the one instance of {@link OutOfTime} needed */
+    private static final OutOfTime OUT_OF_TIME = new OutOfTime();
+
+    /** the game being played */
+    private Position position;
+
+    /** solved early positions, or null */
+    private OpeningBook book;
+
+    /** solved late positions, or null */
+    private Tablebase tablebase;
+
+    /** the columns, centre first */
+    private int[] order;
+
+    /** the positions searched so far, by this engine or any sharing it */
+    private TranspositionTable table;
+
+    /** when the current search must stop, in {@link System#nanoTime()} */
+    private long deadline;
+
+    /** set to stop the current search early */
+    private volatile boolean stopped;
+
+    /** nodes searched by the current search */
+    private long nodes;
+
+    /** the deepest search completed for the last move */
+    private int depth;
+
+    /** the number of pieces on the board at the root of the search */
+    private int rootMoves;
+
+    /** the best move found at the root by the last search */
+    private int rootMove;
+
+    /** the score of {@link #rootMove} */
+    private int rootScore;
+
+    /**
+     * Creates an engine for a new game.
+     *
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param tableBits the transposition table holds 2<sup>tableBits</sup>
+     *                  entries of 16 bytes each
+     */
+    public AlphaBeta(int rows, int cols, int tableBits) {
+        this(rows, cols, new TranspositionTable(tableBits));
+    }
+
+    /**
+     * Creates an engine for a new game that keeps what it learns in a
+     * table shared with other engines. Positions are keyed by their hash
+     * alone, so every engine sharing a table must play on the same size of
+     * board.
+     *
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param table the transposition table
+     */
+    public AlphaBeta(int rows, int cols, TranspositionTable table) {
+        position = new Position(rows, cols);
+        order = new int[cols];
+        for (int i = 0; i < cols; i++) {
+            order[i] = cols / 2 + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+        }
+        this.table = table;
+    }
+
+    /**
+     * Makes the engine play straight from an opening book for as long as the
+     * game stays in it.
+     *
+     * @param book the book, or null to always search
+     */
+    public void useBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    /**
+     * Makes the engine play straight from a tablebase once the game is late
+     * enough to be in it.
+     *
+     * @param tablebase the tablebase, or null to always search
+     */
+    public void useTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+    }
+
+    /**
+     * Follows a move made in the game, by either player.
+     *
+     * @param col the column moved in
+     * @throws IllegalArgumentException If the column cannot be played.
+     */
+    public void play(int col) {
+        if (col < 0 || col >= position.getCols() || !position.canPlay(col)) {
+            throw new IllegalArgumentException("Invalid column: " + col);
+        }
+        position.play(col);
+    }
+
+    /**
+     * Picks a move for the player to move, searching until the budget runs
+     * out, a win or loss is proven, or {@link #stop()} is called. The answer
+     * comes from the deepest search that finished, or straight from the
+     * opening book or the tablebase if the position is in one of them.
+     *
+     * @param budgetMillis how long to search
+     * @return the column to play, or -1 if the board is full
+     */
+    public int bestMove(long budgetMillis) {
+        deadline = System.nanoTime() + budgetMillis * 1_000_000;
+        stopped = false;
+        nodes = 0;
+        depth = 0;
+        rootMoves = position.getMoves();
+        table.newSearch();
+
+        for (SolvedPositions solved : new SolvedPositions[] {
+                book, tablebase }) {
+            int move = solved == null ? -1 : solved.bestMove(position);
+            if (move >= 0) {
+                return move;
+            }
+        }
+
+        int best = -1;
+        for (int col : order) {
+            if (position.canPlay(col)) {
+                if (position.isWinningMove(col)) {
+                    return col;
+                }
+                if (best < 0) {
+                    best = col;
+                }
+            }
+        }
+
+        int empty = position.getRows() * position.getCols() -
+                position.getMoves();
+        for (int d = 1; d <= empty; d++) {
+            try {
+                search(d, -WIN, WIN);
+            } catch (OutOfTime e) {
+                break;
+            }
+            depth = d;
+            best = rootMove;
+            if (Math.abs(rootScore) > WIN - Long.SIZE) {
+                // proven; searching deeper cannot change the answer
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Stops a search in progress; {@link #bestMove(long)} then answers at
+     * once.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * The deepest search completed by the last {@link #bestMove(long)}.
+     *
+     * @return the depth in moves
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * The nodes searched by the last {@link #bestMove(long)}.
+     *
+     * @return the node count
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Scores the position for the player to move by searching a number of
+     * moves ahead.
+     *
+     * @param depth how many more moves to search
+     * @param alpha the score the player to move is already sure of
+     * @param beta the score the opponent is already sure of
+     * @return the score, exact if strictly between alpha and beta
+     */
+    private int search(int depth, int alpha, int beta) {
+        if ((++nodes & (CHECK_INTERVAL - 1)) == 0 &&
+                (stopped || System.nanoTime() > deadline)) {
+            throw OUT_OF_TIME;
+        }
+        if (position.isFull()) {
+            return 0;
+        }
+        for (int col : order) {
+            if (position.canPlay(col) && position.isWinningMove(col)) {
+                return WIN - position.getMoves() - 1;
+            }
+        }
+        if (depth == 0) {
+            return evaluate();
+        }
+
+        boolean root = position.getMoves() == rootMoves;
+        long hash = position.getHash();
+        long entry = table.get(hash);
+        int hint = entry != 0 ? TranspositionTable.move(entry) : NO_MOVE;
+        if (entry != 0 && TranspositionTable.depth(entry) >= depth && !root) {
+            int score = TranspositionTable.score(entry);
+            switch (TranspositionTable.bound(entry)) {
+                case EXACT:
+                    return score;
+                case LOWER:
+                    alpha = Math.max(alpha, score);
+                    break;
+                default:
+                    beta = Math.min(beta, score);
+            }
+            if (alpha >= beta) {
+                return score;
+            }
+        }
+
+        int start = alpha;
+        int best = -WIN;
+        int bestMove = NO_MOVE;
+        for (int i = -1; i < order.length; i++) {
+            int col = i < 0 ? hint : order[i];
+            if (col == NO_MOVE || (i >= 0 && col == hint) ||
+                    !position.canPlay(col)) {
+                continue;
+            }
+            position.play(col);
+            int score;
+            try {
+                score = -search(depth - 1, -beta, -alpha);
+            } finally {
+                position.undo(col);
+            }
+            if (score > best) {
+                best = score;
+                bestMove = col;
+            }
+            if (score > alpha) {
+                alpha = score;
+                if (alpha >= beta) {
+                    break;
+                }
+            }
+        }
+
+        if (root) {
+            rootMove = bestMove;
+            rootScore = best;
+        }
+        int kind = best <= start ? UPPER : best >= beta ? LOWER : EXACT;
+        table.put(hash, best, depth, kind, bestMove);
+        return best;
+    }
+
+    /**
+     * Guesses how good the position is for the player to move without
+     * searching: the empty cells that would complete a line for each player,
+     * and pieces near the centre.
+     *
+     * @return the score, well inside (-{@link #WIN}, {@link #WIN})
+     */
+    private int evaluate() {
+        long mine = position.getCurrent();
+        long theirs = mine ^ position.getMask();
+        int score = 4 * (Long.bitCount(position.winningCells(mine)) -
+                Long.bitCount(position.winningCells(theirs)));
+        long centre = position.column(order[0]);
+        return score + Long.bitCount(mine & centre) -
+                Long.bitCount(theirs & centre);
+    }
+}
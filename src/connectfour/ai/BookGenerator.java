@@ -0,0 +1,190 @@
+package connectfour.ai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes an {@link OpeningBook}: every position with up to a given number of
+ * pieces on the board, one per mirror pair, solved exactly. The positions
+ * are solved one after another by a parallel {@link Solver}, whose table
+ * carries over from each position to the next.<P>
+ *
+ * Solving is slow on the full board; every extra ply multiplies the
+ * positions by about four and the early ones are the hardest, so the depth
+ * should be chosen with care.
+ */
+public class BookGenerator {
+    /** the solver's table holds 2<sup>24</sup> entries, 256 MB */
+    private static final int TABLE_BITS = 24;
+
+    /** the board's rows */
+    private int rows;
+
+    /** the board's columns */
+    private int cols;
+
+    /** the deepest positions to include, in plies */
+    private int plies;
+
+    /** the canonical keys of the positions found so far */
+    private Set<Long> seen;
+
+    /**
+     * Creates a generator.
+     *
+     * @param rows the board's rows
+     * @param cols the board's columns
+     * @param plies the deepest positions to include
+     */
+    public BookGenerator(int rows, int cols, int plies) {
+        this.rows = rows;
+        this.cols = cols;
+        this.plies = plies;
+    }
+
+    /**
+     * Generates the book and writes it to a file.
+     *
+     * @param file where to write the book
+     * @throws IOException If the file cannot be written.
+     */
+    public void generate(Path file) throws IOException {
+        seen = new HashSet<>();
+        collect(new Position(rows, cols));
+
+        long[] keys = new long[seen.size()];
+        int n = 0;
+        for (long key : seen) {
+            keys[n++] = key;
+        }
+        sortUnsigned(keys);
+
+        Solver solver = new Solver(TABLE_BITS);
+        byte[] scores = new byte[keys.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            scores[i] = (byte) solver.solve(fromKey(keys[i])).getScore();
+            if ((i + 1) % 1000 == 0) {
+                System.out.printf("Solved %d of %d positions in %ds%n",
+                        i + 1, keys.length,
+                        (System.nanoTime() - start) / 1_000_000_000);
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(OpeningBook.HEADER_SIZE +
+                keys.length * (Long.BYTES + 1));
+        out.putInt(OpeningBook.MAGIC)
+                .put((byte) rows).put((byte) cols).put((byte) plies)
+                .put((byte) 0)
+                .putInt(keys.length)
+                .putInt(0);
+        for (long key : keys) {
+            out.putLong(key);
+        }
+        out.put(scores);
+        out.flip();
+        write(file, out);
+    }
+
+    /**
+     * Sorts keys as unsigned numbers, the order lookups search them in.
+     *
+     * @param keys the keys, sorted in place
+     */
+    static void sortUnsigned(long[] keys) {
+        // flip the sign bit, sort signed, flip back
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] ^= Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] ^= Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Writes out a file, replacing any file already there.
+     *
+     * @param file the file
+     * @param contents what to write
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(Path file, ByteBuffer contents) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        }
+    }
+
+    /**
+     * Adds a position and everything reachable from it within the ply
+     * limit, skipping finished games and positions already seen in either
+     * orientation.
+     *
+     * @param position the position, restored before returning
+     */
+    private void collect(Position position) {
+        if (position.isFull() || !seen.add(position.getCanonicalKey()) ||
+                position.getMoves() == plies) {
+            return;
+        }
+        for (int col = 0; col < cols; col++) {
+            if (position.canPlay(col) && !position.isWinningMove(col)) {
+                position.play(col);
+                collect(position);
+                position.undo(col);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a position from its {@link Position#getKey() key}.
+     *
+     * @param key the key
+     * @return the position
+     */
+    private Position fromKey(long key) {
+        int colBits = rows + 1;
+        long current = 0;
+        long mask = 0;
+        for (int col = 0; col < cols; col++) {
+            long bits = (key >>> (col * colBits)) &
+                    (colBits == Long.SIZE ? -1L : (1L << colBits) - 1);
+            // the marker bit sits on top of the column's pieces
+            int height = Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
+            long pieces = (1L << height) - 1;
+            mask |= pieces << (col * colBits);
+            current |= (bits & pieces) << (col * colBits);
+        }
+        return new Position(rows, cols, current, mask);
+    }
+
+    /**
+     * Generates a book.
+     *
+     * @param args the book file and the number of plies, optionally followed
+     *             by the board's rows and columns (6 and 7 by default)
+     * @throws IOException If the book cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 4) {
+            System.out.println("Usage: java BookGenerator <book file> " +
+                    "<plies> [<rows> <cols>]");
+            System.exit(1);
+        }
+        int plies = Integer.parseInt(args[1]);
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+        int cols = args.length > 2 ? Integer.parseInt(args[3]) : 7;
+        new BookGenerator(rows, cols, plies).generate(Paths.get(args[0]));
+    }
+}
@@ -0,0 +1,128 @@
+package connectfour.ai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Solved scores for every position of the first few plies, read from a file
+ * written by {@link BookGenerator}. The file is mapped into memory rather
+ * than read, so opening a book is instant, it takes no heap, and the
+ * operating system pages in only the parts that lookups touch. A lookup is
+ * a binary search over the sorted keys, straight from the mapping.<P>
+ *
+ * The file holds a 16-byte header ({@link #MAGIC}, a byte each for the
+ * rows, columns and plies, a spare byte, the position count as an int, and
+ * four spare bytes), then the
+ * {@link Position#getCanonicalKey() canonical keys} of the positions as
+ * 8-byte big-endian numbers in unsigned order, then one {@link Solver}
+ * score byte per key in the same order. Mirror images share one entry.
+ */
+public class OpeningBook implements SolvedPositions {
+    /** identifies a book file: "C4BP" */
+    public static final int MAGIC = 0x43344250;
+
+    /** the size of the header in bytes */
+    static final int HEADER_SIZE = 16;
+
+    /** the whole file */
+    private ByteBuffer book;
+
+    /** the number of rows of the board the book is for */
+    private int rows;
+
+    /** the number of columns of the board the book is for */
+    private int cols;
+
+    /** the most pieces on the board in any position in the book */
+    private int plies;
+
+    /** the number of positions in the book */
+    private int count;
+
+    /** where the scores start */
+    private int scores;
+
+    /**
+     * Maps a book file.
+     *
+     * @param file the book
+     * @return the book
+     * @throws IOException If the file cannot be mapped or is not a book.
+     */
+    public static OpeningBook open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new OpeningBook(mapped);
+        }
+    }
+
+    /**
+     * Reads a book's header.
+     *
+     * @param book the whole book
+     * @throws IOException If it is not a book.
+     */
+    private OpeningBook(ByteBuffer book) throws IOException {
+        this.book = book.order(ByteOrder.BIG_ENDIAN);
+        if (book.capacity() < HEADER_SIZE || book.getInt(0) != MAGIC) {
+            throw new IOException("Not an opening book");
+        }
+        rows = book.get(4);
+        cols = book.get(5);
+        plies = book.get(6);
+        count = book.getInt(8);
+        scores = HEADER_SIZE + count * Long.BYTES;
+        if (book.capacity() != scores + count) {
+            throw new IOException("Truncated opening book");
+        }
+    }
+
+    @Override
+    public int score(Position position) {
+        if (position.getRows() != rows || position.getCols() != cols ||
+                position.getMoves() > plies) {
+            return Integer.MIN_VALUE;
+        }
+        long key = position.getCanonicalKey();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = Long.compareUnsigned(
+                    book.getLong(HEADER_SIZE + middle * Long.BYTES), key);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return book.get(scores + middle);
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * The most pieces on the board in any position in the book.
+     *
+     * @return the depth of the book in plies
+     */
+    public int getPlies() {
+        return plies;
+    }
+
+    /**
+     * The number of positions in the book.
+     *
+     * @return the position count
+     */
+    public int size() {
+        return count;
+    }
+}
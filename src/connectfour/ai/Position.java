@@ -0,0 +1,412 @@
+package connectfour.ai;
+
+import java.util.SplittableRandom;
+
+/**
+ * A Connect Four position for searching: two bitboards and a Zobrist key,
+ * with moves that can be played and taken back in a few instructions.<P>
+ *
+ * Column {@code c} takes bits {@code c * (rows + 1)} up to
+ * {@code c * (rows + 1) + rows - 1}, bottom to top, plus one always-empty
+ * sentinel bit so lines never wrap between columns; the board must fit in a
+ * {@code long}. {@link #getCurrent()} holds the pieces of the player to move
+ * and {@link #getMask()} every piece on the board.
+ */
+public class Position {
+    /**
+     * Random keys for a piece of each player on each bit, the same in every
+     * run so hashes can be stored.
+     */
+    private static final long[][] ZOBRIST = new long[2][Long.SIZE];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x436F6E6E656374L);
+        for (long[] keys : ZOBRIST) {
+            for (int bit = 0; bit < keys.length; bit++) {
+                keys[bit] = random.nextLong();
+            }
+        }
+    }
+
+    /** the number of rows */
+    private int rows;
+
+    /** the number of columns */
+    private int cols;
+
+    /** the bits per column: one per row plus the sentinel */
+    private int colBits;
+
+    /** the bottom cell of every column */
+    private long bottom;
+
+    /** every playable cell */
+    private long board;
+
+    /** the pieces of the player to move */
+    private long current;
+
+    /** every piece on the board */
+    private long mask;
+
+    /** the Zobrist key of the pieces on the board */
+    private long hash;
+
+    /** the number of pieces on the board */
+    private int moves;
+
+    /**
+     * Creates an empty position.
+     *
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @throws IllegalArgumentException If the board does not fit in a
+     * bitboard.
+     */
+    public Position(int rows, int cols) {
+        if (rows < 1 || cols < 1 || (long) (rows + 1) * cols > Long.SIZE) {
+            throw new IllegalArgumentException("Board too large: " + rows +
+                    "x" + cols);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        colBits = rows + 1;
+        for (int col = 0; col < cols; col++) {
+            bottom |= 1L << (col * colBits);
+        }
+        board = bottom * ((1L << rows) - 1);
+    }
+
+    /**
+     * Creates a position from its bitboards, laid out as described above.
+     *
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param current the pieces of the player to move
+     * @param mask every piece on the board
+     * @throws IllegalArgumentException If the board does not fit in a
+     * bitboard.
+     */
+    public Position(int rows, int cols, long current, long mask) {
+        this(rows, cols);
+        this.current = current;
+        this.mask = mask;
+        moves = Long.bitCount(mask);
+        for (long pieces = mask; pieces != 0; pieces &= pieces - 1) {
+            int bit = Long.numberOfTrailingZeros(pieces);
+            int owner = (current >>> bit & 1) == 1 ? moves & 1 : ~moves & 1;
+            hash ^= ZOBRIST[owner][bit];
+        }
+    }
+
+    /**
+     * Copies a position.
+     *
+     * @param other the position to copy
+     */
+    public Position(Position other) {
+        rows = other.rows;
+        cols = other.cols;
+        colBits = other.colBits;
+        bottom = other.bottom;
+        board = other.board;
+        current = other.current;
+        mask = other.mask;
+        hash = other.hash;
+        moves = other.moves;
+    }
+
+    /**
+     * Whether a piece can be dropped in a column.
+     *
+     * @param col the column
+     * @return true if the column is not full
+     */
+    public boolean canPlay(int col) {
+        return (mask & topCell(col)) == 0;
+    }
+
+    /**
+     * Drops a piece for the player to move, who then becomes the opponent.
+     *
+     * @param col a column that {@link #canPlay(int) can be played}
+     */
+    public void play(int col) {
+        long cell = (mask + bottomCell(col)) & column(col);
+        hash ^= ZOBRIST[moves & 1][Long.numberOfTrailingZeros(cell)];
+        current ^= mask;
+        mask |= cell;
+        moves++;
+    }
+
+    /**
+     * Takes back the last move.
+     *
+     * @param col the column the last move was played in
+     */
+    public void undo(int col) {
+        long cell = Long.highestOneBit(mask & column(col));
+        moves--;
+        mask ^= cell;
+        current ^= mask;
+        hash ^= ZOBRIST[moves & 1][Long.numberOfTrailingZeros(cell)];
+    }
+
+    /**
+     * Whether playing a column would win the game for the player to move.
+     *
+     * @param col a column that {@link #canPlay(int) can be played}
+     * @return true if the move completes a line
+     */
+    public boolean isWinningMove(int col) {
+        return hasLine(current | ((mask + bottomCell(col)) & column(col)));
+    }
+
+    /**
+     * Whether the player who just moved has a line of four.
+     *
+     * @return true if the last move won the game
+     */
+    public boolean hasWon() {
+        return hasLine(current ^ mask);
+    }
+
+    /**
+     * The empty cells, playable now or not, that would complete a line of
+     * four for a set of pieces.
+     *
+     * @param pieces one player's pieces
+     * @return the cells as a bitboard
+     */
+    public long winningCells(long pieces) {
+        // vertical: only ever completed from above
+        long cells = shl(pieces, 1) & shl(pieces, 2) & shl(pieces, 3);
+        for (int shift = colBits - 1; shift <= colBits + 1; shift++) {
+            long pair = shl(pieces, shift) & shl(pieces, 2 * shift);
+            cells |= pair & shl(pieces, 3 * shift);
+            cells |= pair & shr(pieces, shift);
+            pair = shr(pieces, shift) & shr(pieces, 2 * shift);
+            cells |= pair & shl(pieces, shift);
+            cells |= pair & shr(pieces, 3 * shift);
+        }
+        return cells & (board ^ mask);
+    }
+
+    /**
+     * Whether the player to move can win with their next piece.
+     *
+     * @return true if a winning move is open
+     */
+    public boolean canWinNext() {
+        return (winningCells(current) & playableCells()) != 0;
+    }
+
+    /**
+     * The cells the player to move can play without letting the opponent
+     * win on their next move: a threat that must be blocked leaves only
+     * that cell, two leave none, and cells right under an opponent's
+     * winning cell are left out.
+     *
+     * @return the cells as a bitboard; 0 if every move loses
+     */
+    public long nonLosingMoves() {
+        long possible = playableCells();
+        long threats = winningCells(current ^ mask);
+        long forced = possible & threats;
+        if (forced != 0) {
+            if ((forced & (forced - 1)) != 0) {
+                return 0;
+            }
+            possible = forced;
+        }
+        return possible & ~(threats >>> 1);
+    }
+
+    /**
+     * The column a cell is in.
+     *
+     * @param cell a single cell as a bitboard
+     * @return the column
+     */
+    public int columnOf(long cell) {
+        return Long.numberOfTrailingZeros(cell) / colBits;
+    }
+
+    /**
+     * A key that identifies the position exactly: each column's pieces plus
+     * a marker bit on top of them, so unlike the {@link #getHash() hash} no
+     * two positions share one.
+     *
+     * @return the key
+     */
+    public long getKey() {
+        return current + mask + bottom;
+    }
+
+    /**
+     * The smaller of the {@link #getKey() keys} of the position and its
+     * left-right mirror image, which play the same way. Keys are compared
+     * unsigned.
+     *
+     * @return the key shared by the position and its mirror image
+     */
+    public long getCanonicalKey() {
+        long key = getKey();
+        long mirrored = 0;
+        long columnBits = colBits == Long.SIZE ? -1L : (1L << colBits) - 1;
+        for (int col = 0; col < cols; col++) {
+            long bits = (key >>> (col * colBits)) & columnBits;
+            mirrored |= bits << ((cols - 1 - col) * colBits);
+        }
+        return Long.compareUnsigned(key, mirrored) <= 0 ? key : mirrored;
+    }
+
+    /**
+     * The cells a piece dropped now would land in, one per open column.
+     *
+     * @return the cells as a bitboard
+     */
+    public long playableCells() {
+        return (mask + bottom) & board;
+    }
+
+    /**
+     * Whether a set of pieces contains a line of four.
+     *
+     * @param pieces the pieces
+     * @return true if they contain a line
+     */
+    private boolean hasLine(long pieces) {
+        return hasLine(pieces, 1) || hasLine(pieces, colBits - 1) ||
+                hasLine(pieces, colBits) || hasLine(pieces, colBits + 1);
+    }
+
+    /**
+     * Whether a set of pieces contains a line of four in one direction.
+     *
+     * @param pieces the pieces
+     * @param shift the bit distance between neighbours along the line
+     * @return true if they contain such a line
+     */
+    private static boolean hasLine(long pieces, int shift) {
+        long pairs = pieces & shr(pieces, shift);
+        return (pairs & shr(pairs, 2 * shift)) != 0;
+    }
+
+    /**
+     * Shifts left, dropping every bit once the shift reaches the width of a
+     * {@code long} instead of wrapping round as {@code <<} does.
+     *
+     * @param bits the bits
+     * @param shift the distance
+     * @return the shifted bits
+     */
+    private static long shl(long bits, int shift) {
+        return shift < Long.SIZE ? bits << shift : 0;
+    }
+
+    /**
+     * Shifts right without sign extension, dropping every bit once the
+     * shift reaches the width of a {@code long}.
+     *
+     * @param bits the bits
+     * @param shift the distance
+     * @return the shifted bits
+     */
+    private static long shr(long bits, int shift) {
+        return shift < Long.SIZE ? bits >>> shift : 0;
+    }
+
+    /**
+     * The bottom cell of a column.
+     *
+     * @param col the column
+     * @return the cell as a bitboard
+     */
+    long bottomCell(int col) {
+        return 1L << (col * colBits);
+    }
+
+    /**
+     * The top cell of a column.
+     *
+     * @param col the column
+     * @return the cell as a bitboard
+     */
+    long topCell(int col) {
+        return 1L << (col * colBits + rows - 1);
+    }
+
+    /**
+     * Every cell of a column.
+     *
+     * @param col the column
+     * @return the cells as a bitboard
+     */
+    long column(int col) {
+        return ((1L << rows) - 1) << (col * colBits);
+    }
+
+    /**
+     * The pieces of the player to move.
+     *
+     * @return the pieces as a bitboard
+     */
+    public long getCurrent() {
+        return current;
+    }
+
+    /**
+     * Every piece on the board.
+     *
+     * @return the pieces as a bitboard
+     */
+    public long getMask() {
+        return mask;
+    }
+
+    /**
+     * The Zobrist key of the position.
+     *
+     * @return the key
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * The number of pieces on the board.
+     *
+     * @return the number of moves played
+     */
+    public int getMoves() {
+        return moves;
+    }
+
+    /**
+     * The number of rows.
+     *
+     * @return the rows
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * The number of columns.
+     *
+     * @return the columns
+     */
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * Whether the board is full.
+     *
+     * @return true if no more moves can be played
+     */
+    public boolean isFull() {
+        return moves == rows * cols;
+    }
+}
@@ -0,0 +1,85 @@
+package connectfour.ai;
+
+/**
+ * The exact game-theoretic value of a position, from the point of view of
+ * the player to move, assuming perfect play by both sides.
+ */
+public class Solution {
+    /**
+     * How the game ends for the player to move.
+     */
+    public enum Outcome {
+        WIN, LOSS, DRAW
+    }
+
+    /** the solver's score: positive wins, negative loses, 0 draws */
+    private int score;
+
+    /** how the game ends */
+    private Outcome outcome;
+
+    /** the number of moves, by both players, until the game ends */
+    private int distance;
+
+    /**
+     * Turns a {@link Solver} score into a solution.
+     *
+     * @param position the position solved
+     * @param score the score; the player to move wins if it is positive,
+     *              with a piece leaving {@code size + 1 - 2 * score} or
+     *              {@code size + 2 - 2 * score} pieces on the board, and
+     *              loses likewise to the opponent if it is negative
+     */
+    Solution(Position position, int score) {
+        this.score = score;
+        int size = position.getRows() * position.getCols();
+        int moves = position.getMoves();
+        if (score == 0) {
+            outcome = Outcome.DRAW;
+            distance = size - moves;
+        } else {
+            outcome = score > 0 ? Outcome.WIN : Outcome.LOSS;
+            // the winner's pieces are the ones of this parity
+            int parity = score > 0 ? moves + 1 : moves;
+            int last = size + 2 - 2 * Math.abs(score);
+            if (((last ^ parity) & 1) != 0) {
+                last--;
+            }
+            distance = last - moves;
+        }
+    }
+
+    /**
+     * The solver's score. Higher is better for the player to move, and
+     * quicker wins and slower losses score higher.
+     *
+     * @return the score
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * How the game ends for the player to move.
+     *
+     * @return the outcome
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * The number of moves, by both players, until the game is won or the
+     * board fills up.
+     *
+     * @return the distance in moves
+     */
+    public int getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return outcome + " in " + distance;
+    }
+}
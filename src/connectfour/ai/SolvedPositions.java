@@ -0,0 +1,52 @@
+package connectfour.ai;
+
+/**
+ * A store of positions whose exact {@link Solver} scores are known ahead of
+ * time, such as an {@link OpeningBook} or a {@link Tablebase}, so that a
+ * position inside it takes one lookup instead of a search.
+ */
+public interface SolvedPositions {
+    /**
+     * Looks up the score of a position.
+     *
+     * @param position the position
+     * @return its score, as {@link Solver} would find it, or
+     * {@link Integer#MIN_VALUE} if the position is not in the store
+     */
+    int score(Position position);
+
+    /**
+     * Picks the best move from a position using the scores of the positions
+     * it leads to.
+     *
+     * @param position the position; it is not changed
+     * @return the column to play, or -1 if any move leads out of the store
+     */
+    default int bestMove(Position position) {
+        Position next = new Position(position);
+        int best = -1;
+        int bestScore = Integer.MIN_VALUE;
+        int cols = next.getCols();
+        for (int i = 0; i < cols; i++) {
+            // centre first, so ties go to the central move
+            int col = cols / 2 + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+            if (!next.canPlay(col)) {
+                continue;
+            }
+            if (next.isWinningMove(col)) {
+                return col;
+            }
+            next.play(col);
+            int score = next.isFull() ? 0 : score(next);
+            next.undo(col);
+            if (score == Integer.MIN_VALUE) {
+                return -1;
+            }
+            if (-score > bestScore) {
+                bestScore = -score;
+                best = col;
+            }
+        }
+        return best;
+    }
+}
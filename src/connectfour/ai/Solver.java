@@ -0,0 +1,531 @@
+package connectfour.ai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import static connectfour.ai.TranspositionTable.EXACT;
+import static connectfour.ai.TranspositionTable.LOWER;
+import static connectfour.ai.TranspositionTable.UPPER;
+
+/**
+ * Computes the exact value of Connect Four positions.<P>
+ *
+ * The value is found by a series of null-window negamax searches that
+ * narrow down the score, each of which only has to answer whether the
+ * score is above a guess. Only moves that do not hand the opponent an
+ * immediate win are tried, most threatening first and then centre first,
+ * and every bound learned is kept in a {@link TranspositionTable} shared by
+ * all threads.<P>
+ *
+ * The first few plies of each search run in parallel on a
+ * {@link ForkJoinPool}: the first, most promising move of a node is
+ * searched alone, and if it does not settle the node, its brothers are
+ * forked and searched at once (the "young brothers wait" scheme). Once one
+ * brother settles the node, the others are cancelled. Below the split
+ * depth, every task searches on its own.<P>
+ *
+ * A solver can be shared by any number of threads.
+ */
+public class Solver {
+    /** how many nodes a task searches between looks at its cancel flag */
+    private static final int CHECK_INTERVAL = 256;
+
+    /**
+     * Thrown to unwind a search that is no longer needed. It has no stack
+     * trace and is never seen outside the solver.
+     */
+    private static final class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates the exception.
+         */
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+
+    /** the one instance of {@link Cancelled} needed */
+    private static final Cancelled CANCELLED = new Cancelled();
+
+    /**
+     * Whether the search of a node is still needed. A node is cancelled
+     * when one of its brothers settles their parent, or when any of its
+     * ancestors is cancelled.
+     */
+    private static final class Cancel {
+        /** the parent node's flag, or null at the root */
+        private final Cancel parent;
+
+        /** set once this node's search is no longer needed */
+        private volatile boolean cancelled;
+
+        /**
+         * Creates a flag.
+         *
+         * @param parent the parent node's flag, or null at the root
+         */
+        Cancel(Cancel parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * Whether the node, or any node above it, is cancelled.
+         *
+         * @return true if the search is no longer needed
+         */
+        boolean isCancelled() {
+            for (Cancel c = this; c != null; c = c.parent) {
+                if (c.cancelled) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** the bounds learned so far, shared by every search */
+    private final TranspositionTable table;
+
+    /** where the early plies run */
+    private final ForkJoinPool pool;
+
+    /** how many plies below the root are searched in parallel */
+    private final int splitDepth;
+
+    /** every node searched, by any thread */
+    private final LongAdder nodes;
+
+    /** solved late positions, or null */
+    private Tablebase tablebase;
+
+    /**
+     * Creates a solver that searches on the common pool.
+     *
+     * @param tableBits the transposition table holds 2<sup>tableBits</sup>
+     *                  entries of 16 bytes each
+     */
+    public Solver(int tableBits) {
+        this(tableBits, ForkJoinPool.commonPool(), 4);
+    }
+
+    /**
+     * Creates a solver.
+     *
+     * @param tableBits the transposition table holds 2<sup>tableBits</sup>
+     *                  entries of 16 bytes each
+     * @param pool where the early plies are searched
+     * @param splitDepth how many plies below the root to search in
+     *                   parallel; 0 searches on one thread
+     */
+    public Solver(int tableBits, ForkJoinPool pool, int splitDepth) {
+        table = new TranspositionTable(tableBits);
+        this.pool = pool;
+        this.splitDepth = splitDepth;
+        nodes = new LongAdder();
+    }
+
+    /**
+     * Makes the solver look late positions up in a tablebase instead of
+     * searching them. Call it before solving anything.
+     *
+     * @param tablebase the tablebase, or null to always search
+     */
+    public void useTablebase(Tablebase tablebase) {
+        this.tablebase = tablebase;
+    }
+
+    /**
+     * Solves a position.
+     *
+     * @param position the position; it is not changed
+     * @return its exact value for the player to move
+     * @throws IllegalArgumentException If the game is already over.
+     */
+    public Solution solve(Position position) {
+        if (position.hasWon()) {
+            throw new IllegalArgumentException("The game is already won");
+        }
+        return new Solution(position, score(position));
+    }
+
+    /**
+     * Solves every move from a position, e.g. to show in a post-game review
+     * which moves would have won, drawn or lost.
+     *
+     * @param position the position; it is not changed
+     * @return for each column, the value of playing there for the player to
+     * move, or null if the column is full
+     * @throws IllegalArgumentException If the game is already over.
+     */
+    public Solution[] solveMoves(Position position) {
+        if (position.hasWon()) {
+            throw new IllegalArgumentException("The game is already won");
+        }
+        Solution[] solutions = new Solution[position.getCols()];
+        int size = position.getRows() * position.getCols();
+        for (int col = 0; col < solutions.length; col++) {
+            if (!position.canPlay(col)) {
+                continue;
+            }
+            int score;
+            if (position.isWinningMove(col)) {
+                score = (size + 1 - position.getMoves()) / 2;
+            } else {
+                Position after = new Position(position);
+                after.play(col);
+                score = after.isFull() ? 0 : -score(after);
+            }
+            solutions[col] = new Solution(position, score);
+        }
+        return solutions;
+    }
+
+    /**
+     * The number of nodes searched so far by this solver.
+     *
+     * @return the node count
+     */
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    /**
+     * Finds the exact score of a position that is not yet won by narrowing
+     * the range the score lies in with null-window searches.
+     *
+     * @param position the position
+     * @return the score
+     */
+    private int score(Position position) {
+        int size = position.getRows() * position.getCols();
+        int moves = position.getMoves();
+        if (position.isFull()) {
+            return 0;
+        }
+        if (position.canWinNext()) {
+            return (size + 1 - moves) / 2;
+        }
+        int known = probe(position);
+        if (known != Integer.MIN_VALUE) {
+            return known;
+        }
+        int min = -(size - moves) / 2;
+        int max = (size + 1 - moves) / 2;
+        while (min < max) {
+            int guess = min + (max - min) / 2;
+            // probe near 0 first: most positions are close to a draw
+            if (guess <= 0 && min / 2 < guess) {
+                guess = min / 2;
+            } else if (guess >= 0 && max / 2 > guess) {
+                guess = max / 2;
+            }
+            int score = pool.invoke(new Search(new Position(position),
+                    guess, guess + 1, splitDepth, new Cancel(null)));
+            if (score <= guess) {
+                max = score;
+            } else {
+                min = score;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Looks a position up in the tablebase, if there is one and the position
+     * is late enough to be in it.
+     *
+     * @param position the position
+     * @return its score, or {@link Integer#MIN_VALUE} if it is not known
+     */
+    private int probe(Position position) {
+        Tablebase base = tablebase;
+        if (base == null || position.getRows() * position.getCols() -
+                position.getMoves() > base.getEmpties()) {
+            return Integer.MIN_VALUE;
+        }
+        return base.score(position);
+    }
+
+    /**
+     * One negamax search of a node and everything below it, on its own copy
+     * of the position.
+     */
+    private final class Search extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        /** the position being searched, changed and restored as it goes */
+        private final Position position;
+
+        /** the window the score is wanted in */
+        private final int alpha, beta;
+
+        /** how many more plies to split across tasks */
+        private final int split;
+
+        /** whether this search is still needed */
+        private final Cancel cancel;
+
+        /** nodes searched by this task not yet added to the total */
+        private int count;
+
+        /** room to sort the moves of each node, by pieces on the board */
+        private long[][] moveBuffers;
+
+        /** the sort keys of those moves */
+        private int[][] keyBuffers;
+
+        /**
+         * Creates a search.
+         *
+         * @param position the position, owned by the search
+         * @param alpha the score the player to move is already sure of
+         * @param beta the score the opponent is already sure of
+         * @param split how many more plies to split across tasks
+         * @param cancel whether this search is still needed
+         */
+        Search(Position position, int alpha, int beta, int split,
+               Cancel cancel) {
+            this.position = position;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.split = split;
+            this.cancel = cancel;
+        }
+
+        @Override
+        protected Integer compute() {
+            int size = position.getRows() * position.getCols();
+            moveBuffers = new long[size + 1][position.getCols()];
+            keyBuffers = new int[size + 1][position.getCols()];
+            try {
+                return split > 0 ?
+                        parallel(alpha, beta) : negamax(alpha, beta);
+            } catch (Cancelled e) {
+                // the caller has already settled and ignores the result
+                return 0;
+            } finally {
+                nodes.add(count);
+            }
+        }
+
+        /**
+         * Searches a node, forking the brothers of its first move.
+         *
+         * @param alpha the score the player to move is already sure of
+         * @param beta the score the opponent is already sure of
+         * @return the score if strictly between alpha and beta, otherwise a
+         * bound on the same side of the window
+         */
+        private int parallel(int alpha, int beta) {
+            int[] window = { alpha, beta };
+            Integer settled = prepare(window);
+            if (settled != null) {
+                return settled;
+            }
+            alpha = window[0];
+            beta = window[1];
+            int moves = sortMoves();
+            long[] cells = moveBuffers[position.getMoves()];
+
+            int col = position.columnOf(cells[0]);
+            position.play(col);
+            Search first = new Search(position, -beta, -alpha, split - 1,
+                    cancel);
+            first.moveBuffers = moveBuffers;
+            first.keyBuffers = keyBuffers;
+            int best;
+            try {
+                best = -(split > 1 ? first.parallel(-beta, -alpha) :
+                        first.negamax(-beta, -alpha));
+            } finally {
+                count += first.count;
+                position.undo(col);
+            }
+            if (best >= beta) {
+                store(best, LOWER);
+                return best;
+            }
+            int start = alpha;
+            alpha = Math.max(alpha, best);
+
+            Cancel brothers = new Cancel(cancel);
+            List<Search> forked = new ArrayList<>();
+            for (int i = 1; i < moves; i++) {
+                Position child = new Position(position);
+                child.play(child.columnOf(cells[i]));
+                Search search = new Search(child, -beta, -alpha, split - 1,
+                        brothers);
+                search.fork();
+                forked.add(search);
+            }
+            for (Search search : forked) {
+                int score = -search.join();
+                if (brothers.cancelled) {
+                    continue;
+                }
+                if (cancel.isCancelled()) {
+                    throw CANCELLED;
+                }
+                if (score > best) {
+                    best = score;
+                }
+                if (score >= beta) {
+                    brothers.cancelled = true;
+                }
+            }
+            if (best >= beta) {
+                store(best, LOWER);
+                return best;
+            }
+            store(Math.max(best, alpha), best > start ? EXACT : UPPER);
+            return Math.max(best, alpha);
+        }
+
+        /**
+         * Searches a node on this thread alone.
+         *
+         * @param alpha the score the player to move is already sure of
+         * @param beta the score the opponent is already sure of
+         * @return the score if strictly between alpha and beta, otherwise a
+         * bound on the same side of the window
+         */
+        private int negamax(int alpha, int beta) {
+            if ((++count & (CHECK_INTERVAL - 1)) == 0 &&
+                    cancel.isCancelled()) {
+                throw CANCELLED;
+            }
+            int[] window = { alpha, beta };
+            Integer settled = prepare(window);
+            if (settled != null) {
+                return settled;
+            }
+            alpha = window[0];
+            beta = window[1];
+            int start = alpha;
+            int moves = sortMoves();
+            long[] cells = moveBuffers[position.getMoves()];
+            for (int i = 0; i < moves; i++) {
+                int col = position.columnOf(cells[i]);
+                position.play(col);
+                int score;
+                try {
+                    score = -negamax(-beta, -alpha);
+                } finally {
+                    position.undo(col);
+                }
+                if (score >= beta) {
+                    store(score, LOWER);
+                    return score;
+                }
+                if (score > alpha) {
+                    alpha = score;
+                }
+            }
+            store(alpha, alpha > start ? EXACT : UPPER);
+            return alpha;
+        }
+
+        /**
+         * The checks every node starts with: a position where every move
+         * loses or the board is about to fill up is settled at once, and
+         * otherwise the window is narrowed by the best and worst scores
+         * still possible and by what the table knows. A position in the
+         * tablebase is settled by its score there.
+         *
+         * @param window alpha and beta, narrowed in place
+         * @return the score if the node is already settled, or null
+         */
+        private Integer prepare(int[] window) {
+            int size = position.getRows() * position.getCols();
+            int moves = position.getMoves();
+            if (position.nonLosingMoves() == 0) {
+                return -(size - moves) / 2;
+            }
+            if (moves >= size - 2) {
+                return 0;
+            }
+            int known = probe(position);
+            if (known != Integer.MIN_VALUE) {
+                return known;
+            }
+
+            int alpha = window[0];
+            int beta = window[1];
+            // the opponent cannot win before its second move from here,
+            // nor can the player to move before its second
+            int min = -(size - 2 - moves) / 2;
+            int max = (size - 1 - moves) / 2;
+            alpha = Math.max(alpha, min);
+            beta = Math.min(beta, max);
+
+            long entry = table.get(position.getHash());
+            if (entry != 0) {
+                int score = TranspositionTable.score(entry);
+                switch (TranspositionTable.bound(entry)) {
+                    case EXACT:
+                        return score;
+                    case LOWER:
+                        alpha = Math.max(alpha, score);
+                        break;
+                    default:
+                        beta = Math.min(beta, score);
+                }
+            }
+            if (alpha >= beta) {
+                return alpha;
+            }
+            window[0] = alpha;
+            window[1] = beta;
+            return null;
+        }
+
+        /**
+         * Sorts the moves of the current node, most new threats first and
+         * centre first among equals, into this node's move buffer.
+         *
+         * @return the number of moves
+         */
+        private int sortMoves() {
+            long possible = position.nonLosingMoves();
+            long[] cells = moveBuffers[position.getMoves()];
+            int[] keys = keyBuffers[position.getMoves()];
+            int cols = position.getCols();
+            int count = 0;
+            for (int i = 0; i < cols; i++) {
+                int col = cols / 2 + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+                long cell = possible & position.column(col);
+                if (cell == 0) {
+                    continue;
+                }
+                int key = Long.bitCount(position.winningCells(
+                        position.getCurrent() | cell));
+                int j = count++;
+                for (; j > 0 && keys[j - 1] < key; j--) {
+                    cells[j] = cells[j - 1];
+                    keys[j] = keys[j - 1];
+                }
+                cells[j] = cell;
+                keys[j] = key;
+            }
+            return count;
+        }
+
+        /**
+         * Remembers what was learned about the current position.
+         *
+         * @param score the score or bound
+         * @param kind {@link TranspositionTable#EXACT},
+         *             {@link TranspositionTable#LOWER} or
+         *             {@link TranspositionTable#UPPER}
+         */
+        private void store(int score, int kind) {
+            int size = position.getRows() * position.getCols();
+            table.put(position.getHash(), score, size - position.getMoves(),
+                    kind, TranspositionTable.NO_MOVE);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package connectfour.ai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Solved scores for late positions, those with only a few empty cells left,
+ * read from a file written by {@link TablebaseGenerator}. Like an
+ * {@link OpeningBook}, the file is mapped into memory rather than read.<P>
+ *
+ * There are far more late positions than early ones, so the keys are
+ * compressed. They are sorted and cut into blocks of a fixed number of
+ * entries; an index holds the first key of each block and where the block
+ * starts, and within a block each entry is the difference from the
+ * previous key as a variable-length number (7 bits a byte, low bits first,
+ * high bit set on all but the last byte), followed by the score as a byte.
+ * Neighbouring late positions differ only in their top cells, so most
+ * entries take two to four bytes rather than nine. A lookup is a binary
+ * search over the index and a scan through one block.<P>
+ *
+ * The file holds a 32-byte header ({@link #MAGIC}, a byte each for the
+ * rows, columns and most empty cells, a spare byte, then as ints the entry
+ * count, the block count and the entries per block, and twelve spare
+ * bytes), then the index, 12 bytes per block (the first
+ * {@link Position#getCanonicalKey() canonical key} as an 8-byte big-endian
+ * number, and the block's offset from the end of the index as an int),
+ * then the blocks. Mirror images share one entry.
+ */
+public class Tablebase implements SolvedPositions {
+    /** identifies a tablebase file: "C4TB" */
+    public static final int MAGIC = 0x43345442;
+
+    /** the size of the header in bytes */
+    static final int HEADER_SIZE = 32;
+
+    /** the size of an index entry in bytes */
+    static final int INDEX_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+
+    /** the whole file */
+    private ByteBuffer base;
+
+    /** the number of rows of the board the tablebase is for */
+    private int rows;
+
+    /** the number of columns of the board the tablebase is for */
+    private int cols;
+
+    /** the most empty cells in any position in the tablebase */
+    private int empties;
+
+    /** the number of positions in the tablebase */
+    private int count;
+
+    /** the number of blocks */
+    private int blocks;
+
+    /** the number of entries in every block but the last */
+    private int blockSize;
+
+    /** where the blocks start */
+    private int data;
+
+    /**
+     * Maps a tablebase file.
+     *
+     * @param file the tablebase
+     * @return the tablebase
+     * @throws IOException If the file cannot be mapped or is not a
+     *                     tablebase.
+     */
+    public static Tablebase open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Tablebase(mapped);
+        }
+    }
+
+    /**
+     * Reads a tablebase's header.
+     *
+     * @param base the whole tablebase
+     * @throws IOException If it is not a tablebase.
+     */
+    private Tablebase(ByteBuffer base) throws IOException {
+        this.base = base.order(ByteOrder.BIG_ENDIAN);
+        if (base.capacity() < HEADER_SIZE || base.getInt(0) != MAGIC) {
+            throw new IOException("Not a tablebase");
+        }
+        rows = base.get(4);
+        cols = base.get(5);
+        empties = base.get(6);
+        count = base.getInt(8);
+        blocks = base.getInt(12);
+        blockSize = base.getInt(16);
+        data = HEADER_SIZE + blocks * INDEX_ENTRY_SIZE;
+        if (base.capacity() < data) {
+            throw new IOException("Truncated tablebase");
+        }
+    }
+
+    @Override
+    public int score(Position position) {
+        if (position.getRows() != rows || position.getCols() != cols ||
+                rows * cols - position.getMoves() > empties) {
+            return Integer.MIN_VALUE;
+        }
+        long key = position.getCanonicalKey();
+
+        // the last block starting at or before the key
+        int low = 0;
+        int high = blocks - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(base.getLong(
+                    HEADER_SIZE + middle * INDEX_ENTRY_SIZE), key) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (high < 0) {
+            return Integer.MIN_VALUE;
+        }
+
+        int entry = HEADER_SIZE + high * INDEX_ENTRY_SIZE;
+        long next = base.getLong(entry);
+        int at = data + base.getInt(entry + Long.BYTES);
+        int entries = Math.min(blockSize, count - high * blockSize);
+        for (int i = 0; i < entries; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = base.get(at++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            next += delta;
+            int order = Long.compareUnsigned(next, key);
+            if (order == 0) {
+                return base.get(at);
+            }
+            if (order > 0) {
+                break;
+            }
+            at++;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * The most empty cells in any position in the tablebase.
+     *
+     * @return the number of empty cells
+     */
+    public int getEmpties() {
+        return empties;
+    }
+
+    /**
+     * The number of positions in the tablebase.
+     *
+     * @return the position count
+     */
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,250 @@
+package connectfour.ai;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes a {@link Tablebase}: every position with at most a given number of
+ * empty cells that can be reached from a set of seed positions, one per
+ * mirror pair, solved exactly.<P>
+ *
+ * The positions are found by playing forward from the seeds until that few
+ * cells are left. Each of those frontier positions is then solved by plain
+ * exhaustive negamax, in parallel on the common pool, remembering the
+ * score of every position below it in a map shared by all threads, so that
+ * every position reached on the way is solved as well, and each only once.
+ * No pruning is needed: every position counts.<P>
+ *
+ * From the empty board this covers every reachable late position, which is
+ * practical on small boards. The full board has far too many, so there the
+ * seeds should be positions from real games, and the tablebase covers how
+ * those games could have ended.
+ */
+public class TablebaseGenerator {
+    /** the number of entries per block */
+    private static final int BLOCK_SIZE = 64;
+
+    /** the board's rows */
+    private int rows;
+
+    /** the board's columns */
+    private int cols;
+
+    /** the most empty cells in any position to include */
+    private int empties;
+
+    /** the canonical keys of the earlier positions played through */
+    private Set<Long> seen;
+
+    /** the positions where exactly the wanted number of cells are left */
+    private List<Position> frontier;
+
+    /** the score of every late position solved, by canonical key */
+    private Map<Long, Integer> scores;
+
+    /**
+     * Creates a generator.
+     *
+     * @param rows the board's rows
+     * @param cols the board's columns
+     * @param empties the most empty cells in any position to include
+     */
+    public TablebaseGenerator(int rows, int cols, int empties) {
+        this.rows = rows;
+        this.cols = cols;
+        this.empties = empties;
+    }
+
+    /**
+     * Generates the tablebase and writes it to a file.
+     *
+     * @param seeds the positions to play forward from
+     * @param file where to write the tablebase
+     * @throws IOException If the file cannot be written.
+     */
+    public void generate(List<Position> seeds, Path file) throws IOException {
+        seen = new HashSet<>();
+        frontier = new ArrayList<>();
+        scores = new ConcurrentHashMap<>();
+        for (Position seed : seeds) {
+            if (!seed.hasWon()) {
+                collect(new Position(seed));
+            }
+        }
+        long start = System.nanoTime();
+        frontier.parallelStream().forEach(this::solve);
+        System.out.printf("Solved %d positions from %d in %ds%n",
+                scores.size(), frontier.size(),
+                (System.nanoTime() - start) / 1_000_000_000);
+
+        long[] keys = new long[scores.size()];
+        int n = 0;
+        for (long key : scores.keySet()) {
+            keys[n++] = key;
+        }
+        BookGenerator.sortUnsigned(keys);
+
+        int blocks = (keys.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ByteBuffer index = ByteBuffer.allocate(Tablebase.HEADER_SIZE +
+                blocks * Tablebase.INDEX_ENTRY_SIZE);
+        index.putInt(Tablebase.MAGIC)
+                .put((byte) rows).put((byte) cols).put((byte) empties)
+                .put((byte) 0)
+                .putInt(keys.length)
+                .putInt(blocks)
+                .putInt(BLOCK_SIZE)
+                .position(Tablebase.HEADER_SIZE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long previous = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                index.putLong(keys[i]).putInt(data.size());
+                previous = keys[i];
+            }
+            long delta = keys[i] - previous;
+            while ((delta & ~0x7FL) != 0) {
+                data.write((int) (delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data.write((int) delta);
+            data.write(scores.get(keys[i]));
+            previous = keys[i];
+        }
+
+        byte[] blocked = data.toByteArray();
+        ByteBuffer out = ByteBuffer.allocate(index.capacity() +
+                blocked.length);
+        out.put(index.flip()).put(blocked).flip();
+        BookGenerator.write(file, out);
+        System.out.printf("Wrote %d bytes, %.1f per position%n",
+                out.capacity(), (double) out.capacity() / keys.length);
+    }
+
+    /**
+     * Plays forward from a position until few enough cells are left,
+     * skipping finished games and positions already seen in either
+     * orientation, and adds the late positions reached to the frontier.
+     *
+     * @param position the position, restored before returning
+     */
+    private void collect(Position position) {
+        if (position.isFull() || !seen.add(position.getCanonicalKey())) {
+            return;
+        }
+        if (rows * cols - position.getMoves() <= empties) {
+            frontier.add(new Position(position));
+            return;
+        }
+        for (int col = 0; col < cols; col++) {
+            if (position.canPlay(col) && !position.isWinningMove(col)) {
+                position.play(col);
+                collect(position);
+                position.undo(col);
+            }
+        }
+    }
+
+    /**
+     * Solves a late position and every position below it by exhaustive
+     * negamax.
+     *
+     * @param position the position, not yet won, restored before returning
+     * @return its score, as {@link Solver} would find it
+     */
+    private int solve(Position position) {
+        if (position.isFull()) {
+            return 0;
+        }
+        long key = position.getCanonicalKey();
+        Integer known = scores.get(key);
+        if (known != null) {
+            return known;
+        }
+        // the moves that pass up a win are still played, as the positions
+        // they lead to can be reached in a game and belong in the tablebase
+        int best = Integer.MIN_VALUE;
+        for (int col = 0; col < cols; col++) {
+            if (position.canPlay(col) && !position.isWinningMove(col)) {
+                position.play(col);
+                best = Math.max(best, -solve(position));
+                position.undo(col);
+            }
+        }
+        if (position.canWinNext()) {
+            best = (rows * cols + 1 - position.getMoves()) / 2;
+        }
+        scores.put(key, best);
+        return best;
+    }
+
+    /**
+     * Reads seed positions, one per line, each the columns played from the
+     * empty board as digits counting from 0. Blank lines are skipped.
+     *
+     * @param file the seed file
+     * @param rows the board's rows
+     * @param cols the board's columns
+     * @return the positions
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a line is not a legal game.
+     */
+    public static List<Position> readSeeds(Path file, int rows, int cols)
+            throws IOException {
+        List<Position> seeds = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            Position position = new Position(rows, cols);
+            for (char c : line.toCharArray()) {
+                int col = Character.digit(c, 10);
+                if (col < 0 || col >= cols || !position.canPlay(col) ||
+                        position.hasWon()) {
+                    throw new IllegalArgumentException("Invalid seed: " +
+                            line);
+                }
+                position.play(col);
+            }
+            seeds.add(position);
+        }
+        return seeds;
+    }
+
+    /**
+     * Generates a tablebase.
+     *
+     * @param args the tablebase file and the most empty cells, optionally
+     *             followed by the board's rows and columns (6 and 7 by
+     *             default) and a file of seed positions (the empty board by
+     *             default)
+     * @throws IOException If the seeds cannot be read or the tablebase
+     *                     cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 4 && args.length != 5) {
+            System.out.println("Usage: java TablebaseGenerator " +
+                    "<tablebase file> <empties> [<rows> <cols> " +
+                    "[<seed file>]]");
+            System.exit(1);
+        }
+        int empties = Integer.parseInt(args[1]);
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+        int cols = args.length > 2 ? Integer.parseInt(args[3]) : 7;
+        List<Position> seeds = args.length > 4 ?
+                readSeeds(Paths.get(args[4]), rows, cols) :
+                List.of(new Position(rows, cols));
+        new TablebaseGenerator(rows, cols, empties)
+                .generate(seeds, Paths.get(args[0]));
+    }
+}
@@ -0,0 +1,288 @@
+package connectfour.ai;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A transposition table that any number of threads can read and write at
+ * once without locks. Each slot is two words: the entry's data, and its key
+ * XORed with the data. A reader that catches a slot half-written by another
+ * thread finds the XOR no longer gives back its key and treats the slot as
+ * empty, so a torn entry is never mistaken for a real one.<P>
+ *
+ * The slots live off the heap, in direct buffers of up to 1 GB each, so a
+ * table of many gigabytes can be shared by every search in the process
+ * without the garbage collector ever scanning or copying it, and no entry
+ * is ever an object. Words are read and written through opaque
+ * {@link VarHandle} views of the buffers. The JVM caps direct memory at the
+ * heap size unless {@code -XX:MaxDirectMemorySize} says otherwise.<P>
+ *
+ * The data word packs the best move in bits 0-5 ({@link #NO_MOVE} if
+ * none), the {@link #EXACT bound} in bits 6-7, the depth searched in bits
+ * 8-15, the score in bits 16-31 and the {@link #newSearch() search
+ * generation} that stored it in bits 32-39. What to do when a slot is
+ * already taken is up to the table's {@link Replacement} policy.
+ */
+public class TranspositionTable {
+    /** the score is exact */
+    public static final int EXACT = 1;
+
+    /** the score is at least the one stored */
+    public static final int LOWER = 2;
+
+    /** the score is at most the one stored */
+    public static final int UPPER = 3;
+
+    /** stored in place of a best move when there is none */
+    public static final int NO_MOVE = 0x3F;
+
+    /**
+     * What to keep when an entry is stored in a slot that holds another
+     * position.
+     */
+    public enum Replacement {
+        /** the new entry always replaces the old */
+        ALWAYS,
+        /**
+         * the new entry replaces the old only if it was searched at least as
+         * deep, or the old one is left over from an earlier search
+         */
+        DEEPER,
+        /**
+         * each position has two slots, one kept as {@link #DEEPER} and one
+         * as {@link #ALWAYS}; an entry that cannot take the first takes the
+         * second, so deep results survive and recent ones are still kept
+         */
+        TWO_TIER
+    }
+
+    /** log<sub>2</sub> of the most bytes in one buffer */
+    private static final int BUFFER_SHIFT = 30;
+
+    /** the size of a slot in bytes */
+    private static final int SLOT_SIZE = 2 * Long.BYTES;
+
+    /** reads and writes single words without tearing or reordering costs */
+    private static final VarHandle WORDS =
+            MethodHandles.byteBufferViewVarHandle(long[].class,
+                    ByteOrder.nativeOrder());
+
+    /** the slots: key XOR data, then data */
+    private final ByteBuffer[] buffers;
+
+    /** bucket count - 1; the count is a power of two */
+    private final long mask;
+
+    /** what to keep when slots collide */
+    private final Replacement replacement;
+
+    /** the slots per bucket */
+    private final int ways;
+
+    /** the generation of the current search, in 8 bits */
+    private volatile int generation;
+
+    /**
+     * Creates an empty table that keeps deep and recent entries both.
+     *
+     * @param bits the table holds 2<sup>bits</sup> entries of 16 bytes each
+     */
+    public TranspositionTable(int bits) {
+        this(bits, Replacement.TWO_TIER);
+    }
+
+    /**
+     * Creates an empty table.
+     *
+     * @param bits the table holds 2<sup>bits</sup> entries of 16 bytes each
+     * @param replacement what to keep when slots collide
+     * @throws IllegalArgumentException If the table would hold more than
+     *                                  2<sup>36</sup> entries.
+     */
+    public TranspositionTable(int bits, Replacement replacement) {
+        if (bits < 1 || bits > 36) {
+            throw new IllegalArgumentException("Invalid table size: " + bits);
+        }
+        this.replacement = replacement;
+        ways = replacement == Replacement.TWO_TIER ? 2 : 1;
+        mask = (1L << bits) / ways - 1;
+        long bytes = (1L << bits) * SLOT_SIZE;
+        int size = (int) Math.min(bytes, 1L << BUFFER_SHIFT);
+        buffers = new ByteBuffer[(int) (bytes / size)];
+        for (int i = 0; i < buffers.length; i++) {
+            // opaque access needs the words aligned
+            buffers[i] = ByteBuffer.allocateDirect(size + Long.BYTES)
+                    .alignedSlice(Long.BYTES);
+        }
+    }
+
+    /**
+     * Starts a new search, so that the entries stored so far count as left
+     * over when choosing what to replace.
+     */
+    public void newSearch() {
+        generation = (generation + 1) & 0xFF;
+    }
+
+    /**
+     * Looks a position up.
+     *
+     * @param key the position's key
+     * @return the entry stored for it, or 0 if there is none
+     */
+    public long get(long key) {
+        long slot = (key & mask) * ways;
+        for (int way = 0; way < ways; way++) {
+            long data = read(slot + way, key);
+            if (data != 0) {
+                return data;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stores what was learned about a position, in the slot the
+     * {@link Replacement} policy picks.
+     *
+     * @param key the position's key
+     * @param score the score or bound, within &plusmn;32767
+     * @param depth how deep it was searched, at most 255
+     * @param bound {@link #EXACT}, {@link #LOWER} or {@link #UPPER}
+     * @param move the best move found, or {@link #NO_MOVE}
+     */
+    public void put(long key, int score, int depth, int bound, int move) {
+        int current = generation;
+        long data = (long) current << 32 |
+                (long) ((score + 0x8000) & 0xFFFF) << 16 |
+                (long) Math.min(depth, 0xFF) << 8 | bound << 6 | move;
+        long slot = (key & mask) * ways;
+        if (replacement != Replacement.ALWAYS) {
+            ByteBuffer buffer = buffer(slot);
+            int offset = offset(slot);
+            long check = (long) WORDS.getOpaque(buffer, offset);
+            long old = (long) WORDS.getOpaque(buffer, offset + Long.BYTES);
+            boolean keep = old != 0 && (check ^ old) != key &&
+                    generation(old) == current && depth(old) > depth;
+            if (!keep) {
+                write(slot, key, data);
+            } else if (replacement == Replacement.TWO_TIER) {
+                write(slot + 1, key, data);
+            }
+            return;
+        }
+        write(slot, key, data);
+    }
+
+    /**
+     * Empties the table. Must not race with other uses.
+     */
+    public void clear() {
+        for (ByteBuffer buffer : buffers) {
+            for (int i = 0; i < buffer.capacity(); i += Long.BYTES) {
+                buffer.putLong(i, 0);
+            }
+        }
+    }
+
+    /**
+     * The score held in an entry.
+     *
+     * @param entry the entry
+     * @return the score or bound
+     */
+    public static int score(long entry) {
+        return (int) (entry >>> 16 & 0xFFFF) - 0x8000;
+    }
+
+    /**
+     * The depth held in an entry.
+     *
+     * @param entry the entry
+     * @return the depth searched
+     */
+    public static int depth(long entry) {
+        return (int) (entry >>> 8 & 0xFF);
+    }
+
+    /**
+     * The kind of score held in an entry.
+     *
+     * @param entry the entry
+     * @return {@link #EXACT}, {@link #LOWER} or {@link #UPPER}
+     */
+    public static int bound(long entry) {
+        return (int) (entry >>> 6 & 0x3);
+    }
+
+    /**
+     * The best move held in an entry.
+     *
+     * @param entry the entry
+     * @return the column, or {@link #NO_MOVE}
+     */
+    public static int move(long entry) {
+        return (int) entry & NO_MOVE;
+    }
+
+    /**
+     * The search generation that stored an entry.
+     *
+     * @param entry the entry
+     * @return the generation, in 8 bits
+     */
+    private static int generation(long entry) {
+        return (int) (entry >>> 32 & 0xFF);
+    }
+
+    /**
+     * Reads a slot.
+     *
+     * @param slot the slot
+     * @param key the key expected there
+     * @return the data, or 0 if the slot holds another key or is torn
+     */
+    private long read(long slot, long key) {
+        ByteBuffer buffer = buffer(slot);
+        int offset = offset(slot);
+        long check = (long) WORDS.getOpaque(buffer, offset);
+        long data = (long) WORDS.getOpaque(buffer, offset + Long.BYTES);
+        return (check ^ data) == key ? data : 0;
+    }
+
+    /**
+     * Writes a slot.
+     *
+     * @param slot the slot
+     * @param key the key
+     * @param data the data; must not be 0
+     */
+    private void write(long slot, long key, long data) {
+        ByteBuffer buffer = buffer(slot);
+        int offset = offset(slot);
+        WORDS.setOpaque(buffer, offset, key ^ data);
+        WORDS.setOpaque(buffer, offset + Long.BYTES, data);
+    }
+
+    /**
+     * The buffer a slot is in.
+     *
+     * @param slot the slot
+     * @return the buffer
+     */
+    private ByteBuffer buffer(long slot) {
+        return buffers[(int) (slot * SLOT_SIZE >>> BUFFER_SHIFT)];
+    }
+
+    /**
+     * Where a slot starts within its buffer.
+     *
+     * @param slot the slot
+     * @return the offset in bytes
+     */
+    private static int offset(long slot) {
+        return (int) (slot * SLOT_SIZE & ((1L << BUFFER_SHIFT) - 1));
+    }
+}
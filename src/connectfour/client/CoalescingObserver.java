@@ -0,0 +1,75 @@
+package connectfour.client;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An observer that hands its updates to another observer on an
+ * {@link Executor}, so the subject's thread never waits for the other
+ * observer's work. Updates that arrive while one is still waiting to be
+ * delivered are merged into it: the other observer is told once, with the
+ * latest subject. At most one update is ever queued, however slow the
+ * other observer is, and since this is a "push model" observer that then
+ * queries the subject, it still sees the subject's latest state.<P>
+ *
+ * Given an executor that runs one task at a time, such as a single thread
+ * or the JavaFX application thread, the other observer is never called on
+ * two threads at once.
+ *
+ * @param <Subject> the type of object being observed
+ */
+public class CoalescingObserver<Subject> implements Observer<Subject> {
+    /** the observer the updates are for */
+    private final Observer<Subject> observer;
+
+    /** where the updates are delivered */
+    private final Executor executor;
+
+    /** the latest subject not yet delivered */
+    private Subject subject;
+
+    /** whether a delivery has been handed to the executor and not yet run */
+    private boolean queued;
+
+    /**
+     * Creates an observer that delivers to another.
+     *
+     * @param observer the observer to tell about updates
+     * @param executor runs the deliveries
+     */
+    public CoalescingObserver(Observer<Subject> observer, Executor executor) {
+        this.observer = observer;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a delivery of the subject, unless one is already queued, in
+     * which case that one will deliver this subject instead.
+     *
+     * @param subject the object that has changed
+     */
+    @Override
+    public void update(Subject subject) {
+        synchronized (this) {
+            this.subject = subject;
+            if (this.queued) {
+                return;
+            }
+            this.queued = true;
+        }
+        this.executor.execute(this::deliver);
+    }
+
+    /**
+     * Tells the other observer about the latest subject. Runs on the
+     * executor.
+     */
+    private void deliver() {
+        Subject latest;
+        synchronized (this) {
+            latest = this.subject;
+            this.subject = null;
+            this.queued = false;
+        }
+        this.observer.update(latest);
+    }
+}
@@ -1,11 +1,33 @@
 package connectfour.client;
 
+import connectfour.ConnectFourException;
+
+import java.nio.ByteBuffer;
 import java.util.EnumMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * The model for the connect four game.
+ * The model for the connect four game.<P>
+ *
+ * The model can be {@link #write(ByteBuffer) written} to a buffer in
+ * {@link #SNAPSHOT_SIZE} bytes and {@link #read(ByteBuffer) read} back, e.g.
+ * to carry a game over to another process, rather than serializing the
+ * board array.<P>
+ *
+ * The model is changed by the network client's listener thread and read by
+ * the views, so its methods are synchronized. Observers are told about a
+ * change after the model's lock is released, so an observer can never hold
+ * up a view reading the model. They are kept in a copy-on-write list, so
+ * they can be added while they are being told about a change. An observer
+ * added with {@link #addObserver(Observer)} is told on the listener thread
+ * and must be quick; one with slow work to do, such as waiting for the
+ * user, should be added with {@link #addAsyncObserver(Observer)} or
+ * {@link #addObserver(Observer, Executor)} instead.
  *
  * @author James Heloitis @ RIT CS
  * @author Sean Strout @ RIT CS
@@ -15,6 +37,8 @@ public class ConnectFourBoard {
     public final static int ROWS = 6;
     /** the number of columns */
     public final static int COLS = 7;
+    /** how many bytes {@link #write(ByteBuffer)} takes */
+    public final static int SNAPSHOT_SIZE = Long.BYTES + 1;
 
     /**
      * Used to indicate a move that has been made on the board,
@@ -73,8 +97,12 @@ public class ConnectFourBoard {
     /** the observers of this model */
     private List<Observer<ConnectFourBoard>> observers;
 
+    /** the threads of the asynchronous observers, stopped on close */
+    private List<ExecutorService> observerThreads;
+
     /** 
      * The view calls this method to add themselves as an observer of the model.
+     * The observer is told about changes on the thread that makes them.
      * 
      * @param observer the observer
      */
@@ -82,7 +110,49 @@ public class ConnectFourBoard {
         this.observers.add(observer);
     }
 
-    /** when the model changes, the observers are notified via their update() method */
+    /**
+     * Adds an observer that is told about changes by an executor, e.g.
+     * {@code Platform::runLater}. Changes made while one is waiting to be
+     * delivered are told as one.
+     *
+     * @param observer the observer
+     * @param executor runs the observer's updates
+     * @see CoalescingObserver
+     */
+    public void addObserver(Observer<ConnectFourBoard> observer,
+                            Executor executor) {
+        this.observers.add(new CoalescingObserver<>(observer, executor));
+    }
+
+    /**
+     * Adds an observer that is told about changes on a thread of its own,
+     * so it may take as long as it likes. Changes made while it is busy are
+     * told as one once it is done. The thread stops once the observer has
+     * been told the board is {@link #close() closed}.
+     *
+     * @param observer the observer
+     */
+    public void addAsyncObserver(Observer<ConnectFourBoard> observer) {
+        ExecutorService thread = Executors.newSingleThreadExecutor(task -> {
+            Thread t = new Thread(task, "observer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.observerThreads.add(thread);
+        addObserver(observer, task -> {
+            try {
+                thread.execute(task);
+            }
+            catch( RejectedExecutionException e ) {
+                // closed; the observer has already been told
+            }
+        });
+    }
+
+    /**
+     * When the model changes, the observers are notified via their update()
+     * method. Must not be called while holding the model's lock.
+     */
     private void alertObservers() {
         for (Observer<ConnectFourBoard> obs: this.observers ) {
             obs.update(this);
@@ -90,7 +160,8 @@ public class ConnectFourBoard {
     }
 
     public ConnectFourBoard() {
-        this.observers = new LinkedList<>();
+        this.observers = new CopyOnWriteArrayList<>();
+        this.observerThreads = new CopyOnWriteArrayList<>();
 
         this.board = new Move[COLS][ROWS];
         for(int col=0; col<COLS; col++) {
@@ -107,8 +178,10 @@ public class ConnectFourBoard {
         this.currentPiece = Move.PLAYER_ONE;    }
 
     public void error(String arguments) {
-        this.status = Status.ERROR;
-        this.status.setMessage(arguments);
+        synchronized (this) {
+            this.status = Status.ERROR;
+            this.status.setMessage(arguments);
+        }
         alertObservers();
     }
 
@@ -116,7 +189,7 @@ public class ConnectFourBoard {
      * Information for the UI
      * @return the number of additional moves until the board is full.
      */
-    public int getMovesLeft() {
+    public synchronized int getMovesLeft() {
         return this.movesLeft;
     }
 
@@ -124,14 +197,14 @@ public class ConnectFourBoard {
      * Can the local user make changes to the board?
      * @return true if the server has told this player it is its time to move
      */
-    public boolean isMyTurn() {
+    public synchronized boolean isMyTurn() {
         return this.myTurn;
     }
 
     /**
      * The user has chosen a move.
      */
-    public void didMyTurn() {
+    public synchronized void didMyTurn() {
         this.myTurn = false;
     }
 
@@ -139,7 +212,7 @@ public class ConnectFourBoard {
      * Get game status.
      * @return the Status object for the game
      */
-    public Status getStatus() {
+    public synchronized Status getStatus() {
         return this.status;
     }
 
@@ -149,7 +222,7 @@ public class ConnectFourBoard {
      * @param col column number of square
      * @return the player (or {@link Move#NONE}) at the given location
      */
-    public Move getContents(int row, int col) {
+    public synchronized Move getContents(int row, int col) {
         // fixed return statement
         return this.board[col][row];
     }
@@ -162,7 +235,7 @@ public class ConnectFourBoard {
      * @param col the column
      * @return true iff the column is not full
      */
-    public boolean isValidMove(int col) {
+    public synchronized boolean isValidMove(int col) {
         return (col >= 0 && col < COLS) &&
                 (this.board[col][0] == Move.NONE);
     }
@@ -171,7 +244,9 @@ public class ConnectFourBoard {
      * Called when the server notifies us to make a move.
      */
     public void makeMove() {
-        this.myTurn = true;
+        synchronized (this) {
+            this.myTurn = true;
+        }
         alertObservers();
     }
 
@@ -181,6 +256,135 @@ public class ConnectFourBoard {
      */
     public void moveMade(int col) {
         // gets called as a result of the message from the server.
+        synchronized (this) {
+            place(col);
+            this.myTurn = false;
+        }
+        alertObservers();
+    }
+
+    /**
+     * Called when the server sends a snapshot of the game, after the
+     * connection to it was resumed. The board is rebuilt from the moves in
+     * one pass, and the observers are told once, rather than once a move.
+     *
+     * @param columns every column moved in so far, in order
+     */
+    public void restore(int[] columns) {
+        synchronized (this) {
+            clear();
+            for (int col : columns) {
+                place(col);
+            }
+            // the server asks again if it is this player's turn
+            this.myTurn = false;
+        }
+        alertObservers();
+    }
+
+    /**
+     * Writes the model to a buffer: the pieces as one key, one bit per cell
+     * and column by column from the bottom up, set for the pieces of the
+     * player to move, with a marker bit on top of each column's pieces;
+     * then a byte with the status in the high bits and whether it is this
+     * player's turn in the low bit. The status message is not kept.
+     *
+     * @param out where to write it; needs {@link #SNAPSHOT_SIZE} bytes left
+     */
+    public synchronized void write(ByteBuffer out) {
+        long key = 0;
+        for (int col=0; col<COLS; col++) {
+            int bit = col * (ROWS+1);
+            for (int row=ROWS-1; row >= 0 && board[col][row] != Move.NONE;
+                 --row) {
+                if (board[col][row] == this.currentPiece) {
+                    key |= 1L << bit;
+                }
+                bit++;
+            }
+            key |= 1L << bit;
+        }
+        out.putLong(key);
+        out.put((byte) (this.status.ordinal() << 1 | (this.myTurn ? 1 : 0)));
+    }
+
+    /**
+     * Replaces the model with one {@link #write(ByteBuffer) written} to a
+     * buffer. The observers are told once.
+     *
+     * @param in where to read it from
+     * @throws ConnectFourException If there are too few bytes, or they are
+     * not a model.
+     */
+    public void read(ByteBuffer in) throws ConnectFourException {
+        synchronized (this) {
+            if (in.remaining() < SNAPSHOT_SIZE) {
+                throw new ConnectFourException("Snapshot cut short");
+            }
+            long key = in.getLong();
+            int flags = in.get() & 0xFF;
+            if ((flags >> 1) >= Status.values().length) {
+                throw new ConnectFourException("Invalid snapshot");
+            }
+
+            // the marker bit sits on top of each column's pieces
+            long columnBits = (1L << (ROWS+1)) - 1;
+            if (key >>> (COLS * (ROWS+1)) != 0) {
+                throw new ConnectFourException("Invalid snapshot");
+            }
+            int count = 0;
+            int mine = 0;
+            for (int col=0; col<COLS; col++) {
+                long bits = (key >>> (col * (ROWS+1))) & columnBits;
+                if (bits == 0) {
+                    throw new ConnectFourException("Invalid snapshot");
+                }
+                int height = Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
+                count += height;
+                mine += Long.bitCount(bits) - 1;
+            }
+            // the player to move has the fewer pieces, or as many
+            if (mine != count / 2) {
+                throw new ConnectFourException("Invalid snapshot");
+            }
+
+            clear();
+            this.movesLeft = COLS*ROWS - count;
+            this.currentPiece = count % 2 == 0 ?
+                    Move.PLAYER_ONE : Move.PLAYER_TWO;
+            for (int col=0; col<COLS; col++) {
+                long bits = (key >>> (col * (ROWS+1))) & columnBits;
+                int height = Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
+                for (int h=0; h<height; h++) {
+                    this.board[col][ROWS-1-h] = (bits & 1L << h) != 0 ?
+                            this.currentPiece : this.currentPiece.opponent();
+                }
+            }
+            this.status = Status.values()[flags >> 1];
+            this.myTurn = (flags & 1) != 0;
+        }
+        alertObservers();
+    }
+
+    /**
+     * Empties the board for a game rebuilt from the start.
+     */
+    private void clear() {
+        for(int col=0; col<COLS; col++) {
+            for(int row=0; row < ROWS; row++) {
+                board[col][row] = Move.NONE;
+            }
+        }
+        this.movesLeft = COLS*ROWS;
+        this.currentPiece = Move.PLAYER_ONE;
+    }
+
+    /**
+     * Drops the current piece into a column and passes the turn.
+     *
+     * @param col the column
+     */
+    private void place(int col) {
         // place piece on board
         this.movesLeft -= 1;
 
@@ -193,15 +397,15 @@ public class ConnectFourBoard {
         }
 
         this.currentPiece = this.currentPiece.opponent();
-        this.myTurn = false;
-        alertObservers();
     }
 
     /**
      * Called when the game has been won by this player.
      */
     public void gameWon() {
-        this.status = Status.I_WON;
+        synchronized (this) {
+            this.status = Status.I_WON;
+        }
         alertObservers();
     }
 
@@ -209,7 +413,9 @@ public class ConnectFourBoard {
      * Called when the game has been won by the other player.
      */
     public void gameLost() {
-        this.status = Status.I_LOST;
+        synchronized (this) {
+            this.status = Status.I_LOST;
+        }
         alertObservers();
     }
 
@@ -217,15 +423,21 @@ public class ConnectFourBoard {
      * Called when the game has been tied.
      */
     public void gameTied() {
-        this.status = Status.TIE;
+        synchronized (this) {
+            this.status = Status.TIE;
+        }
         alertObservers();
     }
 
     /**
-     * The user they may close at any time
+     * The user they may close at any time. The observers are told one last
+     * time, and then the asynchronous observers' threads stop.
      */
     public void close() {
         alertObservers();
+        for (ExecutorService thread : this.observerThreads) {
+            thread.shutdown();
+        }
     }
 
     private static EnumMap<Move, Character> cmap = new EnumMap<>(Move.class);
@@ -253,7 +465,7 @@ public class ConnectFourBoard {
      * @return the string representation
      */
     @Override
-    public String toString() {
+    public synchronized String toString() {
         StringBuilder builder = new StringBuilder();
 
         // build the top row with column numbers
@@ -1,13 +1,14 @@
 package connectfour.client;
 
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
 import connectfour.ConnectFourException;
-import connectfour.ConnectFourProtocol;
 
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
 
 import static connectfour.ConnectFourProtocol.*;
 
@@ -16,7 +17,13 @@ import static connectfour.ConnectFourProtocol.*;
  * Each of the two players in a game gets its own connection to the server.
  * This class represents the controller part of a model-view-controller
  * triumvirate, in that part of its purpose is to forward user actions
- * to the remote server.
+ * to the remote server.<P>
+ *
+ * If the server gives the client a session token, a dropped connection does
+ * not end the game: the client connects again and {@link
+ * connectfour.ConnectFourProtocol#RESUME resumes} its session, and the
+ * server's {@link connectfour.ConnectFourProtocol#SNAPSHOT snapshot} of the
+ * game so far brings the board up to date.
  *
  * @author James Heloitis @ RIT CS
  * @author Sean Strout @ RIT CS
@@ -36,16 +43,39 @@ public class ConnectFourNetworkClient {
         }
     }
 
+    /** how long to keep trying to resume after the connection drops, in ms */
+    private static final long RECONNECT_TIME = 30_000;
+
+    /** how long to wait before the first attempt to reconnect, in ms */
+    private static final long RETRY_MIN = 250;
+
+    /** the longest wait between attempts to reconnect, in ms */
+    private static final long RETRY_MAX = 4_000;
+
+    /** the name of the host running the server */
+    private String host;
+    /** the port the server listens on */
+    private int port;
+    /** whether to switch to binary framing if the server offers it */
+    private boolean binary;
+    /** the session token the server gave us, or null if it gave none */
+    private String token;
     /** client socket to communicate with server */
     private Socket clientSocket;
     /** used to read requests from the server */
-    private Scanner networkIn;
+    private InputStream networkIn;
     /** Used to write responses to the server. */
-    private PrintStream networkOut;
+    private OutputStream networkOut;
+    /** decodes requests from the server */
+    private ConnectFourCodec codec;
+    /** reused to encode each response to the server */
+    private ByteBuffer outBuffer;
     /** the model which keeps track of the game */
     private ConnectFourBoard board;
     /** sentinel loop used to control the main loop */
     private boolean go;
+    /** the thread listening for server messages, once started */
+    private Thread listener;
 
     /**
      * Accessor that takes multithreaded access into account
@@ -76,6 +106,21 @@ public class ConnectFourNetworkClient {
         this.stop();
     }
 
+    /**
+     * Hook up with a ConnectFour game server already running and waiting for
+     * two players to connect, using the text protocol.
+     *
+     * @param host  the name of the host running the server program
+     * @param port  the port of the server socket on which the server is listening
+     * @param board the local object holding the state of the game that
+     *              must be updated upon receiving server messages
+     * @throws ConnectFourException If there is a problem opening the connection
+     */
+    public ConnectFourNetworkClient(String host, int port, ConnectFourBoard board)
+            throws ConnectFourException {
+        this(host, port, board, false);
+    }
+
     /**
      * Hook up with a ConnectFour game server already running and waiting for
      * two players to connect. Because of the nature of the server
@@ -87,28 +132,139 @@ public class ConnectFourNetworkClient {
      * @param port  the port of the server socket on which the server is listening
      * @param board the local object holding the state of the game that
      *              must be updated upon receiving server messages
+     * @param binary whether to switch to compact binary framing if the
+     *               server offers it
      * @throws ConnectFourException If there is a problem opening the connection
      */
-    public ConnectFourNetworkClient(String host, int port, ConnectFourBoard board)
+    public ConnectFourNetworkClient(String host, int port, ConnectFourBoard board,
+                                    boolean binary)
             throws ConnectFourException {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.outBuffer = ByteBuffer.allocate(ConnectFourCodec.MAX_LINE);
+        this.board = board;
+        this.go = true;
         try {
-            this.clientSocket = new Socket(host, port);
-            this.networkIn = new Scanner(clientSocket.getInputStream());
-            this.networkOut = new PrintStream(clientSocket.getOutputStream());
-            this.board = board;
-            this.go = true;
+            this.open( null );
+            ConnectFourNetworkClient.dPrint("Connected to server " + this.clientSocket);
+        }
+        catch(IOException e) {
+            throw new ConnectFourException(e);
+        }
+    }
 
+    /**
+     * Opens a connection to the server and performs the handshake: blocks
+     * waiting for the CONNECT message, then answers a server that offers
+     * {@link connectfour.ConnectFourProtocol#RESUME} with one, and switches
+     * to binary framing if wanted.
+     *
+     * @param resume the session token to resume, or null for a new session,
+     *               whose token is kept
+     * @throws IOException If the server cannot be reached.
+     * @throws ConnectFourException If the server does not start with
+     *                              CONNECT, or cannot resume sessions.
+     */
+    private void open( String resume )
+            throws IOException, ConnectFourException {
+        Socket socket = new Socket( this.host, this.port );
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        ConnectFourCodec newCodec = new ConnectFourCodec();
+        ByteBuffer buffer = ByteBuffer.allocate( 2 * ConnectFourCodec.MAX_LINE );
+        try {
             // Block waiting for the CONNECT message from the server.
-            String request = this.networkIn.next();
-            String arguments = this.networkIn.nextLine();
-            if (!request.equals(ConnectFourProtocol.CONNECT )) {
+            Message request = newCodec.readMessage( in );
+            if (request != Message.CONNECT) {
                 throw new ConnectFourException("Expected CONNECT from server");
             }
-            ConnectFourNetworkClient.dPrint("Connected to server " + this.clientSocket);
+            String[] offers = newCodec.arguments().split( " +" );
+            boolean binaryOffered = false;
+            boolean resumeOffered = false;
+            String offeredToken = null;
+            for ( int i = 0; i < offers.length; ++i ) {
+                if ( offers[i].equals( BINARY ) ) {
+                    binaryOffered = true;
+                }
+                else if ( offers[i].equals( RESUME ) ) {
+                    resumeOffered = true;
+                    offeredToken = i + 1 < offers.length ? offers[i + 1] : null;
+                }
+            }
+            if ( resume != null ) {
+                if ( !resumeOffered ) {
+                    throw new ConnectFourException("Server cannot resume");
+                }
+                newCodec.encode( buffer, Message.RESUME, resume );
+            }
+            else if ( resumeOffered ) {
+                // nothing to resume; saves the server waiting to see
+                this.token = offeredToken;
+                newCodec.encode( buffer, Message.RESUME );
+            }
+            if ( this.binary && binaryOffered ) {
+                // from here on everything we send is binary; the server
+                // answers with its own BINARY when it switches too
+                newCodec.encode( buffer, Message.BINARY );
+            }
+            out.write( buffer.array(), 0, buffer.position() );
         }
-        catch(IOException e) {
-            throw new ConnectFourException(e);
+        catch( IOException | ConnectFourException e ) {
+            socket.close();
+            throw e;
+        }
+
+        synchronized ( this ) {
+            if ( !this.go ) {
+                // closed locally while we were connecting
+                socket.close();
+                throw new ConnectFourException("Client closed");
+            }
+            this.clientSocket = socket;
+            this.networkIn = in;
+            this.networkOut = out;
+            this.codec = newCodec;
+        }
+    }
+
+    /**
+     * Tries to resume the session on a new connection after the old one
+     * dropped, backing off between attempts, for up to
+     * {@link #RECONNECT_TIME}. The server answers a successful resume
+     * with a snapshot of the game. Never tries once the client has been
+     * closed locally.
+     *
+     * @return true if the session was resumed
+     */
+    private boolean reconnect() {
+        if ( this.token == null || !this.goodToGo() ) {
+            return false;
+        }
+        try {
+            this.clientSocket.close();
+        }
+        catch( IOException ioe ) {
+            // squash
         }
+        long deadline = System.currentTimeMillis() + RECONNECT_TIME;
+        long wait = RETRY_MIN;
+        while ( this.goodToGo() && System.currentTimeMillis() < deadline ) {
+            try {
+                Thread.sleep( wait );
+                this.open( this.token );
+                dPrint( "Resumed session " + this.token );
+                return true;
+            }
+            catch( IOException ioe ) {
+                // the server is not reachable yet
+                wait = Math.min( 2 * wait, RETRY_MAX );
+            }
+            catch( ConnectFourException | InterruptedException e ) {
+                return false;
+            }
+        }
+        return false;
     }
 
     /**
@@ -116,7 +272,11 @@ public class ConnectFourNetworkClient {
      * from the server.
      */
     public void startListener() {
-        new Thread(() -> this.run()).start();
+        Thread thread = new Thread(() -> this.run());
+        synchronized ( this ) {
+            this.listener = thread;
+        }
+        thread.start();
     }
 
     /**
@@ -130,20 +290,36 @@ public class ConnectFourNetworkClient {
     /**
      * A move has been made by one of the players
      *
-     * @param arguments string from the server's message that
-     *                  contains the row, then column where the
-     *                  player made the move
+     * @param column the column from the server's message where the player
+     *               made the move
      */
-    public void moveMade( String arguments ) {
-        ConnectFourNetworkClient.dPrint( '!' + MOVE_MADE + ',' + arguments );
-
-        String[] fields = arguments.trim().split( " " );
-        int column = Integer.parseInt(fields[0]);
+    public void moveMade( int column ) {
+        if ( ConnectFourNetworkClient.DEBUG ) {
+            dPrint( '!' + MOVE_MADE + ',' + column );
+        }
 
         // Update the board model.
         this.board.moveMade(column);
     }
 
+    /**
+     * The server has sent the game so far, after the session was resumed.
+     *
+     * @param arguments the game number followed by every column moved in,
+     *                  in order
+     */
+    public void snapshot( String arguments ) {
+        ConnectFourNetworkClient.dPrint( '!' + SNAPSHOT + ',' + arguments );
+        String[] parts = arguments.split( " +" );
+        int[] columns = new int[parts.length - 1];
+        for ( int i = 0; i < columns.length; ++i ) {
+            columns[i] = Integer.parseInt( parts[i + 1] );
+        }
+
+        // Rebuild the board model in one go.
+        this.board.restore( columns );
+    }
+
     /**
      * Called when the server sends a message saying that the
      * board has been won by this player. Ends the game.
@@ -180,11 +356,21 @@ public class ConnectFourNetworkClient {
 
     /**
      * This method should be called at the end of the game to
-     * close the client connection.
+     * close the client connection. The listener stops rather than
+     * reconnecting, even if it is waiting to try again.
      */
     public void close() {
+        this.stop();
+        Socket socket;
+        synchronized ( this ) {
+            socket = this.clientSocket;
+            if ( this.listener != null
+                    && this.listener != Thread.currentThread() ) {
+                this.listener.interrupt();
+            }
+        }
         try {
-            this.clientSocket.close();
+            socket.close();
         }
         catch( IOException ioe ) {
             // squash
@@ -197,8 +383,16 @@ public class ConnectFourNetworkClient {
      *
      * @param col the column
      */
-    public void sendMove(int col) {
-        this.networkOut.println( MOVE + " " + col );
+    public synchronized void sendMove(int col) {
+        this.codec.encode( this.outBuffer, Message.MOVE, col );
+        try {
+            this.networkOut.write( this.outBuffer.array(), 0,
+                    this.outBuffer.position() );
+        }
+        catch( IOException ioe ) {
+            // the listener thread will notice the lost connection
+        }
+        this.outBuffer.clear();
     }
 
 
@@ -210,16 +404,30 @@ public class ConnectFourNetworkClient {
     private void run() {
         while (this.goodToGo()) {
             try {
-                String request = this.networkIn.next();
-                String arguments = this.networkIn.nextLine().trim();
-                ConnectFourNetworkClient.dPrint( "Net message in = \"" + request + '"' );
+                Message request = this.codec.readMessage( this.networkIn );
+                if ( request == null ) {
+                    // Looks like the connection shut down.
+                    if ( this.reconnect() ) {
+                        continue;
+                    }
+                    if ( !this.goodToGo() ) {
+                        // closed locally; nothing was lost
+                        break;
+                    }
+                    this.error( "Lost connection to server." );
+                    this.stop();
+                    break;
+                }
+                if ( ConnectFourNetworkClient.DEBUG ) {
+                    dPrint( "Net message in = \"" + request + '"' );
+                }
 
                 switch ( request ) {
                     case MAKE_MOVE:
                         makeMove();
                         break;
                     case MOVE_MADE:
-                        moveMade( arguments );
+                        moveMade( this.codec.column() );
                         break;
                     case GAME_WON:
                         gameWon();
@@ -231,7 +439,13 @@ public class ConnectFourNetworkClient {
                         gameTied();
                         break;
                     case ERROR:
-                        error( arguments );
+                        error( this.codec.arguments() );
+                        break;
+                    case SNAPSHOT:
+                        snapshot( this.codec.arguments() );
+                        break;
+                    case BINARY:
+                        // the server has switched to binary frames
                         break;
                     default:
                         System.err.println("Unrecognized request: " + request);
@@ -239,8 +453,15 @@ public class ConnectFourNetworkClient {
                         break;
                 }
             }
-            catch( NoSuchElementException nse ) {
+            catch( IOException ioe ) {
                 // Looks like the connection shut down.
+                if ( this.reconnect() ) {
+                    continue;
+                }
+                if ( !this.goodToGo() ) {
+                    // closed locally; nothing was lost
+                    break;
+                }
                 this.error( "Lost connection to server." );
                 this.stop();
             }
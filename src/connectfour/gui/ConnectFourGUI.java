@@ -53,7 +53,9 @@ public class ConnectFourGUI extends Application implements Observer<ConnectFourB
             // TODO
             this.game = new ConnectFourBoard() ;
             this.client = new ConnectFourNetworkClient(host, port, this.game) ;
-            this.game.addObserver(this);
+            // updates arriving faster than the screen is redrawn are
+            // drawn once
+            this.game.addObserver(this, Platform::runLater);
         } catch(NumberFormatException e) {
             System.err.println(e);
             throw new RuntimeException(e);
@@ -180,18 +182,14 @@ public class ConnectFourGUI extends Application implements Observer<ConnectFourB
 
     /**
      * Called by the model, client.ConnectFourBoard, whenever there is a state change
-     * that needs to be updated by the GUI.
+     * that needs to be updated by the GUI. Always called on the JavaFX
+     * application thread.
      *
      * @param connectFourBoard
      */
     @Override
     public void update(ConnectFourBoard connectFourBoard) {
-        if ( Platform.isFxApplicationThread() ) {
-            this.refresh();
-        }
-        else {
-            Platform.runLater( () -> this.refresh() );
-        }
+        this.refresh();
     }
 
     /**
@@ -0,0 +1,273 @@
+package connectfour.journal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One game's entry in the {@link Journal}. The game reports each move and
+ * the result here; they are only collected, and the journal's writer
+ * thread takes whatever has been collected at each group commit and
+ * appends it as one record. Reporting never blocks on the disk, so the
+ * game is not held up by the journal. Every move made so far is kept, so
+ * that the game can be checkpointed whole at the start of a new segment.
+ * The session tokens of the players in each seat are kept too, so that
+ * only those players can resume the game after a restart.
+ */
+public class GameRecord {
+    /** the game is still being played */
+    public static final int IN_PROGRESS = 0;
+
+    /** the first player won */
+    public static final int PLAYER_ONE = 1;
+
+    /** the second player won */
+    public static final int PLAYER_TWO = 2;
+
+    /** the game was tied */
+    public static final int TIE = 3;
+
+    /** the game ended with an error, e.g. a lost connection */
+    public static final int ERROR = 4;
+
+    /** the most moves one game can have */
+    static final int MAX_MOVES = 63;
+
+    /** set in a record's move count when the seats' tokens follow */
+    static final int SEATED = 0x80;
+
+    /** the most bytes one record can take */
+    static final int MAX_SIZE = 10 + 1 + (3 * MAX_MOVES + 7) / 8 +
+            2 * Long.BYTES;
+
+    /** where the record is written, or null if it is not */
+    private Journal journal;
+
+    /** the number of the game */
+    private long id;
+
+    /** every move made so far */
+    private byte[] moves;
+
+    /** how many moves have been made */
+    private int count;
+
+    /** how many of them have been committed */
+    private int committed;
+
+    /** how the game stands */
+    private int status;
+
+    /** the session token of the player in each seat, or 0 if it has none */
+    private long[] seats;
+
+    /** whether the journal has been told there is something to commit */
+    private boolean queued;
+
+    /** set once the result has been committed */
+    private boolean closed;
+
+    /**
+     * Creates the entry of a new game.
+     *
+     * @param journal where to write it, or null not to
+     * @param id the number of the game
+     */
+    GameRecord(Journal journal, long id) {
+        this.journal = journal;
+        this.id = id;
+        moves = new byte[MAX_MOVES];
+        seats = new long[2];
+    }
+
+    /**
+     * The number of the game.
+     *
+     * @return the game number
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * The moves made so far, e.g. those recovered from the journal for a
+     * game that was still being played.
+     *
+     * @return the columns moved in, in order
+     */
+    public synchronized byte[] getMoves() {
+        return Arrays.copyOf(moves, count);
+    }
+
+    /**
+     * Records the session tokens of the game's players. Called before the
+     * first move, so that they are in the game's first record.
+     *
+     * @param playerOne the first player's token, or null if it has none
+     * @param playerTwo the second player's token, or null if it has none
+     */
+    public synchronized void seat(String playerOne, String playerTwo) {
+        seats[0] = playerOne == null ? 0 : Long.parseUnsignedLong(playerOne,
+                16);
+        seats[1] = playerTwo == null ? 0 : Long.parseUnsignedLong(playerTwo,
+                16);
+    }
+
+    /**
+     * The session token of the player in a seat, e.g. as recovered from the
+     * journal for a game that was still being played.
+     *
+     * @param seat 0 for the first player, 1 for the second
+     * @return the token, in hex, or null if the player had none
+     */
+    public synchronized String getToken(int seat) {
+        return seats[seat] == 0 ? null : String.format("%016x", seats[seat]);
+    }
+
+    /**
+     * Records a move.
+     *
+     * @param column the column moved in
+     */
+    public synchronized void moveMade(int column) {
+        if (journal == null || status != IN_PROGRESS || count == MAX_MOVES) {
+            return;
+        }
+        moves[count++] = (byte) column;
+        queue();
+    }
+
+    /**
+     * Records the result. Only the first result counts.
+     *
+     * @param outcome PLAYER_ONE or PLAYER_TWO for the winner, TIE, or ERROR
+     */
+    public synchronized void gameOver(String outcome) {
+        if (journal == null || status != IN_PROGRESS) {
+            return;
+        }
+        switch (outcome) {
+            case "PLAYER_ONE":
+                status = PLAYER_ONE;
+                break;
+            case "PLAYER_TWO":
+                status = PLAYER_TWO;
+                break;
+            case "TIE":
+                status = TIE;
+                break;
+            default:
+                status = ERROR;
+        }
+        queue();
+    }
+
+    /**
+     * Asks the journal to commit this record, unless it already will.
+     */
+    private void queue() {
+        if (!queued) {
+            queued = true;
+            journal.queue(this);
+        }
+    }
+
+    /**
+     * Adds moves read back from the journal, as already committed.
+     *
+     * @param columns the columns moved in
+     * @param n how many there are
+     */
+    synchronized void restore(byte[] columns, int n) {
+        n = Math.min(n, MAX_MOVES - count);
+        System.arraycopy(columns, 0, moves, count, n);
+        count += n;
+        committed = count;
+    }
+
+    /**
+     * Sets the seats' tokens read back from the journal.
+     *
+     * @param tokens the token of each seat, 0 for none
+     */
+    synchronized void restoreSeats(long[] tokens) {
+        seats[0] = tokens[0];
+        seats[1] = tokens[1];
+    }
+
+    /**
+     * Appends what has been collected since the last commit as one record.
+     * Called by the journal's writer thread.
+     *
+     * @param buffer where to append it; must have {@link #MAX_SIZE} bytes
+     *               left
+     * @return true if the record holds the result, so the game needs no
+     * more commits
+     */
+    synchronized boolean drain(ByteBuffer buffer) {
+        queued = false;
+        if (closed) {
+            return false;
+        }
+        closed = status != IN_PROGRESS;
+        encode(buffer, status, committed, count);
+        committed = count;
+        return closed;
+    }
+
+    /**
+     * Appends every move committed so far as one record, with the game
+     * still in progress, to checkpoint the game at the start of a segment.
+     * Called by the journal's writer thread.
+     *
+     * @param buffer where to append it; must have {@link #MAX_SIZE} bytes
+     *               left
+     */
+    synchronized void checkpoint(ByteBuffer buffer) {
+        if (!closed && committed > 0) {
+            encode(buffer, IN_PROGRESS, 0, committed);
+        }
+    }
+
+    /**
+     * Appends a record: the game number shifted left three bits with the
+     * status in the low bits, as a variable-length number (7 bits a byte,
+     * low bits first, high bit set on all but the last byte), a byte with
+     * the number of moves, and the columns, three bits each, packed low
+     * bits first. A record that starts from the first move, i.e. the
+     * game's first record or a checkpoint, also carries the seats' tokens
+     * as two longs after the columns, marked by {@link #SEATED} in the move
+     * count.
+     *
+     * @param buffer where to append it
+     * @param status the status to record
+     * @param from the first move to include
+     * @param to the move after the last to include
+     */
+    private void encode(ByteBuffer buffer, int status, int from, int to) {
+        long header = id << 3 | status;
+        while ((header & ~0x7FL) != 0) {
+            buffer.put((byte) (header & 0x7F | 0x80));
+            header >>>= 7;
+        }
+        buffer.put((byte) header);
+        boolean seated = from == 0 && (seats[0] | seats[1]) != 0;
+        buffer.put((byte) (to - from | (seated ? SEATED : 0)));
+        int bits = 0;
+        int filled = 0;
+        for (int i = from; i < to; i++) {
+            bits |= moves[i] << filled;
+            filled += 3;
+            if (filled >= 8) {
+                buffer.put((byte) bits);
+                bits >>>= 8;
+                filled -= 8;
+            }
+        }
+        if (filled > 0) {
+            buffer.put((byte) bits);
+        }
+        if (seated) {
+            buffer.putLong(seats[0]).putLong(seats[1]);
+        }
+    }
+}
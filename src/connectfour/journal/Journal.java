@@ -0,0 +1,503 @@
+package connectfour.journal;
+
+import connectfour.server.ConnectFour;
+import connectfour.server.ServerOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only record of every game the server plays, kept so that every
+ * game can be audited later, including games that were still being played
+ * when the server stopped.<P>
+ *
+ * Games report their moves to their {@link GameRecord}, and a single writer
+ * thread commits whatever has been reported every few milliseconds, in one
+ * write through a {@link FileChannel} for all games at once. Each commit is
+ * one batch: its length and a CRC32C checksum of its records, as two ints,
+ * and then one record per game with something new. A record takes a few
+ * bytes for the game number and a byte for the move count, and each move
+ * takes three bits; a game's first record also holds its players' session
+ * tokens, so a whole game costs about 36 bytes however it is split across
+ * commits.<P>
+ *
+ * The journal is a directory of segment files, {@code journal-N.c4j}, each
+ * starting with a header of {@link #MAGIC}, a byte each for the rows and
+ * columns, and two spare bytes. A new segment is started at the first
+ * commit after the current one is full, after a write fails, and each time
+ * the journal is opened; existing segments are never written to again.
+ * Whether commits are also forced to the disk is up to the journal's
+ * {@link Sync} policy. A batch cut short by a crash fails its checksum, and
+ * a reader stops there.<P>
+ *
+ * Every segment starts with a checkpoint: a record of every move so far of
+ * each game still being played, followed by an empty batch to mark the
+ * checkpoint complete. Recovering the games that were being played when
+ * the server stopped therefore takes only the newest segment with a
+ * complete checkpoint, however long the journal is. Opening a journal
+ * recovers them, and they can be carried on under the same game numbers.
+ */
+public class Journal implements AutoCloseable {
+    /** identifies a journal segment: "C4JN" */
+    public static final int MAGIC = 0x43344A4E;
+
+    /** the size of a segment's header in bytes */
+    static final int HEADER_SIZE = 8;
+
+    /** the size of a batch's length and checksum in bytes */
+    static final int BATCH_HEADER_SIZE = 2 * Integer.BYTES;
+
+    /** the most bytes in one batch */
+    private static final int BATCH_SIZE = 256 * 1024;
+
+    /** how often a {@link Sync#INTERVAL} journal is forced to the disk */
+    private static final long SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * When commits are forced from the operating system's cache to the
+     * disk. Commits that are not forced survive the server crashing, but
+     * not the machine.
+     */
+    public enum Sync {
+        /** never; the operating system writes the cache back when it likes */
+        NONE,
+        /** at most once a second, so a machine crash loses about a second */
+        INTERVAL,
+        /** after every commit, so a machine crash loses one commit at most */
+        ALWAYS
+    }
+
+    /** the directory of segments */
+    private Path directory;
+
+    /** when commits are forced to the disk */
+    private Sync sync;
+
+    /** how long the writer waits between commits, in milliseconds */
+    private long commitMillis;
+
+    /** the size at which a segment is full, in bytes */
+    private long segmentSize;
+
+    /** the records with something to commit */
+    private Queue<GameRecord> queued;
+
+    /** the records of games not yet over, by game number */
+    private Map<Long, GameRecord> live;
+
+    /** the games found unfinished when the journal was opened */
+    private List<GameRecord> unfinished;
+
+    /** where records are gathered into a batch */
+    private ByteBuffer batch;
+
+    /** checksums batches */
+    private CRC32C checksum;
+
+    /** the number of the current segment */
+    private long segment;
+
+    /** the current segment, or null if the next commit starts one */
+    private FileChannel channel;
+
+    /** when the current segment was last forced to the disk */
+    private long synced;
+
+    /** the highest game number in the journal when it was opened */
+    private long lastGameId;
+
+    /** commits in the background */
+    private Thread writer;
+
+    /** set when the journal is being closed */
+    private volatile boolean closing;
+
+    /**
+     * Opens the journal in a directory, creating it if need be. The games
+     * that were still being played are recovered, a new segment is started
+     * with a checkpoint of them, and the writer thread is started.
+     *
+     * @param directory the directory of segments
+     * @param sync when commits are forced to the disk
+     * @param commitMillis how long the writer waits between commits
+     * @param segmentSize the size at which a segment is full, in bytes
+     * @throws IOException If the directory cannot be read or created, or the
+     *                     new segment cannot be written.
+     */
+    public Journal(Path directory, Sync sync, long commitMillis,
+                   long segmentSize) throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+        this.commitMillis = commitMillis;
+        this.segmentSize = segmentSize;
+        queued = new ConcurrentLinkedQueue<>();
+        live = new ConcurrentHashMap<>();
+        batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+        checksum = new CRC32C();
+        Files.createDirectories(directory);
+        recover(segments(directory));
+        startSegment();
+        writer = new Thread(this::write, "journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Rebuilds the games that were still being played from the newest
+     * segment with a complete checkpoint, and finds the highest game number
+     * used so far. Newest segments without a header, left by a crash while
+     * starting them, are deleted first; like a segment with an incomplete
+     * checkpoint, they hold nothing, and the one before is used instead.
+     *
+     * @param segments the journal's segments, oldest first
+     * @throws IOException If a segment cannot be read.
+     */
+    private void recover(List<Path> segments) throws IOException {
+        while (!segments.isEmpty() &&
+                !JournalReader.hasHeader(segments.get(segments.size() - 1))) {
+            Path torn = segments.remove(segments.size() - 1);
+            System.err.println("Deleting journal segment cut short: " + torn);
+            Files.delete(torn);
+        }
+        if (!segments.isEmpty()) {
+            segment = number(segments.get(segments.size() - 1));
+        }
+        Map<Long, GameRecord> open = new HashMap<>();
+        long[] highest = new long[1];
+        JournalReader.Handler handler = (id, status, columns, count,
+                                         seats) -> {
+            highest[0] = Math.max(highest[0], id);
+            if (status == GameRecord.IN_PROGRESS) {
+                GameRecord record = open.computeIfAbsent(id,
+                        key -> new GameRecord(this, key));
+                record.restore(columns, count);
+                if (seats != null) {
+                    record.restoreSeats(seats);
+                }
+            } else {
+                open.remove(id);
+            }
+        };
+        int i = segments.size() - 1;
+        for (; i >= 0; i--) {
+            open.clear();
+            if (JournalReader.read(segments.get(i), true, handler)) {
+                break;
+            }
+        }
+        // games are numbered in order, so the highest number is in the
+        // newest segment that holds any records
+        for (i--; i >= 0 && highest[0] == 0; i--) {
+            JournalReader.read(segments.get(i), false, handler);
+        }
+        lastGameId = highest[0];
+        live.putAll(open);
+        unfinished = new ArrayList<>(open.values());
+        unfinished.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+    }
+
+    /**
+     * Opens the journal named by the server's options:
+     * <ul>
+     * <li>{@code --journal=DIR}: the directory of segments; without it
+     * games are not journaled</li>
+     * <li>{@code --journal-sync=none|interval|always}: the {@link Sync}
+     * policy (interval by default)</li>
+     * <li>{@code --journal-commit=MS}: the time between commits (10 by
+     * default)</li>
+     * <li>{@code --journal-segment=MB}: the size of a full segment (64 by
+     * default)</li>
+     * </ul>
+     *
+     * @param options the server's options
+     * @return the journal, or null if there is none
+     * @throws IOException If the directory cannot be read or created.
+     * @throws IllegalArgumentException If the policy is unknown.
+     */
+    public static Journal open(ServerOptions options) throws IOException {
+        if (!options.has("journal")) {
+            return null;
+        }
+        String sync = options.get("journal-sync", "interval");
+        switch (sync) {
+            case "none":
+            case "interval":
+            case "always":
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown journal sync policy: " + sync);
+        }
+        return new Journal(Paths.get(options.get("journal", "")),
+                Sync.valueOf(sync.toUpperCase()),
+                options.getLong("journal-commit", 10),
+                options.getLong("journal-segment", 64) << 20);
+    }
+
+    /**
+     * Gets the record of a new game.
+     *
+     * @param journal the journal, or null if games are not journaled
+     * @param gameId the number of the game
+     * @return the game's record; one that is not written anywhere if there
+     * is no journal
+     */
+    public static GameRecord open(Journal journal, long gameId) {
+        GameRecord record = new GameRecord(journal, gameId);
+        if (journal != null) {
+            journal.live.put(gameId, record);
+        }
+        return record;
+    }
+
+    /**
+     * The games that were still being played when the journal was last
+     * written, as recovered when it was opened. Their records carry on in
+     * this journal.
+     *
+     * @return the games' records, by game number
+     */
+    public List<GameRecord> getUnfinished() {
+        return unfinished;
+    }
+
+    /**
+     * The highest game number in the journal when it was opened, so that a
+     * restarted server can carry on numbering where it left off.
+     *
+     * @return the game number, or 0 if the journal was empty
+     */
+    public long getLastGameId() {
+        return lastGameId;
+    }
+
+    /**
+     * Lists the segments of a journal, oldest first.
+     *
+     * @param directory the journal's directory
+     * @return the segment files
+     * @throws IOException If the directory cannot be read.
+     */
+    public static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> number(file) >= 0).forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(number(a), number(b)));
+        return segments;
+    }
+
+    /**
+     * The number of a segment file.
+     *
+     * @param file the file
+     * @return its number, or -1 if it is not a segment
+     */
+    private static long number(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("journal-") || !name.endsWith(".c4j")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(8, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Asks for a record to be written at the next commit.
+     *
+     * @param record the record
+     */
+    void queue(GameRecord record) {
+        queued.add(record);
+    }
+
+    /**
+     * Commits until the journal is closed, and once more after that.
+     */
+    private void write() {
+        while (!closing) {
+            // parked rather than asleep, as an interrupt would close the
+            // channel in the middle of a write
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(commitMillis));
+            commit();
+        }
+        commit();
+        try {
+            endSegment();
+        } catch (IOException e) {
+            System.err.println("Failed to close the journal: " + e);
+        }
+    }
+
+    /**
+     * Writes every queued record, in as few batches as they fit in, and
+     * forces them to the disk if the policy says so. A full segment is
+     * replaced by a new one first. If a write fails, its batch is lost and
+     * the segment is abandoned.
+     */
+    private void commit() {
+        boolean wrote = false;
+        try {
+            if (channel == null || channel.position() >= segmentSize) {
+                endSegment();
+                startSegment();
+            }
+            batch.clear().position(BATCH_HEADER_SIZE);
+            GameRecord record;
+            while ((record = queued.poll()) != null) {
+                if (batch.remaining() < GameRecord.MAX_SIZE) {
+                    writeBatch();
+                    wrote = true;
+                }
+                if (record.drain(batch)) {
+                    live.remove(record.getId());
+                }
+            }
+            if (batch.position() > BATCH_HEADER_SIZE) {
+                writeBatch();
+                wrote = true;
+            }
+            long now = System.nanoTime();
+            if (wrote && (sync == Sync.ALWAYS ||
+                    sync == Sync.INTERVAL && now - synced >= SYNC_INTERVAL)) {
+                channel.force(false);
+                synced = now;
+            }
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * Seals the batch gathered so far with its length and checksum, writes
+     * it to the current segment, and starts an empty batch.
+     *
+     * @throws IOException If it cannot be written.
+     */
+    private void writeBatch() throws IOException {
+        batch.flip();
+        int length = batch.limit() - BATCH_HEADER_SIZE;
+        batch.position(BATCH_HEADER_SIZE);
+        checksum.reset();
+        checksum.update(batch);
+        batch.putInt(0, length).putInt(Integer.BYTES,
+                (int) checksum.getValue());
+        batch.position(0);
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear().position(BATCH_HEADER_SIZE);
+    }
+
+    /**
+     * Starts the next segment: writes its header and a checkpoint of every
+     * game not yet over, and forces them to the disk unless the policy is
+     * {@link Sync#NONE}.
+     *
+     * @throws IOException If it cannot be written.
+     */
+    private void startSegment() throws IOException {
+        segment++;
+        channel = FileChannel.open(directory.resolve(
+                String.format("journal-%08d.c4j", segment)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .put((byte) ConnectFour.ROWS)
+                .put((byte) ConnectFour.COLS);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        batch.clear().position(BATCH_HEADER_SIZE);
+        for (GameRecord record : live.values()) {
+            if (batch.remaining() < GameRecord.MAX_SIZE) {
+                writeBatch();
+            }
+            record.checkpoint(batch);
+        }
+        if (batch.position() > BATCH_HEADER_SIZE) {
+            writeBatch();
+        }
+        // the empty batch that marks the checkpoint complete
+        writeBatch();
+        if (sync != Sync.NONE) {
+            channel.force(false);
+        }
+        synced = System.nanoTime();
+    }
+
+    /**
+     * Closes the current segment, if there is one, forcing it to the disk
+     * unless the policy is {@link Sync#NONE}.
+     *
+     * @throws IOException If it cannot be forced.
+     */
+    private void endSegment() throws IOException {
+        if (channel != null) {
+            FileChannel ended = channel;
+            channel = null;
+            try {
+                if (sync != Sync.NONE) {
+                    ended.force(false);
+                }
+            } finally {
+                ended.close();
+            }
+        }
+    }
+
+    /**
+     * Gives up on the current segment after a failed write or force, so
+     * that the next commit starts a fresh one rather than appending after a
+     * batch that may be torn.
+     *
+     * @param e what went wrong
+     */
+    private void abandon(IOException e) {
+        System.err.println("Journal write failed: " + e);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Commits whatever has been reported, forces it to the disk unless the
+     * policy is {@link Sync#NONE}, and stops the writer. Records reported
+     * after this are lost.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package connectfour.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads a {@link Journal} back, record by record, in the order the records
+ * were committed. A game's moves are spread over as many records as there
+ * were commits while it was played, and its last record carries the
+ * result; a game with no result was still being played when the journal
+ * ends. Segments are mapped into memory and decoded as they are read, so
+ * no segment is ever copied whole.
+ */
+public class JournalReader {
+    /**
+     * Receives the records of a journal.
+     */
+    public interface Handler {
+        /**
+         * Called for each record.
+         *
+         * @param gameId the number of the game
+         * @param status {@link GameRecord#IN_PROGRESS}, or how the game
+         *               ended
+         * @param columns the columns moved in since the game's last record;
+         *                only valid during the call
+         * @param count how many moves there are
+         * @param seats the session token of the player in each seat, 0 for
+         *              none, if the record carries them, or else null; only
+         *              valid during the call
+         */
+        void record(long gameId, int status, byte[] columns, int count,
+                    long[] seats);
+    }
+
+    /** how games ended, by status */
+    private static final String[] OUTCOMES = {
+            "IN_PROGRESS", "PLAYER_ONE", "PLAYER_TWO", "TIE", "ERROR" };
+
+    /**
+     * Reads every segment of a journal, oldest first.
+     *
+     * @param directory the journal's directory
+     * @param handler receives each record
+     * @throws IOException If a segment cannot be read.
+     */
+    public static void readAll(Path directory, Handler handler)
+            throws IOException {
+        for (Path segment : Journal.segments(directory)) {
+            read(segment, false, handler);
+        }
+    }
+
+    /**
+     * Whether a file starts with a whole segment header. Only a crash
+     * between creating a segment and writing its header leaves one that
+     * does not.
+     *
+     * @param segment the segment file
+     * @return true if the header is there
+     * @throws IOException If the file cannot be read.
+     */
+    static boolean hasHeader(Path segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Journal.HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(segment)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is in or the file ends
+            }
+        }
+        return !header.hasRemaining() && header.getInt(0) == Journal.MAGIC;
+    }
+
+    /**
+     * Reads one segment, stopping at the first batch that is cut short or
+     * fails its checksum, as only a crash while writing leaves one. The
+     * records of the segment's checkpoint repeat moves already read from
+     * earlier segments, so they are only wanted when recovering from this
+     * segment alone.
+     *
+     * @param segment the segment file
+     * @param checkpoint whether to include the checkpoint's records
+     * @param handler receives each record
+     * @return true if the segment's checkpoint is complete
+     * @throws IOException If the file cannot be read or is not a segment.
+     */
+    public static boolean read(Path segment, boolean checkpoint,
+                               Handler handler) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(segment)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        if (in.remaining() < Journal.HEADER_SIZE ||
+                in.getInt() != Journal.MAGIC) {
+            throw new IOException("Not a journal segment: " + segment);
+        }
+        in.position(Journal.HEADER_SIZE);
+        CRC32C checksum = new CRC32C();
+        byte[] columns = new byte[GameRecord.MAX_MOVES];
+        long[] seats = new long[2];
+        boolean complete = false;
+        while (in.remaining() >= Journal.BATCH_HEADER_SIZE) {
+            int length = in.getInt();
+            int expected = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            ByteBuffer batch = in.slice();
+            batch.limit(length);
+            checksum.reset();
+            checksum.update(batch.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            in.position(in.position() + length);
+            if (length == 0) {
+                complete = true;
+            }
+            if (!complete && !checkpoint) {
+                continue;
+            }
+            while (batch.hasRemaining()) {
+                long header = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = batch.get();
+                    header |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                int count = batch.get() & 0xFF;
+                boolean seated = (count & GameRecord.SEATED) != 0;
+                count &= ~GameRecord.SEATED;
+                int bits = 0;
+                int filled = 0;
+                for (int i = 0; i < count; i++) {
+                    if (filled < 3) {
+                        bits |= (batch.get() & 0xFF) << filled;
+                        filled += 8;
+                    }
+                    columns[i] = (byte) (bits & 0x7);
+                    bits >>>= 3;
+                    filled -= 3;
+                }
+                if (seated) {
+                    seats[0] = batch.getLong();
+                    seats[1] = batch.getLong();
+                }
+                handler.record(header >>> 3, (int) (header & 0x7), columns,
+                        count, seated ? seats : null);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Prints the games in a journal as text, one per line in the order they
+     * ended, and then those still being played: the game number, how it
+     * ended, and the columns played.
+     *
+     * @param args the journal's directory
+     * @throws IOException If the journal cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: java JournalReader <journal directory>");
+            System.exit(1);
+        }
+        Map<Long, StringBuilder> playing = new LinkedHashMap<>();
+        readAll(Paths.get(args[0]), (id, status, columns, count, seats) -> {
+            StringBuilder moves = playing.computeIfAbsent(id,
+                    key -> new StringBuilder());
+            for (int i = 0; i < count; i++) {
+                moves.append(columns[i]);
+            }
+            if (status != GameRecord.IN_PROGRESS) {
+                playing.remove(id);
+                System.out.println(id + " " + OUTCOMES[status] + " " + moves);
+            }
+        });
+        playing.forEach((id, moves) ->
+                System.out.println(id + " " + OUTCOMES[0] + " " + moves));
+    }
+}
@@ -0,0 +1,211 @@
+package connectfour.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often each latency occurs, in buckets that are a fixed
+ * fraction of their value wide, so that percentiles from nanoseconds to
+ * minutes come out within about 3% in a few kilobytes of counters. Values
+ * below 64 get a bucket each; above that, each power of two is split into
+ * 32 equal buckets.<P>
+ *
+ * Any number of threads can record at once without locks; each value
+ * costs one atomic increment. Reading while others record gives a view
+ * that may be a few values behind. A histogram can be read live over JMX
+ * through {@link LatencyHistogramMBean}.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    /** log<sub>2</sub> of the buckets per power of two */
+    private static final int SUB_BITS = 5;
+
+    /** the buckets per power of two */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** the number of buckets needed for any non-negative long */
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    /** the count of values in each bucket */
+    private final AtomicLongArray counts;
+
+    /** the number of values recorded */
+    private final LongAdder count;
+
+    /** the sum of the values recorded */
+    private final LongAdder sum;
+
+    /** the largest value recorded */
+    private final LongAccumulator max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records one value.
+     *
+     * @param value the value, e.g. in nanoseconds; negative values count
+     *              as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value that a given fraction of the values are at or below.
+     *
+     * @param fraction the fraction, e.g. 0.99 for the 99th percentile
+     * @return the highest value in that value's bucket, but no more than
+     * the largest value recorded, or 0 if there are none
+     */
+    public long getPercentile(double fraction) {
+        return percentile(snapshot(), getMax(), fraction);
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    /**
+     * Forgets every value recorded. Values recorded at the same time may or
+     * may not be forgotten.
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Summarizes the histogram as milliseconds, e.g. for a report.
+     *
+     * @return the count, mean, 50th, 99th and 99.9th percentiles and the
+     * largest value, with values taken as nanoseconds
+     */
+    @Override
+    public String toString() {
+        // one snapshot, so the percentiles agree even while others record
+        long[] counts = snapshot();
+        long max = getMax();
+        return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms " +
+                        "p999=%.3fms max=%.3fms", getCount(), getMean() / 1e6,
+                percentile(counts, max, 0.5) / 1e6,
+                percentile(counts, max, 0.99) / 1e6,
+                percentile(counts, max, 0.999) / 1e6, max / 1e6);
+    }
+
+    /**
+     * Copies the bucket counts.
+     *
+     * @return the counts
+     */
+    private long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * The value that a given fraction of the values are at or below.
+     *
+     * @param counts the bucket counts
+     * @param max the largest value recorded
+     * @param fraction the fraction
+     * @return the highest value in that value's bucket, but no more than
+     * max, or 0 if there are no values
+     */
+    private static long percentile(long[] counts, long max, double fraction) {
+        long total = 0;
+        for (long n : counts) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The bucket a value falls in.
+     *
+     * @param value the value, not negative
+     * @return the bucket
+     */
+    private static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the top SUB_BITS + 1 bits pick the bucket within the power of two
+        int shift = Long.SIZE - SUB_BITS - 1 -
+                Long.numberOfLeadingZeros(value);
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) -
+                SUB_BUCKETS;
+    }
+
+    /**
+     * The highest value that falls in a bucket.
+     *
+     * @param bucket the bucket
+     * @return the value
+     */
+    private static long highest(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
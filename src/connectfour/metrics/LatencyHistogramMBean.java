@@ -0,0 +1,54 @@
+package connectfour.metrics;
+
+/**
+ * The management interface of a {@link LatencyHistogram}, so that a live
+ * view of it can be read over JMX. Every value is in nanoseconds.
+ */
+public interface LatencyHistogramMBean {
+    /**
+     * The number of values recorded.
+     *
+     * @return the count
+     */
+    long getCount();
+
+    /**
+     * The mean of the values recorded.
+     *
+     * @return the mean, or 0 if there are none
+     */
+    double getMean();
+
+    /**
+     * The median.
+     *
+     * @return the 50th percentile
+     */
+    long getP50();
+
+    /**
+     * The value 99% of the values are at or below.
+     *
+     * @return the 99th percentile
+     */
+    long getP99();
+
+    /**
+     * The value 99.9% of the values are at or below.
+     *
+     * @return the 99.9th percentile
+     */
+    long getP999();
+
+    /**
+     * The largest value recorded.
+     *
+     * @return the largest value, or 0 if there are none
+     */
+    long getMax();
+
+    /**
+     * Forgets every value recorded, e.g. to start a new measurement.
+     */
+    void reset();
+}
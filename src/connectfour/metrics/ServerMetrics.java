@@ -0,0 +1,253 @@
+package connectfour.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What the game server has been doing: counters of connections, games,
+ * moves and outcomes, and {@link LatencyHistogram histograms} of how long
+ * players think, how long the server takes over each move, and how long
+ * writes to players take.<P>
+ *
+ * There is one instance per process, registered with the platform MBean
+ * server as {@code connectfour:type=Server}, with the histograms beside it
+ * as {@code connectfour:type=Latency,name=ThinkTime}, {@code MoveTime} and
+ * {@code WriteTime}, so any JMX console can watch a live server. Counting
+ * is cheap enough to leave on: counters are striped {@link LongAdder}s, and
+ * each timing is two {@link System#nanoTime()} calls and a histogram
+ * update, none of which takes a lock.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    /** the one instance */
+    private static final ServerMetrics METRICS = new ServerMetrics();
+
+    static {
+        METRICS.register();
+    }
+
+    /** players connected */
+    private final LongAdder connections;
+
+    /** games started */
+    private final LongAdder gamesStarted;
+
+    /** games over, however they ended */
+    private final LongAdder gamesOver;
+
+    /** moves played */
+    private final LongAdder moves;
+
+    /** games won by each player, by index 0 and 1 */
+    private final LongAdder[] wins;
+
+    /** games tied */
+    private final LongAdder ties;
+
+    /** games ended by errors */
+    private final LongAdder errors;
+
+    /** from asking a player for a move to receiving it */
+    private final LatencyHistogram thinkTime;
+
+    /** from receiving a move to having sent it on to both players */
+    private final LatencyHistogram moveTime;
+
+    /** each write of queued messages to a player */
+    private final LatencyHistogram writeTime;
+
+    /** when {@link #getMovesPerSecond()} last took a sample */
+    private long sampledAt;
+
+    /** the move count at that sample */
+    private long sampledMoves;
+
+    /** the rate found then */
+    private double rate;
+
+    /**
+     * Creates empty metrics.
+     */
+    private ServerMetrics() {
+        connections = new LongAdder();
+        gamesStarted = new LongAdder();
+        gamesOver = new LongAdder();
+        moves = new LongAdder();
+        wins = new LongAdder[] { new LongAdder(), new LongAdder() };
+        ties = new LongAdder();
+        errors = new LongAdder();
+        thinkTime = new LatencyHistogram();
+        moveTime = new LatencyHistogram();
+        writeTime = new LatencyHistogram();
+        sampledAt = System.nanoTime();
+    }
+
+    /**
+     * The metrics of this process.
+     *
+     * @return the metrics
+     */
+    public static ServerMetrics get() {
+        return METRICS;
+    }
+
+    /**
+     * Makes the metrics visible over JMX. If that fails, e.g. because JMX is
+     * disabled, the metrics are still kept.
+     */
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this,
+                    new ObjectName("connectfour:type=Server"));
+            server.registerMBean(thinkTime, new ObjectName(
+                    "connectfour:type=Latency,name=ThinkTime"));
+            server.registerMBean(moveTime, new ObjectName(
+                    "connectfour:type=Latency,name=MoveTime"));
+            server.registerMBean(writeTime, new ObjectName(
+                    "connectfour:type=Latency,name=WriteTime"));
+        } catch (JMException | SecurityException e) {
+            System.err.println("Metrics are not available over JMX: " + e);
+        }
+    }
+
+    /**
+     * Counts a player connecting.
+     */
+    public void connected() {
+        connections.increment();
+    }
+
+    /**
+     * Counts a game starting.
+     */
+    public void gameStarted() {
+        gamesStarted.increment();
+    }
+
+    /**
+     * Counts a game ending.
+     *
+     * @param outcome {@code PLAYER_ONE} or {@code PLAYER_TWO} for the
+     *                winner, {@code TIE}, or {@code ERROR}
+     */
+    public void gameOver(String outcome) {
+        gamesOver.increment();
+        switch (outcome) {
+            case "PLAYER_ONE":
+                wins[0].increment();
+                break;
+            case "PLAYER_TWO":
+                wins[1].increment();
+                break;
+            case "TIE":
+                ties.increment();
+                break;
+            default:
+                errors.increment();
+        }
+    }
+
+    /**
+     * Counts a move, with the time the server took over it.
+     *
+     * @param nanos from receiving the move to having sent it on to both
+     *              players
+     */
+    public void movePlayed(long nanos) {
+        moves.increment();
+        moveTime.record(nanos);
+    }
+
+    /**
+     * The time players take over their moves, to record into.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getThinkTime() {
+        return thinkTime;
+    }
+
+    /**
+     * The time the server takes over each move.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getMoveTime() {
+        return moveTime;
+    }
+
+    /**
+     * The time writes to players take, to record into.
+     *
+     * @return the histogram, in nanoseconds
+     */
+    public LatencyHistogram getWriteTime() {
+        return writeTime;
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getGamesStarted() {
+        return gamesStarted.sum();
+    }
+
+    @Override
+    public long getActiveGames() {
+        return gamesStarted.sum() - gamesOver.sum();
+    }
+
+    @Override
+    public long getMoves() {
+        return moves.sum();
+    }
+
+    @Override
+    public synchronized double getMovesPerSecond() {
+        // sample at most once a second, so that frequent readers do not
+        // shrink each other's window
+        long now = System.nanoTime();
+        if (now - sampledAt >= 1_000_000_000L) {
+            long count = moves.sum();
+            rate = (count - sampledMoves) * 1e9 / (now - sampledAt);
+            sampledAt = now;
+            sampledMoves = count;
+        }
+        return rate;
+    }
+
+    @Override
+    public long getPlayerOneWins() {
+        return wins[0].sum();
+    }
+
+    @Override
+    public long getPlayerTwoWins() {
+        return wins[1].sum();
+    }
+
+    @Override
+    public long getTies() {
+        return ties.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d connections, %d games (%d active), " +
+                        "%d moves, %d/%d/%d won/won/tied, %d errors",
+                getConnections(), getGamesStarted(), getActiveGames(),
+                getMoves(), getPlayerOneWins(), getPlayerTwoWins(),
+                getTies(), getErrors());
+    }
+}
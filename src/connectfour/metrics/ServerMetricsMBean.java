@@ -0,0 +1,71 @@
+package connectfour.metrics;
+
+/**
+ * The management interface of {@link ServerMetrics}: the server's counters,
+ * read live over JMX.
+ */
+public interface ServerMetricsMBean {
+    /**
+     * The number of players that have connected.
+     *
+     * @return the connection count
+     */
+    long getConnections();
+
+    /**
+     * The number of games started.
+     *
+     * @return the game count
+     */
+    long getGamesStarted();
+
+    /**
+     * The number of games under way.
+     *
+     * @return the games started and not yet over
+     */
+    long getActiveGames();
+
+    /**
+     * The number of moves played in all games.
+     *
+     * @return the move count
+     */
+    long getMoves();
+
+    /**
+     * How many moves were played per second lately.
+     *
+     * @return the rate over the last second or more
+     */
+    double getMovesPerSecond();
+
+    /**
+     * The number of games won by the player who moved first.
+     *
+     * @return the game count
+     */
+    long getPlayerOneWins();
+
+    /**
+     * The number of games won by the player who moved second.
+     *
+     * @return the game count
+     */
+    long getPlayerTwoWins();
+
+    /**
+     * The number of games tied.
+     *
+     * @return the game count
+     */
+    long getTies();
+
+    /**
+     * The number of games ended by an error, such as a lost connection or an
+     * invalid move.
+     *
+     * @return the game count
+     */
+    long getErrors();
+}
@@ -43,8 +43,9 @@ public class ConnectFourPTUI extends ConsoleApplication implements Observer<Conn
             // create uninitialized board
             this.board = new ConnectFourBoard();
 
-            // add ourselves as an observer
-            this.board.addObserver(this);
+            // add ourselves as an observer, told on a thread of our own so
+            // that waiting for the user does not hold up the network
+            this.board.addAsyncObserver(this);
 
             // create the network connection
             this.serverConn = new ConnectFourNetworkClient(host, port, this.board);
@@ -58,12 +59,14 @@ public class ConnectFourPTUI extends ConsoleApplication implements Observer<Conn
     }
 
     /**
-     * Update all GUI Nodes to match the state of the model.
+     * Update all GUI Nodes to match the state of the model. Updates that
+     * arrive together are told as one, e.g. the opponent's move and the
+     * request for ours, so the board is always shown first.
      */
     private void refresh(ConnectFourBoard board) {
+        this.userOut.println(board);
+        this.userOut.println(board.getMovesLeft() + " moves left." );
         if (!board.isMyTurn()) {
-            this.userOut.println(board);
-            this.userOut.println(board.getMovesLeft() + " moves left." );
             ConnectFourBoard.Status status = board.getStatus();
             switch (status) {
                 case ERROR:
@@ -0,0 +1,127 @@
+package connectfour.server;
+
+import connectfour.ai.AlphaBeta;
+import connectfour.ai.OpeningBook;
+import connectfour.ai.Tablebase;
+import connectfour.ai.TranspositionTable;
+
+/**
+ * A built-in opponent that plays with an {@link AlphaBeta} engine instead of
+ * a network connection. It thinks on the game's own thread for at most a
+ * fixed budget per move, so it never waits on a socket and its cost is
+ * bounded however many bot games share the machine.
+ */
+public class BotPlayer implements Player {
+    /**
+     * The table bots share when none is given holds 2<sup>20</sup>
+     * entries, 16 MB for the whole process.
+     */
+    private static final int TABLE_BITS = 20;
+
+    /**
+     * Holds the default shared table, which is only allocated once the
+     * first bot needs it.
+     */
+    private static class DefaultTable {
+        private static final TranspositionTable TABLE =
+                new TranspositionTable(TABLE_BITS);
+    }
+
+    /** the engine, following the game */
+    private AlphaBeta engine;
+
+    /** how long to think about each move, in milliseconds */
+    private long budgetMillis;
+
+    /**
+     * Creates a bot for a standard game.
+     *
+     * @param budgetMillis how long to think about each move, in milliseconds
+     */
+    public BotPlayer(long budgetMillis) {
+        this(budgetMillis, null);
+    }
+
+    /**
+     * Creates a bot for a standard game that plays its openings from a
+     * book.
+     *
+     * @param budgetMillis how long to think about each move, in milliseconds
+     * @param book the opening book, shared by every bot, or null
+     */
+    public BotPlayer(long budgetMillis, OpeningBook book) {
+        this(budgetMillis, book, null);
+    }
+
+    /**
+     * Creates a bot for a standard game that plays its openings from a
+     * book and its endgames from a tablebase.
+     *
+     * @param budgetMillis how long to think about each move, in milliseconds
+     * @param book the opening book, shared by every bot, or null
+     * @param tablebase the tablebase, shared by every bot, or null
+     */
+    public BotPlayer(long budgetMillis, OpeningBook book,
+                     Tablebase tablebase) {
+        this(budgetMillis, book, tablebase, null);
+    }
+
+    /**
+     * Creates a bot for a standard game that searches with a transposition
+     * table shared by every bot, so that what one bot learns about a
+     * position helps the others.
+     *
+     * @param budgetMillis how long to think about each move, in milliseconds
+     * @param book the opening book, shared by every bot, or null
+     * @param tablebase the tablebase, shared by every bot, or null
+     * @param table the shared table, or null for the default one, which
+     *              every such bot shares
+     */
+    public BotPlayer(long budgetMillis, OpeningBook book,
+                     Tablebase tablebase, TranspositionTable table) {
+        this.budgetMillis = budgetMillis;
+        engine = new AlphaBeta(ConnectFour.ROWS, ConnectFour.COLS,
+                table != null ? table : DefaultTable.TABLE);
+        engine.useBook(book);
+        engine.useTablebase(tablebase);
+    }
+
+    @Override
+    public int makeMove() {
+        return engine.bestMove(budgetMillis);
+    }
+
+    @Override
+    public void abortMove() {
+        engine.stop();
+    }
+
+    @Override
+    public void moveMade(int column) {
+        engine.play(column);
+    }
+
+    @Override
+    public void gameWon() {
+    }
+
+    @Override
+    public void gameLost() {
+    }
+
+    @Override
+    public void gameTied() {
+    }
+
+    @Override
+    public void error(String message) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,18 +1,33 @@
 package connectfour.server;
 
-import java.util.Set;
 import connectfour.ConnectFourException;
+import connectfour.ai.Position;
+
+import java.nio.ByteBuffer;
 
 /**
- * A basic implementation of the Connect Four game.
+ * A basic implementation of the Connect Four game, kept as a pair of
+ * bitboards so moves and win checks are a handful of bit operations.<P>
+ *
+ * A game can be {@link #write(ByteBuffer) written} to a buffer in
+ * {@link #SNAPSHOT_SIZE} bytes and {@link #read(ByteBuffer) read} back, e.g.
+ * to hand a game in progress to another server process: the board size, the
+ * pieces as one {@link Position#getKey() key}, the line length needed to
+ * win, and the last column played. Whose turn it is and whether the game is
+ * over follow from those.<P>
+ *
+ * The line length needed to win is four unless given; games on boards too
+ * big for a bitboard are played with {@link ConnectK} instead.
  */
 public class ConnectFour {
     /** the number of rows */
     public final static int ROWS = 6;
     /** the number of columns */
     public final static int COLS = 7;
-    /** how big a line one needs to win */
+    /** how big a line one needs to win, unless told otherwise */
     public final static int WIN_LEN = 4;
+    /** how many bytes {@link #write(ByteBuffer)} takes */
+    public final static int SNAPSHOT_SIZE = 3 + Long.BYTES + 1;
 
     /**
      * Used to indicate a move that has been made on the board.
@@ -44,9 +59,34 @@ public class ConnectFour {
     private int cols;
 
     /**
-     * The board.
+     * How big a line one needs to win.
+     */
+    private int winLen;
+
+    /**
+     * The height of a column in bits: one bit per row plus an always-empty
+     * sentinel bit on top, which keeps lines from wrapping between columns.
+     */
+    private int colBits;
+
+    /**
+     * The pieces of each player as a bitboard, indexed by {@link #turn}. Bit
+     * {@code col * colBits + h} is set when the player owns the cell at
+     * height {@code h} (counted from the bottom) of column {@code col}.
+     */
+    private long[] pieces;
+
+    /**
+     * For each column, the index of the bit the next piece dropped there
+     * will occupy.
+     */
+    private int[] heights;
+
+    /**
+     * The bit distance between neighbouring cells along each line direction:
+     * vertical, horizontal, and the two diagonals.
      */
-    private Move[][] board;
+    private int[] strides;
 
     /**
      * Used to keep track of which player's turn it is; 0 for player 1, and 1
@@ -64,6 +104,11 @@ public class ConnectFour {
      */
     private int lastRow;
 
+    /**
+     * The number of pieces on the board.  Used for tie checking.
+     */
+    private int moves;
+
     /**
      * Creates a Connect Four game using a board with the standard number of
      * rows (6) and columns (7).
@@ -74,23 +119,83 @@ public class ConnectFour {
 
     /**
      * Creates a Connect Four game using a board with the specified number of
-     * rows and columns. Assumes that player 1 is the first to move.
+     * rows and columns. Assumes that player 1 is the first to move. Each
+     * column takes one bit per row plus a sentinel bit, so the board must
+     * fit in a {@code long}.
      *
      * @param rows The number of rows in the board.
      * @param cols The number of columns in the board.
+     * @throws IllegalArgumentException If the board does not fit in a
+     * bitboard.
      */
     public ConnectFour(int rows, int cols) {
+        this(rows, cols, WIN_LEN);
+    }
+
+    /**
+     * Creates a game using a board with the specified number of rows and
+     * columns, won by a line of the specified length, e.g. Connect Five on
+     * a 6x9 board. Assumes that player 1 is the first to move.
+     *
+     * @param rows The number of rows in the board.
+     * @param cols The number of columns in the board.
+     * @param winLen How big a line one needs to win.
+     * @throws IllegalArgumentException If the board does not fit in a
+     * bitboard, or the line length is less than 1 or too long to fit on the
+     * board either way.
+     */
+    public ConnectFour(int rows, int cols, int winLen) {
+        if(rows < 1 || cols < 1 || (long) (rows + 1) * cols > Long.SIZE) {
+            throw new IllegalArgumentException("Board too large: " + rows +
+                    "x" + cols);
+        }
+        // which also keeps it small enough for a snapshot's byte
+        if(winLen < 1 || winLen > Math.max(rows, cols)) {
+            throw new IllegalArgumentException("Invalid win length: " +
+                    winLen);
+        }
         this.rows = rows;
         this.cols = cols;
+        this.winLen = winLen;
 
-        board = new Move[cols][rows];
+        colBits = rows + 1;
+        strides = new int[] { 1, colBits, colBits - 1, colBits + 1 };
+        pieces = new long[2];
+        heights = new int[cols];
         for(int col=0; col<cols; col++) {
-            for(int row=0; row < rows; row++) {
-                board[col][row] = Move.NONE;
-            }
+            heights[col] = col * colBits;
         }
 
         turn = 0;
+        moves = 0;
+    }
+
+    /**
+     * Whether a piece can be dropped in a column.
+     *
+     * @param column The column.
+     * @return True if the column exists and is not full.
+     */
+    public boolean isValidMove(int column) {
+        return column >= 0 && column < cols &&
+                heights[column] < column * colBits + rows;
+    }
+
+    /**
+     * Finds the open column closest to the centre, the move played for a
+     * player who has run out of time.
+     *
+     * @return The column, or -1 if the board is full.
+     */
+    public int centerMostMove() {
+        for(int i=0; i<cols; i++) {
+            // centre, then alternately one further left and right
+            int column = cols / 2 + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+            if(isValidMove(column)) {
+                return column;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -102,167 +207,256 @@ public class ConnectFour {
      * @throws ConnectFourException If the move is invalid for any reason.
      */
     public void makeMove(int column) throws ConnectFourException {
-        Move move = turn == 0 ? Move.PLAYER_ONE : Move.PLAYER_TWO;
-
         if(column < 0 || column >= cols) {
             throw new ConnectFourException("Invalid column");
         }
-        else if(board[column][0] != Move.NONE) {
+        else if(heights[column] == column * colBits + rows) {
             throw new ConnectFourException("Column full!");
         }
         else {
-            int dropTo = 0;
-            for(int r=1; r<rows && board[column][r] == Move.NONE; r++) {
-                dropTo = r;
-            }
-            board[column][dropTo] = move;
+            int bit = heights[column]++;
+            pieces[turn] |= 1L << bit;
 
             turn = turn ^ 1;
             lastCol = column;
-            lastRow = dropTo;
+            lastRow = rows - 1 - (bit - column * colBits);
+            moves++;
         }
     }
 
-    private class C_R {
-        public final int c, r;
-        public C_R( int c, int r ) { this.c = c; this.r = r; }
-        public C_R advance( int scale, C_R dir ) {
-            return new C_R( this.c + scale * dir.c, this.r + scale * dir.r );
+    /**
+     * Returns true if the game is currently in a winning state. Can be used to
+     * determine if the most recent move won the game (and therefore the player
+     * that made the move has won).
+     *
+     * @return True if the game is in a winning state. False otherwise.
+     */
+    public boolean hasWonGame() {
+        if(moves == 0) {
+            return false;
         }
-        public boolean inBounds() {
-            return
-                this.c >= 0 && this.c < COLS && this.r >= 0 && this.r < ROWS;
+        // only the player who just moved can have completed a line, and
+        // only a line through the piece they just placed
+        long board = pieces[turn ^ 1];
+        int bit = lastCol * colBits + rows - 1 - lastRow;
+        for(int stride : strides) {
+            int count = 1 + countRun(board, bit, stride) +
+                    countRun(board, bit, -stride);
+            if(count >= winLen) {
+                return true;
+            }
         }
-        public Move contents() {
-            return ConnectFour.this.board[ this.c ][ this.r ];
+        return false;
+    }
+
+    /**
+     * Counts the pieces in an unbroken run starting next to a bit and going
+     * in one direction. The sentinel bits stop runs at the column edges.
+     *
+     * @param board the bitboard of one player
+     * @param bit the index of the starting bit, which is not counted
+     * @param step the bit distance to the next cell in the run
+     * @return the number of consecutive pieces found, at most one less
+     * than the win length
+     */
+    private int countRun(long board, int bit, int step) {
+        int limit = cols * colBits;
+        int count = 0;
+        for(int i=bit+step; count<winLen-1 && i>=0 && i<limit &&
+                (board & (1L << i)) != 0; i+=step) {
+            count++;
         }
+        return count;
+    }
+
+    /**
+     * Checks to see if the game is tied - no NONE moves left in board.  This
+     * is called after hasGameWon.
+     *
+     * @return whether game is tied or not
+     */
+    public boolean hasTiedGame() {
+        return moves == rows * cols;
     }
 
-    private Set< C_R > DIRS = Set.of(
-            new C_R( -1, -1), new C_R( -1, 0), new C_R( -1, 1), new C_R( 0, -1),
-            new C_R( 0, 1), new C_R( 1, -1), new C_R( 1, 0), new C_R( 1, 1)
-    );
+    /**
+     * How many moves have been made, which also tells whose turn it is.
+     *
+     * @return the number of pieces on the board
+     */
+    public int getMoveCount() {
+        return moves;
+    }
 
-    public boolean hasWonGame() {
-        for ( int c = 0; c < COLS; ++c ) {
-            for ( int r = 0; r < ROWS; ++r ) {
-                C_R start = new C_R( c, r );
-                Move here = start.contents();
-                if ( here == Move.NONE ) continue; // NONE can't win :-)
-                for ( C_R dir: DIRS ) {
-                    C_R end = start.advance( WIN_LEN-1, dir );
-                    if ( end.inBounds() ) {
-                        boolean goodOne = true;
-                        for ( int delta = 1; delta < WIN_LEN; ++delta ) {
-                            if ( start.advance( delta, dir ).contents() != here ) {
-                                goodOne = false;
-                                break;
-                            }
-                        }
-                        if ( goodOne )return true;
-                    }
-                }
-            }
+    /**
+     * What is at this square?
+     *
+     * @param row row number of square, 0 being the top row
+     * @param col column number of square
+     * @return the player (or {@link Move#NONE}) at the given location
+     */
+    public Move getContents(int row, int col) {
+        long bit = 1L << (col * colBits + rows - 1 - row);
+        if((pieces[0] & bit) != 0) {
+            return Move.PLAYER_ONE;
         }
-        return false;
+        else if((pieces[1] & bit) != 0) {
+            return Move.PLAYER_TWO;
+        }
+        return Move.NONE;
     }
 
     /**
-     * Returns true if the game is currently in a winning state. Can be used to
-     * determine if the most recent move won the game (and therefore the player
-     * that made the move has won).
+     * How big a line one needs to win this game.
      *
-     * @return True if the game is in a winning state. False otherwise.
+     * @return the line length
      */
-    public boolean hasWonGame_old() {
-        Move player = board[lastCol][lastRow];
-
-          // check left horizontal
-        if (this.lastCol >= 3) {
-            int count = 1;
-            for (int col=this.lastCol-1; col>this.lastCol-4; --col) {
-                if (board[col][lastRow] == player) {
-                    ++count;
-                }
-            }
-            if (count == 4) {
-                return true;
-            }
+    public int getWinLength() {
+        return winLen;
+    }
+
+    /**
+     * Copies the game into a {@link Position}, e.g. to solve it. Both keep
+     * their pieces in the same bit layout. Positions are always won by a
+     * line of {@link #WIN_LEN}.
+     *
+     * @return the position, with the same player to move
+     */
+    public Position toPosition() {
+        return new Position(rows, cols, pieces[turn],
+                pieces[0] | pieces[1]);
+    }
+
+    /**
+     * Writes the game to a buffer, straight from its bitboards: a byte each
+     * for the rows and columns, the pieces as a key like
+     * {@link Position#getKey()}'s (the pieces of the player to move, plus
+     * every column's pieces with a marker bit on top), a byte for the line
+     * length needed to win, and the last column played, or -1 before the
+     * first move.
+     *
+     * @param out where to write it; needs {@link #SNAPSHOT_SIZE} bytes left
+     */
+    public void write(ByteBuffer out) {
+        long key = pieces[turn] + (pieces[0] | pieces[1]);
+        for(int col=0; col<cols; col++) {
+            key += 1L << (col * colBits);
         }
+        out.put((byte) rows);
+        out.put((byte) cols);
+        out.putLong(key);
+        out.put((byte) winLen);
+        out.put((byte) (moves == 0 ? -1 : lastCol));
+    }
 
-        // check right horizontal
-        if (this.lastCol <= 3) {
-            int count = 1;
-            for (int col=this.lastCol+1; col>this.lastCol+4; ++col) {
-                if (board[col][lastRow] == player) {
-                    ++count;
-                }
-            }
-            if (count == 4) {
-                return true;
-            }
+    /**
+     * Reads a game {@link #write(ByteBuffer) written} to a buffer, straight
+     * into a new game's bitboards. The game must be one that could have
+     * been played: the players' piece counts differ by no more than the
+     * turn allows, the last column played is topped by the piece of the
+     * player who moved last, and no line was completed before that piece.
+     *
+     * @param in where to read it from
+     * @return the game
+     * @throws ConnectFourException If there are too few bytes, or they are
+     * not a game that could have been played.
+     */
+    public static ConnectFour read(ByteBuffer in) throws ConnectFourException {
+        if(in.remaining() < SNAPSHOT_SIZE) {
+            throw new ConnectFourException("Snapshot cut short");
         }
+        int rows = in.get();
+        int cols = in.get();
+        long key = in.getLong();
+        int winLen = in.get();
+        int last = in.get();
 
-        // check vertically down
-        if (this.lastRow <=2) {
-            int count = 1;
-            for (int row=this.lastRow+1; row<this.lastRow+4; ++row) {
-                if (board[this.lastCol][row] == player) {
-                    ++count;
-                }
-            }
-            if (count == 4) {
-                return true;
+        ConnectFour game;
+        try {
+            game = new ConnectFour(rows, cols, winLen);
+        }
+        catch(IllegalArgumentException e) {
+            throw new ConnectFourException("Invalid snapshot", e);
+        }
+        int colBits = game.colBits;
+        if(cols * colBits < Long.SIZE && key >>> (cols * colBits) != 0) {
+            // bits past the last column
+            throw new ConnectFourException("Invalid snapshot");
+        }
+        long columnBits = colBits == Long.SIZE ? -1L : (1L << colBits) - 1;
+        long current = 0;
+        long mask = 0;
+        for(int col=0; col<cols; col++) {
+            long bits = (key >>> (col * colBits)) & columnBits;
+            if(bits == 0) {
+                throw new ConnectFourException("Invalid snapshot");
             }
+            // the marker bit sits on top of the column's pieces
+            int height = Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
+            long below = (1L << height) - 1;
+            mask |= below << (col * colBits);
+            current |= (bits & below) << (col * colBits);
+            game.heights[col] = col * colBits + height;
         }
 
-        // check diagonally to left
-        if (this.lastRow <= 2 && this.lastCol >= 3) {
-            int count = 1;
-            int col = this.lastCol - 1;
-            for (int row = this.lastRow + 1; row < this.lastRow + 4; ++row) {
-                if (board[col][row] == player) {
-                    --col;
-                    ++count;
-                }
-            }
-            if (count == 4) {
-                return true;
+        game.moves = Long.bitCount(mask);
+        game.turn = game.moves & 1;
+        game.pieces[game.turn] = current;
+        game.pieces[game.turn ^ 1] = mask ^ current;
+        // player one moves first, so has the extra piece on odd turns
+        if(Long.bitCount(game.pieces[0]) - Long.bitCount(game.pieces[1]) !=
+                game.turn) {
+            throw new ConnectFourException("Invalid snapshot");
+        }
+        if(game.moves == 0) {
+            if(last != -1) {
+                throw new ConnectFourException("Invalid snapshot");
             }
         }
-
-        // check diagonally to right
-        if (this.lastRow <= 2 && this.lastCol <= 3) {
-            int count = 1;
-            int col = this.lastCol + 1;
-            for (int row = this.lastRow + 1; row < this.lastRow + 4; ++row) {
-                if (board[col][row] == player) {
-                    ++col;
-                    ++count;
-                }
+        else {
+            // the last piece played tops its column and is the opponent's
+            if(last < 0 || last >= cols ||
+                    game.heights[last] == last * colBits ||
+                    (game.pieces[game.turn ^ 1] &
+                            1L << (game.heights[last] - 1)) == 0) {
+                throw new ConnectFourException("Invalid snapshot");
             }
-            if (count == 4) {
-                return true;
+            game.lastCol = last;
+            game.lastRow = rows - 1 - (game.heights[last] - 1 - last * colBits);
+            // the game ends at the first line, so only the last piece can
+            // have completed one
+            long before = game.pieces[game.turn ^ 1] &
+                    ~(1L << (game.heights[last] - 1));
+            if(game.hasLine(game.pieces[game.turn]) || game.hasLine(before)) {
+                throw new ConnectFourException("Invalid snapshot");
             }
         }
-        return false;
+        return game;
     }
 
     /**
-     * Checks to see if the game is tied - no NONE moves left in board.  This
-     * is called after hasGameWon.
+     * Checks a player's pieces for a line of the win length anywhere on
+     * the board. The sentinel bits keep lines from wrapping between
+     * columns.
      *
-     * @return whether game is tied or not
+     * @param board the bitboard of one player
+     * @return whether there is a line
      */
-    public boolean hasTiedGame() {
-        for (int row=0; row<rows; ++row) {
-            for (int col=0; col<cols; ++col) {
-                if (board[col][row] == Move.NONE) {
-                    return false;
-                }
+    private boolean hasLine(long board) {
+        for(int stride : strides) {
+            if((long) (winLen - 1) * stride >= Long.SIZE) {
+                // too long to fit on the board this way
+                continue;
+            }
+            long line = board;
+            for(int i=1; i<winLen && line != 0; i++) {
+                line &= board >>> (i * stride);
+            }
+            if(line != 0) {
+                return true;
             }
         }
-        return true;
+        return false;
     }
 
     /**
@@ -278,7 +472,7 @@ public class ConnectFour {
         for(int r=0; r<rows; r++) {
             for(int c=0; c<cols; c++) {
                 builder.append('[');
-                builder.append(board[c][r].getSymbol());
+                builder.append(getContents(r, c).getSymbol());
                 builder.append(']');
             }
             builder.append('\n');
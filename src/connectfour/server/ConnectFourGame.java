@@ -1,49 +1,125 @@
 package connectfour.server;
 
 import connectfour.ConnectFourException;
+import connectfour.journal.GameRecord;
+import connectfour.journal.Journal;
+import connectfour.metrics.ServerMetrics;
 
 /**
- * Connect four game.
+ * Connect four game. If the game has a {@link GameClock}, a player who runs
+ * out of time forfeits.
  */
 public class ConnectFourGame implements Runnable {
+    /** how spectators are told each player won, by player index */
+    private static final String[] WINNERS = { "PLAYER_ONE", "PLAYER_TWO" };
+
     /** first player */
-    private ConnectFourPlayer playerOne;
+    private Player playerOne;
     /** second player */
-    private ConnectFourPlayer playerTwo;
+    private Player playerTwo;
 
     /** the game model */
     private ConnectFour game;
 
+    /** the game's spectators */
+    private Spectators spectators;
+
+    /** the players' time controls */
+    private GameClock clock;
+
+    /** the game's entry in the journal */
+    private GameRecord record;
+
+    /**
+     * Initialize a game that no one can watch.
+     *
+     * @param playerOne first player
+     * @param playerTwo second player
+     */
+    public ConnectFourGame(Player playerOne,
+                           Player playerTwo) {
+        this(playerOne, playerTwo, new Spectators(0, () -> {}),
+                new GameClock());
+    }
+
     /**
      * Initialize the game.
      *
      * @param playerOne first player
      * @param playerTwo second player
+     * @param spectators told about every move and the result
+     * @param clock the players' time controls
+     */
+    public ConnectFourGame(Player playerOne,
+                           Player playerTwo,
+                           Spectators spectators,
+                           GameClock clock) {
+        this(playerOne, playerTwo, spectators, clock,
+                Journal.open(null, spectators.getId()));
+    }
+
+    /**
+     * Initialize a game that is journaled.
+     *
+     * @param playerOne first player
+     * @param playerTwo second player
+     * @param spectators told about every move and the result
+     * @param clock the players' time controls
+     * @param record where every move and the result are journaled
+     */
+    public ConnectFourGame(Player playerOne,
+                           Player playerTwo,
+                           Spectators spectators,
+                           GameClock clock,
+                           GameRecord record) {
+        this(playerOne, playerTwo, spectators, clock, record,
+                new ConnectFour());
+    }
+
+    /**
+     * Initialize a journaled game that carries on from a position, e.g. one
+     * recovered from the journal after the server stopped. Play starts with
+     * whichever player is to move.
+     *
+     * @param playerOne first player
+     * @param playerTwo second player
+     * @param spectators told about every move and the result
+     * @param clock the players' time controls
+     * @param record where every move and the result are journaled
+     * @param game the position to carry on from
      */
-    public ConnectFourGame(ConnectFourPlayer playerOne,
-                           ConnectFourPlayer playerTwo) {
+    public ConnectFourGame(Player playerOne,
+                           Player playerTwo,
+                           Spectators spectators,
+                           GameClock clock,
+                           GameRecord record,
+                           ConnectFour game) {
 
         this.playerOne = playerOne;
         this.playerTwo = playerTwo;
-
-        game = new ConnectFour();
+        this.spectators = spectators;
+        this.clock = clock;
+        this.record = record;
+        this.game = game;
     }
 
     @Override
     public void run() {
+        ServerMetrics.get().gameStarted();
+        Player turn = game.getMoveCount() % 2 == 0 ? playerOne : playerTwo;
         boolean go = true;
         while(go) {
             try {
-                if(makeMove(playerOne, playerTwo)) {
-                    go = false;
-                }
-                else if(makeMove(playerTwo, playerOne)) {
+                Player other = turn == playerOne ? playerTwo : playerOne;
+                if(makeMove(turn, other)) {
                     go = false;
                 }
+                turn = other;
             }
             catch(ConnectFourException e) {
                 playerOne.error(e.getMessage());
                 playerTwo.error(e.getMessage());
+                gameOver("ERROR");
                 go = false;
             }
         }
@@ -53,33 +129,91 @@ public class ConnectFourGame implements Runnable {
     }
 
     /**
-     * Make a move in the game.
+     * Make a move in the game. The mover's messages for the step are flushed
+     * here; the other player's are flushed together with the
+     * {@link ConnectFourPlayer#makeMove() MAKE_MOVE} that follows, or when
+     * the game ends and the players are closed.<P>
+     *
+     * While the player is being waited on its clock runs. If it runs out,
+     * the wait is cut short and the player loses, even if a move arrived at
+     * the last moment.
      *
      * @param turn this player's turn
      * @param other the other player
-     * @return whether the game was won or not
+     * @return whether the game is over or not
      * @throws ConnectFourException
      */
-    private boolean makeMove(ConnectFourPlayer turn, ConnectFourPlayer other)
+    private boolean makeMove(Player turn, Player other)
         throws ConnectFourException {
 
-        int column = turn.makeMove();
+        int player = turn == playerOne ? 0 : 1;
+        clock.start(player, turn::abortMove);
+        int column;
+        try {
+            column = turn.makeMove();
+        }
+        catch(ConnectFourException e) {
+            if(clock.stop()) {
+                throw e;
+            }
+            return outOfTime(turn, other, player);
+        }
+        if(!clock.stop()) {
+            return outOfTime(turn, other, player);
+        }
+        long received = System.nanoTime();
+
         game.makeMove(column);
+        spectators.moveMade(column);
+        record.moveMade(column);
 
         turn.moveMade(column);
         other.moveMade(column);
 
+        boolean over = true;
         if (game.hasWonGame()) {
             turn.gameWon();
             other.gameLost();
-            return true;
+            gameOver(WINNERS[player]);
         } else if (game.hasTiedGame()) {
             turn.gameTied();
             other.gameTied();
-            return true;
+            gameOver("TIE");
         }
         else {
-            return false;
+            turn.flush();
+            over = false;
         }
+        ServerMetrics.get().movePlayed(System.nanoTime() - received);
+        return over;
+    }
+
+    /**
+     * Ends the game because a player ran out of time.
+     *
+     * @param turn the player who ran out of time
+     * @param other the other player, who wins
+     * @param player the index of the player who ran out of time
+     * @return true, since the game is over
+     */
+    private boolean outOfTime(Player turn, Player other,
+                              int player) {
+        turn.gameLost();
+        other.gameWon();
+        gameOver(WINNERS[player ^ 1]);
+        return true;
+    }
+
+    /**
+     * Tells the spectators, the journal and the {@link ServerMetrics} how
+     * the game ended.
+     *
+     * @param outcome {@code PLAYER_ONE}, {@code PLAYER_TWO}, {@code TIE} or
+     *                {@code ERROR}
+     */
+    private void gameOver(String outcome) {
+        spectators.gameOver(outcome);
+        record.gameOver(outcome);
+        ServerMetrics.get().gameOver(outcome);
     }
 }
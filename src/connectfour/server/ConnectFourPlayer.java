@@ -1,32 +1,131 @@
 package connectfour.server;
 
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
 import connectfour.ConnectFourException;
 import connectfour.ConnectFourProtocol;
+import connectfour.metrics.ServerMetrics;
 
-import java.io.Closeable;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Scanner;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A class that manages the requests and responses to a single client.
+ * A class that manages the requests and responses to a single client.<P>
+ *
+ * Requests are collected in a buffer rather than written one at a time, so
+ * that everything produced by one game step reaches the client in a single
+ * write. The buffer is flushed when a response is needed from the client
+ * ({@link #connect()} and {@link #makeMove()}), when the game calls
+ * {@link #flush()} at the end of a step, and on {@link #close()}.<P>
+ *
+ * A player created with {@link Sessions} is given a session token in its
+ * {@link #CONNECT}. If its connection drops while the game waits for its
+ * move, the game waits up to the sessions' grace period for the client to
+ * come back on a new connection with a {@link #RESUME} and the token. The
+ * new connection then takes the old one's place: the client is sent a
+ * {@link #SNAPSHOT} of the game so far, and asked again for its move.
+ * Requests sent while the connection was down are lost, but the snapshot
+ * makes up for them.<P>
+ *
+ * The player is guarded by a {@link ReentrantLock} rather than its monitor,
+ * because writes to the client and the wait for it to come back both block
+ * while holding it, and a virtual thread blocked inside
+ * {@code synchronized} keeps its carrier thread. {@link #abortMove()} runs
+ * on the timer thread every game shares, so it never waits for the lock.
  */
-public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
+public class ConnectFourPlayer implements ConnectFourProtocol, Player {
     /**
-     * The {@link Socket} used to communicate with the client.
+     * How many bytes of requests can be collected before they must be
+     * written.
      */
-    private Socket sock;
+    private static final int OUTPUT_SIZE = 1024;
 
     /**
-     * The {@link Scanner} used to read responses from the client.
+     * How often a wait for the client to come back checks whether the
+     * player's time has run out, in milliseconds, in case the abort could
+     * not signal it.
      */
-    private Scanner scanner;
+    private static final long ABORT_CHECK = 100;
 
     /**
-     * The {@link PrintStream} used to send requests to the client.
+     * The {@link Socket} used to communicate with the client. Read without
+     * the lock by {@link #abortMove()}.
      */
-    private PrintStream printer;
+    private volatile Socket sock;
+
+    /**
+     * The stream responses from the client are read from.
+     */
+    private InputStream input;
+
+    /**
+     * The stream requests to the client are written to.
+     */
+    private OutputStream output;
+
+    /**
+     * Decodes responses from the client.
+     */
+    private ConnectFourCodec codec;
+
+    /**
+     * Requests that have not been written to the client yet.
+     */
+    private ByteBuffer outBuffer;
+
+    /**
+     * Where the player is registered for resuming, or null if it cannot be.
+     */
+    private Sessions sessions;
+
+    /**
+     * The player's session token, or null if it has none.
+     */
+    private String token;
+
+    /**
+     * The number of the game the player is seated in.
+     */
+    private long gameId;
+
+    /**
+     * Every column moved in so far in the player's game, in order.
+     */
+    private byte[] moves;
+
+    /**
+     * How many moves have been made.
+     */
+    private int count;
+
+    /**
+     * Set once the player's time has run out. Set without the lock.
+     */
+    private volatile boolean aborted;
+
+    /**
+     * Set once the player has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Guards the connection, the output buffer and the game's moves.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when the connection is replaced, the player's time runs out,
+     * or it is closed.
+     */
+    private final Condition changed = lock.newCondition();
 
     /**
      * Creates a new {@link ConnectFourPlayer} that will use the specified
@@ -38,49 +137,358 @@ public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
      * communication with the client.
      */
     public ConnectFourPlayer(Socket sock) throws ConnectFourException {
+        this(sock, null);
+    }
+
+    /**
+     * Creates a new {@link ConnectFourPlayer} that will use the specified
+     * {@link Socket} to communicate with the client, and can be resumed on
+     * a new connection if this one drops.
+     *
+     * @param sock The {@link Socket} used to communicate with the client.
+     * @param sessions Where the player is registered once seated, or null
+     *                 if it cannot be resumed.
+     *
+     * @throws ConnectFourException If there is a problem establishing
+     * communication with the client.
+     */
+    ConnectFourPlayer(Socket sock, Sessions sessions)
+            throws ConnectFourException {
         this.sock = sock;
         try {
-            scanner = new Scanner(sock.getInputStream());
-            printer = new PrintStream(sock.getOutputStream());
+            // writes are already batched per game step, so send them at once
+            sock.setTcpNoDelay(true);
+            input = sock.getInputStream();
+            output = sock.getOutputStream();
         }
         catch (IOException e) {
             throw new ConnectFourException(e);
         }
+        codec = new ConnectFourCodec();
+        outBuffer = ByteBuffer.allocate(OUTPUT_SIZE);
+        this.sessions = sessions;
+        if(sessions != null) {
+            token = sessions.newToken();
+        }
+        moves = new byte[ConnectFour.ROWS * ConnectFour.COLS];
     }
 
     /**
-     * Sends the initial {@link #CONNECT} request to the client.
+     * The player's session token.
+     *
+     * @return the token, or null if the player cannot be resumed
+     */
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * Gives the player the token of the seat it has taken back after a
+     * restart, in place of the one it was offered, which the client ignores
+     * when resuming. Must be called before the player is registered with
+     * its sessions.
+     *
+     * @param token the seat's token
+     */
+    void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * Sends the initial {@link #CONNECT} request to the client, offering
+     * {@link #BINARY} framing.
      */
     public void connect() {
-        printer.println(CONNECT);
+        connect(false);
+    }
+
+    /**
+     * Sends the initial {@link #CONNECT} request to the client, offering
+     * {@link #BINARY} framing, and {@link #RESUME} if games are being held
+     * open for their players or the player has a session token, which
+     * follows it.
+     *
+     * @param resumable whether to offer {@link #RESUME} without a token
+     */
+    public void connect(boolean resumable) {
+        lock.lock();
+        try {
+            String offer = BINARY;
+            if(token != null) {
+                offer += " " + RESUME + " " + token;
+            }
+            else if(resumable) {
+                offer += " " + RESUME;
+            }
+            codec.encode(reserve(), Message.CONNECT, offer);
+            flush();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits a short while for the client's first message, a {@link #RESUME}
+     * as a client offered it sends straight after the {@link #CONNECT}. A
+     * client with nothing to resume may send a RESUME without arguments so
+     * that it need not be waited for. A client that sends {@link #BINARY}
+     * first is not resuming; the switch is acknowledged.
+     *
+     * @param millis how long to wait
+     * @return the arguments of the {@link #RESUME}, empty if there are
+     * none, or null if the client is not resuming
+     * @throws ConnectFourException If the client sends anything else, or
+     * the connection is lost.
+     */
+    public String awaitResume(int millis) throws ConnectFourException {
+        Message message;
+        try {
+            sock.setSoTimeout(millis);
+            message = codec.readMessage(input);
+            sock.setSoTimeout(0);
+        }
+        catch (SocketTimeoutException e) {
+            // a partly read message stays in the codec for the next read
+            try {
+                sock.setSoTimeout(0);
+            }
+            catch (IOException ioe) {
+                throw new ConnectFourException("Lost connection to player",
+                        ioe);
+            }
+            return null;
+        }
+        catch (IOException e) {
+            throw new ConnectFourException("Lost connection to player", e);
+        }
+
+        if(message == null) {
+            throw new ConnectFourException("Lost connection to player");
+        }
+        else if(message == Message.BINARY) {
+            acknowledgeBinary(codec);
+            return null;
+        }
+        else if(message != Message.RESUME) {
+            throw new ConnectFourException("Invalid player response: " +
+                    codec.line());
+        }
+        return codec.arguments();
+    }
+
+    /**
+     * Seats the player in a new game.
+     *
+     * @param gameId the number of the game
+     */
+    public void joinGame(long gameId) {
+        lock.lock();
+        try {
+            this.gameId = gameId;
+            count = 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Seats the player in a game that is being resumed, and sends the
+     * client a {@link #SNAPSHOT} of the game so far.
+     *
+     * @param gameId the number of the game
+     * @param moves every column moved in so far, in order
+     */
+    public void snapshot(long gameId, byte[] moves) {
+        lock.lock();
+        try {
+            this.gameId = gameId;
+            count = 0;
+            for (byte column : moves) {
+                record(column);
+            }
+            sendSnapshot();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the client a {@link #SNAPSHOT} of the game so far.
+     */
+    private void sendSnapshot() {
+        StringBuilder snapshot = new StringBuilder().append(gameId);
+        for (int i = 0; i < count; i++) {
+            snapshot.append(' ').append(moves[i]);
+        }
+        codec.encode(reserve(), Message.SNAPSHOT, snapshot.toString());
+        flush();
+    }
+
+    /**
+     * Keeps a move for the next {@link #SNAPSHOT}.
+     *
+     * @param column the column moved in
+     */
+    private void record(int column) {
+        if(count == moves.length) {
+            moves = Arrays.copyOf(moves, 2 * count);
+        }
+        moves[count++] = (byte) column;
     }
 
     /**
      * Sends a {@link #MAKE_MOVE} request to the client and returns the column
-     * in which the client would like to move.
+     * in which the client would like to move. If the client has switched to
+     * {@link #BINARY} framing, the switch is acknowledged on the way. If the
+     * connection drops and the player has a session, the client is waited
+     * for to {@link #reattach(ConnectFourPlayer) come back}, and asked again.
      *
      * @return The column in which the client would like to move.
      *
      * @throws ConnectFourException If the client's response is invalid, i.e.
-     * not {@link #MOVE} and a column number.
+     * not {@link #MOVE} and a column number, or the connection is lost.
      */
     public int makeMove() throws ConnectFourException {
-        printer.println(MAKE_MOVE);
-        String response = scanner.nextLine();
+        while(true) {
+            ConnectFourCodec reader;
+            InputStream in;
+            lock.lock();
+            try {
+                codec.encode(reserve(), Message.MAKE_MOVE);
+                flush();
+                reader = codec;
+                in = input;
+            }
+            finally {
+                lock.unlock();
+            }
+            long asked = System.nanoTime();
+
+            Message response;
+            IOException lost = null;
+            try {
+                response = reader.readMessage(in);
+                if(response == Message.BINARY) {
+                    acknowledgeBinary(reader);
+                    response = reader.readMessage(in);
+                }
+            }
+            catch (IOException e) {
+                response = null;
+                lost = e;
+            }
 
-        if(response.startsWith(MOVE)) {
-            String[] tokens = response.split(" ");
-            if(tokens.length == 2) {
-                return Integer.parseInt(tokens[1]);
+            if(response == null) {
+                if(awaitReattach(reader)) {
+                    continue;
+                }
+                throw new ConnectFourException("Lost connection to player",
+                        lost);
+            }
+            else if(response == Message.MOVE) {
+                ServerMetrics.get().getThinkTime()
+                        .record(System.nanoTime() - asked);
+                return reader.column();
             }
             else {
                 throw new ConnectFourException("Invalid player response: " +
-                        response);
+                        reader.line());
             }
         }
-        else {
-            throw new ConnectFourException("Invalid player response: " +
-                    response);
+    }
+
+    /**
+     * Acknowledges the client's switch to {@link #BINARY} framing, unless
+     * the connection it came in on has been replaced since.
+     *
+     * @param reader the codec of the connection it came in on
+     */
+    private void acknowledgeBinary(ConnectFourCodec reader) {
+        lock.lock();
+        try {
+            if(reader == codec) {
+                codec.encode(reserve(), Message.BINARY);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the client to come back on a new connection after this one
+     * dropped, for up to the sessions' grace period.
+     *
+     * @param lost the codec of the connection that dropped
+     * @return true if the client is back, false if the player cannot be
+     * resumed, its time ran out, or the client did not come back in time
+     */
+    private boolean awaitReattach(ConnectFourCodec lost) {
+        lock.lock();
+        try {
+            if(sessions == null) {
+                return false;
+            }
+            long deadline = System.nanoTime() +
+                    TimeUnit.MILLISECONDS.toNanos(sessions.getGrace());
+            try {
+                while(codec == lost && !aborted && !closed) {
+                    long left = deadline - System.nanoTime();
+                    if(left <= 0) {
+                        return false;
+                    }
+                    changed.awaitNanos(Math.min(left,
+                            TimeUnit.MILLISECONDS.toNanos(ABORT_CHECK)));
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return codec != lost && !aborted && !closed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes over a new connection from a client resuming this player's
+     * session, dropping the old one. The client is sent a
+     * {@link #SNAPSHOT} of the game so far; if the game is waiting for the
+     * player's move, {@link #makeMove()} asks for it again.
+     *
+     * @param connection the player created for the new connection
+     * @return false if the game is already over or the player's time has
+     * run out
+     */
+    boolean reattach(ConnectFourPlayer connection) {
+        lock.lock();
+        try {
+            if(aborted || closed) {
+                return false;
+            }
+            try {
+                sock.close();
+            }
+            catch(IOException ioe) {
+                // squash
+            }
+            sock = connection.sock;
+            input = connection.input;
+            output = connection.output;
+            codec = connection.codec;
+            // anything collected was meant for the old connection
+            outBuffer.clear();
+            sendSnapshot();
+            changed.signalAll();
+            return true;
+        }
+        finally {
+            lock.unlock();
         }
     }
 
@@ -92,7 +500,14 @@ public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
      *
      */
     public void moveMade(int column) {
-        printer.println(MOVE_MADE + " " + column);
+        lock.lock();
+        try {
+            record(column);
+            codec.encode(reserve(), Message.MOVE_MADE, column);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -101,8 +516,13 @@ public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
      *
      */
     public void gameWon() {
-        printer.println(GAME_WON);
-
+        lock.lock();
+        try {
+            codec.encode(reserve(), Message.GAME_WON);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -111,7 +531,13 @@ public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
      *
      */
     public void gameLost()  {
-        printer.println(GAME_LOST);
+        lock.lock();
+        try {
+            codec.encode(reserve(), Message.GAME_LOST);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -119,7 +545,13 @@ public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
      * game tied.
      */
     public void gameTied()  {
-        printer.println(GAME_TIED);
+        lock.lock();
+        try {
+            codec.encode(reserve(), Message.GAME_TIED);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -129,19 +561,107 @@ public class ConnectFourPlayer implements ConnectFourProtocol, Closeable {
      * @param message The error message.
      */
     public void error(String message) {
-        printer.println(ERROR + " " + message);
+        lock.lock();
+        try {
+            codec.encode(reserve(), Message.ERROR, message);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Called to close the client connection after the game is over.
+     * Writes every collected request to the client in one go. Like the
+     * {@link java.io.PrintStream} this replaces, write errors are not
+     * reported here; a dead connection shows up when the next response is
+     * read.
      */
-    @Override
-    public void close() {
+    public void flush() {
+        lock.lock();
+        try {
+            if(outBuffer.position() == 0) {
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                output.write(outBuffer.array(), 0, outBuffer.position());
+                ServerMetrics.get().getWriteTime()
+                        .record(System.nanoTime() - start);
+            }
+            catch (IOException e) {
+                // squash
+            }
+            outBuffer.clear();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure there is room to collect one more request, writing out what
+     * has been collected so far if there is not.
+     *
+     * @return the output buffer
+     */
+    private ByteBuffer reserve() {
+        if(outBuffer.remaining() < ConnectFourCodec.MAX_LINE) {
+            flush();
+        }
+        return outBuffer;
+    }
+
+    /**
+     * Stops waiting for the client's move when its time has run out. Safe to
+     * call from another thread; a blocked {@link #makeMove()} fails as if the
+     * connection had been lost, without waiting for the client to come
+     * back, while requests can still be sent. Never blocks: the lock may be
+     * held through a write to a client that is not reading, so a wait for
+     * the client to come back is only signalled if the lock is free, and
+     * otherwise notices on its next check.
+     */
+    public void abortMove() {
+        aborted = true;
+        if(lock.tryLock()) {
+            try {
+                changed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
         try {
-            sock.close();
+            sock.shutdownInput();
         }
         catch(IOException ioe) {
             // squash
         }
     }
+
+    /**
+     * Called to close the client connection after the game is over. Any
+     * requests still collected are written first, and the player's session
+     * ends.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            flush();
+            closed = true;
+            changed.signalAll();
+            if(sessions != null) {
+                sessions.remove(this);
+            }
+            try {
+                sock.close();
+            }
+            catch(IOException ioe) {
+                // squash
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 }
@@ -2,21 +2,133 @@ package connectfour.server;
 
 import connectfour.ConnectFourException;
 import connectfour.ConnectFourProtocol;
+import connectfour.ai.OpeningBook;
+import connectfour.ai.Tablebase;
+import connectfour.ai.TranspositionTable;
+import connectfour.journal.GameRecord;
+import connectfour.journal.Journal;
+import connectfour.metrics.ServerMetrics;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@link ConnectFourServer} waits for incoming client connections and
- * pairs them off to play {@link ConnectFourGame games}.
+ * pairs them off to play {@link ConnectFourGame games}. It keeps accepting
+ * connections for as long as it runs; connected players wait in a lobby
+ * until an opponent arrives, and every game runs on its own thread.
  */
 public class ConnectFourServer implements ConnectFourProtocol, Runnable {
+    /**
+     * How many not yet accepted connections the OS should queue. The
+     * default of 50 drops connections when many clients arrive at once.
+     */
+    private static final int BACKLOG = 4096;
+
+    /**
+     * The largest shared bot table, in megabytes: 2<sup>36</sup> entries.
+     */
+    private static final long MAX_BOT_TABLE = 1L << 20;
+
+    /**
+     * How long a new client offered {@link #RESUME} has to send it, in
+     * milliseconds. Clients that understand it answer at once, with or
+     * without something to resume; only those that do not wait this long
+     * before joining the lobby. RESUME is only offered if sessions or a
+     * journal are turned on, so by default no client waits.
+     */
+    private static final int RESUME_WINDOW = 500;
+
     /**
      * The {@link ServerSocket} used to wait for incoming client connections.
      */
     private ServerSocket server;
 
+    /**
+     * Players that have connected and are waiting for an opponent.
+     */
+    private BlockingQueue<ConnectFourPlayer> lobby;
+
+    /**
+     * Runs the connection handshakes and the games themselves.
+     */
+    private ExecutorService games;
+
+    /**
+     * Accepts spectators, or null if games cannot be watched.
+     */
+    private SpectatorServer spectators;
+
+    /**
+     * The number given to the last game started.
+     */
+    private long lastGameId;
+
+    /**
+     * Where every game is recorded, or null if games are not journaled.
+     */
+    private Journal journal;
+
+    /**
+     * The games recovered from the journal that are waiting for their
+     * players, or null if there are none.
+     */
+    private HeldGames held;
+
+    /**
+     * How long recovered games wait for their players, in milliseconds.
+     */
+    private long resumeGrace;
+
+    /**
+     * The seated players, who can resume their games on a new connection if
+     * theirs drops, or null if players cannot.
+     */
+    private Sessions sessions;
+
+    /**
+     * How long players may take to move.
+     */
+    private TimeControls time;
+
+    /**
+     * How long a player waits for an opponent before a {@link BotPlayer}
+     * takes the other seat, in milliseconds, or 0 to wait for a person.
+     */
+    private long botWait;
+
+    /**
+     * How long bots think about each move, in milliseconds.
+     */
+    private long botThink;
+
+    /**
+     * The opening book bots play from, or null.
+     */
+    private OpeningBook book;
+
+    /**
+     * The tablebase bots play their endgames from, or null.
+     */
+    private Tablebase tablebase;
+
+    /**
+     * The transposition table every bot shares, or null for each to have
+     * its own.
+     */
+    private TranspositionTable botTable;
+
     /**
      * Creates a new {@link ConnectFourServer} that listens for incoming
      * connections on the specified port.
@@ -27,11 +139,192 @@ public class ConnectFourServer implements ConnectFourProtocol, Runnable {
      *                              {@link ServerSocket}
      */
     public ConnectFourServer(int port) throws ConnectFourException {
+        this(port, new ServerOptions(Arrays.asList()));
+    }
+
+    /**
+     * Creates a new {@link ConnectFourServer} that listens for incoming
+     * connections on the specified port, configured by named options:
+     * <ul>
+     * <li>{@code watch-port}: a port that spectators can connect to and
+     * watch games from</li>
+     * <li>the {@link TimeControls time control} options: how long players
+     * may take. A player who runs out of time forfeits; this server cannot
+     * play a move for them, as the late move may still be on its way</li>
+     * <li>{@code bot-wait}: how long a player waits for an opponent before
+     * playing a {@link BotPlayer} instead</li>
+     * <li>{@code bot-think}: how long a bot thinks per move, in
+     * milliseconds (100 by default)</li>
+     * <li>{@code book} and {@code tablebase}: the {@link OpeningBook} the
+     * bots play their openings from, and the {@link Tablebase} they play
+     * their endgames from</li>
+     * <li>{@code bot-table}: the size in megabytes, rounded down to a power
+     * of two, of the off-heap {@link TranspositionTable} every bot shares
+     * (16 by default)</li>
+     * <li>{@code journal}: where every game is recorded in a
+     * {@link Journal}. Game numbers carry on from the last game in it, and
+     * the games that were being played when the server last stopped are
+     * recovered from it and held open for {@code resume-grace}
+     * milliseconds (60000 by default), so that their players can come back
+     * and {@link #RESUME} them with their session tokens, which are
+     * journaled with each game. A game whose player was a bot cannot be
+     * resumed</li>
+     * <li>{@code session-grace}: how long, in milliseconds, a player whose
+     * connection drops keeps its seat so that it can resume the game with
+     * its session token. Sessions are off by default, since every client
+     * offered a token that does not answer waits {@link #RESUME_WINDOW}
+     * before joining the lobby; tokens are still given out for resuming
+     * after a restart if there is a journal</li>
+     * </ul>
+     *
+     * @param port The port on which the server should listen for incoming
+     *             connections.
+     * @param options The server's named options.
+     * @throws ConnectFourException If there is an error creating the
+     *                              {@link ServerSocket}
+     * @throws IllegalArgumentException If an option has a bad value.
+     */
+    public ConnectFourServer(int port, ServerOptions options)
+            throws ConnectFourException {
+        try {
+            server = new ServerSocket(port, BACKLOG);
+        } catch (IOException e) {
+            throw new ConnectFourException(e);
+        }
+        lobby = new LinkedBlockingQueue<>();
+        games = newGameExecutor();
+        time = new TimeControls(options);
+        long sessionGrace = options.getLong("session-grace", 0);
+        if (sessionGrace > 0 || options.has("journal")) {
+            sessions = new Sessions(sessionGrace);
+        }
+        botWait = options.getLong("bot-wait", 0);
+        botThink = options.getLong("bot-think", 100);
         try {
-            server = new ServerSocket(port);
+            if (options.has("book")) {
+                book = OpeningBook.open(Paths.get(options.get("book", "")));
+            }
+            if (options.has("tablebase")) {
+                tablebase = Tablebase.open(
+                        Paths.get(options.get("tablebase", "")));
+            }
+            journal = Journal.open(options);
         } catch (IOException e) {
             throw new ConnectFourException(e);
         }
+        if (journal != null) {
+            lastGameId = journal.getLastGameId();
+            resumeGrace = options.getLong("resume-grace", 60_000);
+            recover(journal.getUnfinished());
+        }
+        if (options.has("bot-table")) {
+            long megabytes = options.getLong("bot-table", 0);
+            if (megabytes < 1 || megabytes > MAX_BOT_TABLE) {
+                throw new IllegalArgumentException(
+                        "Invalid bot table size: " + megabytes + " MB");
+            }
+            long entries = (megabytes << 20) / (2 * Long.BYTES);
+            botTable = new TranspositionTable(
+                    Long.SIZE - 1 - Long.numberOfLeadingZeros(entries));
+        }
+        if (time.isAutoMove()) {
+            System.out.println("Players who run out of time will forfeit; " +
+                    "auto-move needs --transport=nio");
+        }
+        if (options.has("watch-port")) {
+            spectators = new SpectatorServer(
+                    (int) options.getLong("watch-port", 0));
+        }
+    }
+
+    /**
+     * Holds the games recovered from the journal open for their players.
+     * Any that cannot be carried on, because their last move already ended
+     * them or a seat has no token to resume it with, are ended now.
+     *
+     * @param unfinished the records of the games that were being played
+     */
+    private void recover(List<GameRecord> unfinished) {
+        List<GameRecord> resumable = new ArrayList<>();
+        for (GameRecord record : unfinished) {
+            ConnectFour game = replay(record);
+            if (game == null || record.getToken(0) == null ||
+                    record.getToken(1) == null) {
+                record.gameOver("ERROR");
+            } else if (game.hasWonGame()) {
+                record.gameOver(game.getMoveCount() % 2 == 1 ?
+                        "PLAYER_ONE" : "PLAYER_TWO");
+            } else if (game.hasTiedGame()) {
+                record.gameOver("TIE");
+            } else {
+                resumable.add(record);
+            }
+        }
+        if (!resumable.isEmpty()) {
+            held = new HeldGames(resumable, sessions);
+            System.out.println("Holding " + resumable.size() +
+                    " recovered games for " + resumeGrace + "ms");
+        }
+    }
+
+    /**
+     * Rebuilds a recovered game's position.
+     *
+     * @param record the game's record
+     * @return the position, or null if the moves are not a legal game
+     */
+    private static ConnectFour replay(GameRecord record) {
+        ConnectFour game = new ConnectFour();
+        try {
+            for (byte column : record.getMoves()) {
+                game.makeMove(column);
+            }
+        } catch (ConnectFourException e) {
+            return null;
+        }
+        return game;
+    }
+
+    /**
+     * Carries on a recovered game once both its players are back.
+     *
+     * @param record the game's record
+     * @param playerOne the first player
+     * @param playerTwo the second player
+     */
+    private void resume(GameRecord record, ConnectFourPlayer playerOne,
+                        ConnectFourPlayer playerTwo) {
+        long gameId = record.getId();
+        ConnectFour game = replay(record);
+        Spectators audience = SpectatorServer.open(spectators, gameId);
+        for (byte column : record.getMoves()) {
+            // no one is watching yet; this fills in their snapshot
+            audience.moveMade(column);
+        }
+        System.out.println("Resuming game " + gameId + "!");
+        games.execute(new ConnectFourGame(playerOne, playerTwo, audience,
+                time.newClock(), record, game));
+    }
+
+    /**
+     * Creates the executor games run on. Games spend nearly all their time
+     * blocked reading a player's next move, so on a JVM with virtual threads
+     * (Java 21 and later) each task gets a virtual thread and a blocked read
+     * does not pin a platform thread. The project targets Java 11, so the
+     * factory is looked up reflectively and older JVMs fall back to a cached
+     * pool of platform threads.
+     *
+     * @return an executor that starts a new (virtual if possible) thread per
+     * task
+     */
+    public static ExecutorService newGameExecutor() {
+        try {
+            Method factory =
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
     }
 
     /**
@@ -39,53 +332,241 @@ public class ConnectFourServer implements ConnectFourProtocol, Runnable {
      * calls {@link #run()} in the main thread.
      *
      * @param args Used to specify the port on which the server should listen
-     *             for incoming client connections.
+     *             for incoming client connections, followed by any of these
+     *             named options:
+     *             <ul>
+     *             <li>{@code --transport=blocking|nio}: the blocking, thread
+     *             per game server (the default) or the non-blocking
+     *             {@link NioConnectFourServer}</li>
+     *             <li>{@code --loops=N}: the number of event loops of the
+     *             non-blocking server</li>
+     *             <li>{@code --watch-port=N}: the port spectators connect
+     *             to; without it games cannot be watched</li>
+     *             <li>{@code --move-time=MS}, {@code --game-time=MS} and
+     *             {@code --on-timeout=forfeit|auto-move}: the
+     *             {@link TimeControls time controls}</li>
+     *             <li>{@code --bot-wait=MS} and {@code --bot-think=MS}: how
+     *             long a player waits before playing a {@link BotPlayer},
+     *             and how long the bot thinks per move; blocking server
+     *             only</li>
+     *             <li>{@code --book=FILE}: an {@link OpeningBook} for the
+     *             bots</li>
+     *             <li>{@code --tablebase=FILE}: a {@link Tablebase} for the
+     *             bots</li>
+     *             <li>{@code --bot-table=MB}: the size of the
+     *             transposition table shared by every bot (16)</li>
+     *             <li>{@code --journal=DIR}, {@code --journal-sync=none|
+     *             interval|always}, {@code --journal-commit=MS} and
+     *             {@code --journal-segment=MB}: where and how every game is
+     *             {@link Journal#open(ServerOptions) journaled}</li>
+     *             <li>{@code --resume-grace=MS}: how long games recovered
+     *             from the journal wait for their players</li>
+     *             <li>{@code --session-grace=MS}: how long a player whose
+     *             connection drops keeps its seat (off); blocking server
+     *             only</li>
+     *             </ul>
      * @throws ConnectFourException If there is an error starting the server.
      */
     public static void main(String[] args) throws ConnectFourException {
-
-        if (args.length != 1) {
-            System.out.println("Usage: java ConnectFourServer <port>");
+        String usage = "Usage: java ConnectFourServer <port> " +
+                "[--transport=blocking|nio] [--loops=N] " +
+                "[--watch-port=N] [--move-time=MS] [--game-time=MS] " +
+                "[--on-timeout=forfeit|auto-move] [--bot-wait=MS] " +
+                "[--bot-think=MS] [--book=FILE] " +
+                "[--tablebase=FILE] [--bot-table=MB] " +
+                "[--journal=DIR] [--journal-sync=none|interval|always] " +
+                "[--journal-commit=MS] [--journal-segment=MB] " +
+                "[--resume-grace=MS] [--session-grace=MS]";
+        if (args.length < 1) {
+            System.out.println(usage);
             System.exit(1);
         }
 
-        int port = Integer.parseInt(args[0]);
-        ConnectFourServer server = new ConnectFourServer(port);
+        Runnable server = null;
+        try {
+            int port = Integer.parseInt(args[0]);
+            ServerOptions options = new ServerOptions(
+                    Arrays.asList(args).subList(1, args.length));
+            String transport = options.get("transport", "blocking");
+            switch (transport) {
+                case "blocking":
+                    server = new ConnectFourServer(port, options);
+                    break;
+                case "nio":
+                    server = new NioConnectFourServer(port, options);
+                    break;
+                default:
+                    System.out.println("Unknown transport: " + transport);
+                    System.exit(1);
+            }
+        } catch (IllegalArgumentException e) {
+            // includes NumberFormatException
+            System.out.println(e.getMessage());
+            System.out.println(usage);
+            System.exit(1);
+        }
         server.run();
     }
 
     /**
-     * Waits for two clients to connect. Creates a {@link ConnectFourPlayer}
-     * for each and then pairs them off in a {@link ConnectFourGame}.<P>
+     * Accepts client connections until the server socket is closed. Each
+     * client gets a {@link ConnectFourPlayer} and goes into the lobby, where
+     * a matchmaker pairs players off in arrival order and starts a
+     * {@link ConnectFourGame} for each pair.<P>
      */
     @Override
     public void run() {
+        Thread matchmaker = new Thread(this::matchPlayers, "matchmaker");
+        matchmaker.setDaemon(true);
+        matchmaker.start();
+        time.start();
+        if (spectators != null) {
+            Thread watch = new Thread(spectators, "spectators");
+            watch.setDaemon(true);
+            watch.start();
+        }
+        if (held != null) {
+            Thread grace = new Thread(() -> {
+                try {
+                    Thread.sleep(resumeGrace);
+                } catch (InterruptedException e) {
+                    // end the grace period early
+                }
+                held.expire();
+            }, "resume-grace");
+            grace.setDaemon(true);
+            grace.start();
+        }
+
+        System.out.println("Waiting for players...");
         try {
-            System.out.println("Waiting for player one...");
-            Socket playerOneSocket = server.accept();
-            ConnectFourPlayer playerOne =
-                    new ConnectFourPlayer(playerOneSocket);
-            playerOne.connect();
-            System.out.println("Player one connected!");
-
-            System.out.println("Waiting for player two...");
-            Socket playerTwoSocket = server.accept();
-            ConnectFourPlayer playerTwo =
-                    new ConnectFourPlayer(playerTwoSocket);
-            playerTwo.connect();
-            System.out.println("Player two connected!");
-
-            System.out.println("Starting game!");
-            ConnectFourGame game =
-                    new ConnectFourGame(playerOne, playerTwo);
-            // server is not multithreaded
-            new Thread(game).run();
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                games.execute(() -> join(socket));
+            }
         } catch (IOException e) {
-            System.err.println("Something has gone horribly wrong!");
-            e.printStackTrace();
+            if (!server.isClosed()) {
+                System.err.println("Something has gone horribly wrong!");
+                e.printStackTrace();
+            }
+        } finally {
+            matchmaker.interrupt();
+            time.close();
+            if (spectators != null) {
+                spectators.close();
+            }
+            games.shutdown();
+            if (journal != null) {
+                // games still in progress are recorded as far as they got
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Performs the handshake with a newly connected client and puts it in
+     * the lobby, or back in the game it asks to {@link #RESUME} with its
+     * session token: a game held since the server restarted, or else the
+     * game its dropped connection was playing.
+     *
+     * @param socket the client's connection
+     */
+    private void join(Socket socket) {
+        try {
+            ConnectFourPlayer player = new ConnectFourPlayer(socket,
+                    sessions);
+            boolean resumable = held != null && held.isOpen();
+            player.connect(resumable);
+            ServerMetrics.get().connected();
+            System.out.println("Player connected from " +
+                    socket.getRemoteSocketAddress());
+            String resume = resumable || sessions != null ?
+                    player.awaitResume(RESUME_WINDOW) : null;
+            if (resume == null || resume.isEmpty()) {
+                seat(player);
+                lobby.add(player);
+                return;
+            }
+            try {
+                if (held != null && held.holds(resume)) {
+                    held.resume(resume, player, this::resume);
+                } else if (sessions != null) {
+                    sessions.resume(resume, player);
+                    System.out.println("Player resumed session " + resume);
+                } else {
+                    throw new ConnectFourException(
+                            "Invalid resume: " + resume);
+                }
+            } catch (ConnectFourException e) {
+                player.error(e.getMessage());
+                player.close();
+            }
         } catch (ConnectFourException e) {
-            System.err.println("Failed to create players!");
+            System.err.println("Failed to create player!");
             e.printStackTrace();
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // squash
+            }
+        }
+    }
+
+    /**
+     * Registers a player taking a seat, so that it can resume its game if
+     * its connection drops.
+     *
+     * @param player the player
+     */
+    private void seat(ConnectFourPlayer player) {
+        if (sessions != null) {
+            sessions.add(player);
+        }
+    }
+
+    /**
+     * Takes players out of the lobby two at a time and starts a game for
+     * each pair. If bots are enabled and no second player arrives in time,
+     * a bot takes the second seat.
+     */
+    private void matchPlayers() {
+        try {
+            while (true) {
+                ConnectFourPlayer playerOne = lobby.take();
+                ConnectFourPlayer second = botWait > 0 ?
+                        lobby.poll(botWait, TimeUnit.MILLISECONDS) :
+                        lobby.take();
+                long gameId = ++lastGameId;
+                playerOne.joinGame(gameId);
+                Player playerTwo;
+                if (second == null) {
+                    playerTwo = new BotPlayer(botThink, book, tablebase,
+                            botTable);
+                } else {
+                    second.joinGame(gameId);
+                    playerTwo = second;
+                }
+                GameRecord record = Journal.open(journal, gameId);
+                record.seat(playerOne.getToken(),
+                        second == null ? null : second.getToken());
+                System.out.println("Starting game " + gameId + "!");
+                games.execute(new ConnectFourGame(playerOne, playerTwo,
+                        SpectatorServer.open(spectators, gameId),
+                        time.newClock(), record));
+            }
+        } catch (InterruptedException e) {
+            // server is shutting down
+        }
+    }
+
+    /**
+     * Stops accepting connections. Games already in progress play on.
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // squash
         }
     }
 }
@@ -0,0 +1,231 @@
+package connectfour.server;
+
+import connectfour.ConnectFourException;
+import connectfour.server.ConnectFour.Move;
+
+import java.util.Arrays;
+
+/**
+ * A generalized Connect Four game with any number of rows and columns and any
+ * line length needed to win, e.g. Connect Six on a 1000x1000 board.<P>
+ *
+ * Because pieces always stack from the bottom, every cell below a column's
+ * height is occupied, so a column only needs one bit per piece to record who
+ * owns it. Those bits are allocated as the column fills, so memory grows with
+ * the number of pieces placed rather than with the size of the board. Win
+ * checking only looks at lines through the last move, so it costs time
+ * proportional to the win length no matter how big the board is.
+ */
+public class ConnectK {
+    /** how many 64-bit words a column starts with once it gets a piece */
+    private final static int INITIAL_WORDS = 1;
+
+    /**
+     * The number of rows in the board.
+     */
+    private int rows;
+
+    /**
+     * The number of columns in the board.
+     */
+    private int cols;
+
+    /**
+     * How big a line one needs to win.
+     */
+    private int winLen;
+
+    /**
+     * The number of pieces in each column.
+     */
+    private int[] heights;
+
+    /**
+     * For each column, one bit per piece counted from the bottom; the bit is
+     * set if the piece belongs to player 2. Null until the column is used.
+     */
+    private long[][] owners;
+
+    /**
+     * Used to keep track of which player's turn it is; 0 for player 1, and 1
+     * for player 2.
+     */
+    private int turn;
+
+    /**
+     *  The last column a piece was placed.  Used for win checking.
+     */
+    private int lastCol;
+
+    /**
+     * The height, counted from the bottom, of the last piece placed.  Used
+     * for win checking.
+     */
+    private int lastHeight;
+
+    /**
+     * The number of pieces on the board.  Used for tie checking.
+     */
+    private long moves;
+
+    /**
+     * Creates a game using a board with the specified number of rows and
+     * columns. Assumes that player 1 is the first to move.
+     *
+     * @param rows The number of rows in the board.
+     * @param cols The number of columns in the board.
+     * @param winLen How big a line one needs to win.
+     */
+    public ConnectK(int rows, int cols, int winLen) {
+        if(rows < 1 || cols < 1 || winLen < 1) {
+            throw new IllegalArgumentException("Invalid board: " + rows +
+                    "x" + cols + ", connect " + winLen);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.winLen = winLen;
+
+        heights = new int[cols];
+        owners = new long[cols][];
+
+        turn = 0;
+        moves = 0;
+    }
+
+    /**
+     * Makes a move for the player whose turn it is. If the move is successful,
+     * play automatically switches to the other player's turn.
+     *
+     * @param column The column in which the player is moving.
+     *
+     * @throws ConnectFourException If the move is invalid for any reason.
+     */
+    public void makeMove(int column) throws ConnectFourException {
+        if(column < 0 || column >= cols) {
+            throw new ConnectFourException("Invalid column");
+        }
+        else if(heights[column] == rows) {
+            throw new ConnectFourException("Column full!");
+        }
+        else {
+            int height = heights[column]++;
+            long[] bits = owners[column];
+            if(bits == null) {
+                bits = new long[INITIAL_WORDS];
+                owners[column] = bits;
+            }
+            else if(height >>> 6 == bits.length) {
+                int words = Math.min(bits.length * 2, (rows + 63) >>> 6);
+                bits = Arrays.copyOf(bits, words);
+                owners[column] = bits;
+            }
+            if(turn == 1) {
+                bits[height >>> 6] |= 1L << height;
+            }
+
+            turn = turn ^ 1;
+            lastCol = column;
+            lastHeight = height;
+            moves++;
+        }
+    }
+
+    /**
+     * Returns true if the game is currently in a winning state. Can be used to
+     * determine if the most recent move won the game (and therefore the player
+     * that made the move has won).
+     *
+     * @return True if the game is in a winning state. False otherwise.
+     */
+    public boolean hasWonGame() {
+        if(moves == 0) {
+            return false;
+        }
+        int player = turn ^ 1;
+        // vertical, horizontal, and the two diagonals
+        return 1 + countRun(player, 0, -1) >= winLen ||
+                1 + countRun(player, 1, 0) + countRun(player, -1, 0) >= winLen ||
+                1 + countRun(player, 1, 1) + countRun(player, -1, -1) >= winLen ||
+                1 + countRun(player, 1, -1) + countRun(player, -1, 1) >= winLen;
+    }
+
+    /**
+     * Counts one player's pieces in an unbroken run starting next to the last
+     * move and going in one direction.
+     *
+     * @param player 0 for player 1, and 1 for player 2
+     * @param dCol the column step
+     * @param dHeight the height step, positive going up
+     * @return the number of consecutive pieces found, at most winLen - 1
+     */
+    private int countRun(int player, int dCol, int dHeight) {
+        int count = 0;
+        int col = lastCol + dCol;
+        int height = lastHeight + dHeight;
+        while(count < winLen - 1 && col >= 0 && col < cols && height >= 0 &&
+                height < heights[col] && owner(col, height) == player) {
+            count++;
+            col += dCol;
+            height += dHeight;
+        }
+        return count;
+    }
+
+    /**
+     * Who owns an occupied cell?
+     *
+     * @param col column number of the cell
+     * @param height height of the cell, counted from the bottom; must be
+     *               below the column's height
+     * @return 0 for player 1, and 1 for player 2
+     */
+    private int owner(int col, int height) {
+        return (int) (owners[col][height >>> 6] >>> height) & 1;
+    }
+
+    /**
+     * Checks to see if the game is tied - no NONE moves left in board.  This
+     * is called after hasGameWon.
+     *
+     * @return whether game is tied or not
+     */
+    public boolean hasTiedGame() {
+        return moves == (long) rows * cols;
+    }
+
+    /**
+     * What is at this square?
+     *
+     * @param row row number of square, 0 being the top row
+     * @param col column number of square
+     * @return the player (or {@link Move#NONE}) at the given location
+     */
+    public Move getContents(int row, int col) {
+        int height = rows - 1 - row;
+        if(height >= heights[col]) {
+            return Move.NONE;
+        }
+        return owner(col, height) == 0 ? Move.PLAYER_ONE : Move.PLAYER_TWO;
+    }
+
+    /**
+     * Returns a {@link String} representation of the board, suitable for
+     * printing.
+     *
+     * @return A {@link String} representation of the board.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        for(int r=0; r<rows; r++) {
+            for(int c=0; c<cols; c++) {
+                builder.append('[');
+                builder.append(getContents(r, c).getSymbol());
+                builder.append(']');
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package connectfour.server;
+
+/**
+ * Something whose channel is registered with an {@link EventLoop}, and is
+ * told when the channel is ready. Only ever called on the loop's thread.
+ */
+interface EventHandler {
+    /**
+     * Called by the event loop when the channel has bytes to read.
+     */
+    void onReadable();
+
+    /**
+     * Called by the event loop when the channel can accept more output.
+     */
+    void onWritable();
+}
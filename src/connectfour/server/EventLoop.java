@@ -0,0 +1,100 @@
+package connectfour.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that waits on a {@link Selector} and dispatches readiness
+ * events to the {@link EventHandler handlers} registered with it, such as
+ * {@link NioConnection connections}. All of a game's connections live on the
+ * same loop, so a game's state is only ever touched by one thread.
+ */
+class EventLoop implements Runnable {
+    /** the selector this loop waits on */
+    private Selector selector;
+
+    /** work handed to this loop by other threads */
+    private Queue<Runnable> tasks;
+
+    /** whether the loop should keep running */
+    private volatile boolean running;
+
+    /**
+     * Creates a new event loop with its own {@link Selector}.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    EventLoop() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        running = true;
+    }
+
+    /**
+     * The selector connections on this loop register with.
+     *
+     * @return the selector
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Runs a task on this loop's thread, e.g. registering new connections.
+     *
+     * @param task the work to do
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the loop after the current round of events.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Event loop failed!");
+                e.printStackTrace();
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                EventHandler handler = (EventHandler) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    handler.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.onWritable();
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package connectfour.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time controls of one game: a limit on each move and a bank of time
+ * each player may spend over the whole game, either of which may be
+ * unlimited. The clock runs only while a player is being waited on, and its
+ * deadlines are kept on a {@link TimerWheel} shared by every game.
+ */
+public class GameClock {
+    /** the wheel deadlines are kept on, or null if there is no limit */
+    private TimerWheel wheel;
+
+    /** the most a single move may take in milliseconds, or 0 for no limit */
+    private long moveMillis;
+
+    /** the time each player has left for the game in milliseconds */
+    private long[] banks;
+
+    /** whether the game has a time limit at all */
+    private boolean gameLimited;
+
+    /** the player whose clock is running */
+    private int running;
+
+    /** when the running clock was started, in {@link System#nanoTime()} */
+    private long started;
+
+    /** the deadline of the running clock, or null if none is running */
+    private TimerWheel.Timeout timeout;
+
+    /**
+     * Creates a clock that never runs out.
+     */
+    public GameClock() {
+        this(null, 0, 0);
+    }
+
+    /**
+     * Creates a game clock.
+     *
+     * @param wheel the wheel to keep deadlines on
+     * @param moveMillis the most a single move may take in milliseconds, or
+     *                   0 for no limit
+     * @param gameMillis the time each player has for the whole game in
+     *                   milliseconds, or 0 for no limit
+     */
+    public GameClock(TimerWheel wheel, long moveMillis, long gameMillis) {
+        this.moveMillis = moveMillis;
+        gameLimited = gameMillis > 0;
+        banks = new long[] { gameMillis, gameMillis };
+        this.wheel = moveMillis > 0 || gameLimited ? wheel : null;
+    }
+
+    /**
+     * Starts a player's clock.
+     *
+     * @param player 0 for player 1, and 1 for player 2
+     * @param onExpired run on the timer wheel's thread if the player's time
+     *                  runs out before {@link #stop()}; must be quick
+     */
+    public void start(int player, Runnable onExpired) {
+        if (wheel == null) {
+            return;
+        }
+        long limit = moveMillis > 0 ? moveMillis : Long.MAX_VALUE;
+        if (gameLimited) {
+            limit = Math.max(0, Math.min(limit, banks[player]));
+        }
+        running = player;
+        started = System.nanoTime();
+        timeout = wheel.schedule(onExpired, limit, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the running clock, charging the time used to the player's bank.
+     *
+     * @return true if the player moved in time, false if the clock had
+     * already run out
+     */
+    public boolean stop() {
+        if (timeout == null) {
+            return true;
+        }
+        boolean inTime = timeout.cancel();
+        timeout = null;
+        banks[running] -= TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - started);
+        return inTime;
+    }
+}
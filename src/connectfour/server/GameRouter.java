@@ -0,0 +1,472 @@
+package connectfour.server;
+
+import connectfour.ConnectFourException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A front end that spreads games over several game server processes, its
+ * backends. Clients connect to the router as they would to a
+ * {@link ConnectFourServer}. A client waits in the router's own lobby until
+ * a second one arrives, and the pair makes a game, whose number picks a
+ * backend on a {@link HashRing consistent hash ring}; both clients are
+ * connected to that backend, which pairs them off and plays the game. A
+ * client that leaves the lobby before it is paired is never sent on, and
+ * the two connections of a pair are made back to back, one pair per
+ * backend at a time, so a backend is always handed whole pairs in order.
+ * The router cannot see into a backend's lobby, though: a backend seats
+ * clients as their handshakes finish, so a client slow to answer can still
+ * be paired with someone else's partner, and if the second connection of
+ * a pair fails the first is closed while already waiting there, to be
+ * paired with the backend's next client in a game that ends at once. From
+ * then on the router only {@link Relay relays} bytes between each client
+ * and its backend, on a few {@link EventLoop event loops}, without
+ * decoding them. Connecting to a backend can take a while if it is down,
+ * so it is done off the accepting thread.<P>
+ *
+ * Because of the ring, a backend joining or leaving only moves the games
+ * that hash near it, about one game in every (number of backends). A
+ * backend that refuses a connection leaves the ring, so its share goes to
+ * the others, and is tried again after the {@code retry} period. Backends
+ * can also be added and removed while the router runs, by typing
+ * {@code add HOST:PORT} or {@code remove HOST:PORT} on its standard input;
+ * games already being relayed are not affected.<P>
+ *
+ * A reconnecting client is paired and routed like a new one, so a session
+ * can only be {@link connectfour.ConnectFourProtocol#RESUME resumed}
+ * through the router if it lands on the same backend, and the client it was
+ * paired with then waits in that backend's lobby for another. Spectators
+ * connect to the backends directly.
+ */
+public class GameRouter implements Runnable {
+    /**
+     * How many not yet accepted connections the OS should queue.
+     */
+    private static final int BACKLOG = 4096;
+
+    /**
+     * How long to wait for a backend to accept a connection, in
+     * milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    /**
+     * The size of each event loop's relay buffer.
+     */
+    private static final int SCRATCH_SIZE = 8192;
+
+    /**
+     * A game server process. Its monitor is held while a pair is connected
+     * to it, so that pairs do not interleave.
+     */
+    private static class Backend {
+        /** the address as given, e.g. localhost:5001 */
+        private final String name;
+
+        /** where to connect */
+        private final InetSocketAddress address;
+
+        /** when it last refused a connection, in milliseconds */
+        private volatile long failedAt;
+
+        /**
+         * Creates a backend.
+         *
+         * @param name the address as given, {@code HOST:PORT} or just
+         *             {@code PORT} for this machine
+         */
+        private Backend(String name) {
+            this.name = name;
+            int colon = name.lastIndexOf(':');
+            address = colon < 0 ?
+                    new InetSocketAddress("localhost", Integer.parseInt(name)) :
+                    new InetSocketAddress(name.substring(0, colon),
+                            Integer.parseInt(name.substring(colon + 1)));
+        }
+    }
+
+    /**
+     * The channel used to wait for incoming client connections.
+     */
+    private ServerSocketChannel server;
+
+    /**
+     * The loops that relays are spread across.
+     */
+    private EventLoop[] loops;
+
+    /**
+     * Each loop's relay buffer, by loop.
+     */
+    private ByteBuffer[] scratch;
+
+    /**
+     * Connects pairs of clients to their backend.
+     */
+    private ExecutorService connector;
+
+    /**
+     * Every backend, by name, whether or not it is on the ring.
+     */
+    private Map<String, Backend> backends;
+
+    /**
+     * The backends that are up, which games are hashed onto.
+     */
+    private HashRing<Backend> ring;
+
+    /**
+     * How long a backend that refused a connection stays off the ring, in
+     * milliseconds.
+     */
+    private long retry;
+
+    /**
+     * The client waiting in the lobby for a second to make a game with, or
+     * null if there is none. Only used on the accepting thread.
+     */
+    private SocketChannel waiting;
+
+    /**
+     * Where the waiting client is checked for having left.
+     */
+    private ByteBuffer probe;
+
+    /**
+     * The number of games routed so far.
+     */
+    private long games;
+
+    /**
+     * Creates a new {@link GameRouter} that listens for incoming connections
+     * on the specified port, configured by named options:
+     * {@code backends}, a comma separated list of {@code HOST:PORT} (or just
+     * {@code PORT} for this machine), {@code loops}, the number of event
+     * loops (one per processor by default), {@code points}, how many points
+     * each backend gets on the hash ring (160 by default), and
+     * {@code retry}, how long a backend that refused a connection is left
+     * out, in milliseconds (5000 by default).
+     *
+     * @param port The port on which the router should listen for incoming
+     *             connections.
+     * @param options The router's named options.
+     * @throws ConnectFourException If there is an error opening the server
+     *                              channel or the selectors.
+     */
+    public GameRouter(int port, ServerOptions options)
+            throws ConnectFourException {
+        int loopCount = (int) options.getLong("loops",
+                Runtime.getRuntime().availableProcessors());
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            loops = new EventLoop[loopCount];
+            scratch = new ByteBuffer[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop();
+                scratch[i] = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+            }
+        } catch (IOException e) {
+            throw new ConnectFourException(e);
+        }
+        connector = ConnectFourServer.newGameExecutor();
+        probe = ByteBuffer.allocate(1);
+        backends = new ConcurrentHashMap<>();
+        ring = new HashRing<>((int) options.getLong("points", 160));
+        retry = options.getLong("retry", 5000);
+        for (String name : options.get("backends", "").split(",")) {
+            if (!name.isEmpty()) {
+                add(name);
+            }
+        }
+    }
+
+    /**
+     * Adds a backend and puts it on the ring.
+     *
+     * @param name the backend's address, {@code HOST:PORT} or {@code PORT}
+     */
+    public void add(String name) {
+        Backend backend = backends.computeIfAbsent(name, Backend::new);
+        if (ring.add(backend.name, backend)) {
+            System.out.println("Backend " + name + " joined");
+        }
+    }
+
+    /**
+     * Removes a backend. Its future games go to the other backends; games
+     * it is already playing carry on.
+     *
+     * @param name the backend's address as it was added
+     */
+    public void remove(String name) {
+        Backend backend = backends.remove(name);
+        if (backend != null) {
+            ring.remove(backend);
+            System.out.println("Backend " + name + " left");
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts connections on the calling
+     * thread until the router is closed.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread rejoin = new Thread(this::rejoin, "rejoin");
+        rejoin.setDaemon(true);
+        rejoin.start();
+        Thread console = new Thread(this::console, "console");
+        console.setDaemon(true);
+        console.start();
+
+        System.out.println("Routing players...");
+        try {
+            while (server.isOpen()) {
+                SocketChannel client = server.accept();
+                try {
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    close(client);
+                    continue;
+                }
+                if (!stillWaiting()) {
+                    // the first of a pair waits for the second
+                    waiting = client;
+                    continue;
+                }
+                SocketChannel first = waiting;
+                waiting = null;
+                long gameId = ++games;
+                connector.execute(() -> route(gameId, first, client));
+            }
+        } catch (IOException e) {
+            if (server.isOpen()) {
+                System.err.println("Something has gone horribly wrong!");
+                e.printStackTrace();
+            }
+        } finally {
+            close(waiting);
+            connector.shutdown();
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Checks that the client waiting in the lobby is still there. Clients
+     * say nothing until the server has sent
+     * {@link connectfour.ConnectFourProtocol#CONNECT}, so one that has
+     * closed its connection, or spoken out of turn, is dropped.
+     *
+     * @return whether there is a client waiting
+     */
+    private boolean stillWaiting() {
+        if (waiting == null) {
+            return false;
+        }
+        probe.clear();
+        try {
+            if (waiting.read(probe) == 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            // gone
+        }
+        close(waiting);
+        waiting = null;
+        return false;
+    }
+
+    /**
+     * Connects a pair of clients to the backend their game belongs to, in
+     * the order they arrived, and starts relaying for both on the same
+     * event loop. Blocks while connecting.
+     *
+     * @param gameId the game's number
+     * @param clients the pair's channels, in non-blocking mode
+     */
+    private void route(long gameId, SocketChannel... clients) {
+        SocketChannel[] backend = connect(gameId, clients.length);
+        if (backend == null) {
+            System.err.println("No backend for game " + gameId);
+            close(clients);
+            return;
+        }
+        try {
+            for (SocketChannel channel : backend) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+        } catch (IOException e) {
+            close(clients);
+            close(backend);
+            return;
+        }
+        int index = (int) (gameId % loops.length);
+        EventLoop loop = loops[index];
+        loop.execute(() -> {
+            for (int i = 0; i < clients.length; i++) {
+                Relay.open(loop, scratch[index], clients[i], backend[i]);
+            }
+        });
+    }
+
+    /**
+     * Connects to the backend a game belongs to, once for each of its
+     * clients, without letting another game's connections to the same
+     * backend come in between. A backend that refuses is taken off the ring
+     * and the game goes to the next one.
+     *
+     * @param gameId the game's number
+     * @param count how many connections to make
+     * @return blocking channels to the backend, or null if no backend is up
+     */
+    private SocketChannel[] connect(long gameId, int count) {
+        Backend backend;
+        while ((backend = ring.get(gameId)) != null) {
+            SocketChannel[] channels = new SocketChannel[count];
+            try {
+                synchronized (backend) {
+                    for (int i = 0; i < count; i++) {
+                        channels[i] = SocketChannel.open();
+                        channels[i].socket().connect(backend.address,
+                                CONNECT_TIMEOUT);
+                    }
+                }
+                return channels;
+            } catch (IOException e) {
+                close(channels);
+                backend.failedAt = System.currentTimeMillis();
+                if (ring.remove(backend)) {
+                    System.out.println("Backend " + backend.name +
+                            " is down: " + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes channels, skipping any that are null.
+     *
+     * @param channels the channels
+     */
+    private static void close(SocketChannel... channels) {
+        for (SocketChannel channel : channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // squash
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts backends that refused a connection back on the ring once the
+     * retry period has passed. The next game routed to one tries it again;
+     * nothing else connects to it, as any connection to a game server is
+     * taken for a player.
+     */
+    private void rejoin() {
+        while (server.isOpen()) {
+            try {
+                Thread.sleep(Math.max(retry / 4, 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Backend backend : backends.values()) {
+                if (!ring.contains(backend) &&
+                        now - backend.failedAt >= retry &&
+                        backends.get(backend.name) == backend &&
+                        ring.add(backend.name, backend)) {
+                    System.out.println("Retrying backend " + backend.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads {@code add HOST:PORT} and {@code remove HOST:PORT} commands from
+     * standard input until it ends.
+     */
+    private void console() {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split(" +");
+                try {
+                    if (words.length == 2 && words[0].equals("add")) {
+                        add(words[1]);
+                    } else if (words.length == 2 &&
+                            words[0].equals("remove")) {
+                        remove(words[1]);
+                    } else if (!line.isBlank()) {
+                        System.out.println("Commands: add HOST:PORT, " +
+                                "remove HOST:PORT");
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Bad backend address: " + words[1]);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Console failed: " + e);
+        }
+    }
+
+    /**
+     * Stops accepting connections. Games already being relayed play on
+     * until their connections close.
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Starts a new {@link GameRouter} in the main thread.
+     *
+     * @param args the port to listen on, followed by the named options:
+     *             {@code --backends=HOST:PORT,...}, {@code --loops=N},
+     *             {@code --points=N} and {@code --retry=MS}
+     * @throws ConnectFourException If there is an error starting the router.
+     */
+    public static void main(String[] args) throws ConnectFourException {
+        if (args.length < 1) {
+            System.out.println("Usage: java GameRouter <port> " +
+                    "--backends=HOST:PORT,... [--loops=N] [--points=N] " +
+                    "[--retry=MS]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        ServerOptions options = new ServerOptions(
+                Arrays.asList(args).subList(1, args.length));
+        new GameRouter(port, options).run();
+    }
+}
@@ -0,0 +1,127 @@
+package connectfour.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring. Each node is placed on the ring at many points
+ * hashed from its name, and a key belongs to the node at the first point at
+ * or after the key's own hash, wrapping around. Adding or removing a node
+ * only moves the keys between its points and their neighbours, about one
+ * key in every (number of nodes) rather than nearly all of them, and the
+ * many points per node keep the shares even.<P>
+ *
+ * Lookups read an immutable copy of the ring without locking; changes,
+ * which are rare, build a new copy.
+ *
+ * @param <T> the type of the nodes
+ */
+class HashRing<T> {
+    /** how many points each node has on the ring */
+    private final int points;
+
+    /** the nodes by the points they hold; replaced whole on each change */
+    private volatile TreeMap<Long, T> ring;
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param points how many points each node gets
+     */
+    HashRing(int points) {
+        this.points = points;
+        ring = new TreeMap<>();
+    }
+
+    /**
+     * Places a node on the ring, unless it is already there.
+     *
+     * @param name the node's name, which its points are hashed from
+     * @param node the node
+     * @return true if the node was added
+     */
+    synchronized boolean add(String name, T node) {
+        if (ring.containsValue(node)) {
+            return false;
+        }
+        TreeMap<Long, T> copy = new TreeMap<>(ring);
+        long seed = hash(name);
+        for (int i = 0; i < points; i++) {
+            copy.putIfAbsent(mix(seed + i * 0x9E3779B97F4A7C15L), node);
+        }
+        ring = copy;
+        return true;
+    }
+
+    /**
+     * Takes a node off the ring. Its keys go to the nodes that follow its
+     * points.
+     *
+     * @param node the node
+     * @return true if the node was on the ring
+     */
+    synchronized boolean remove(T node) {
+        TreeMap<Long, T> copy = new TreeMap<>(ring);
+        if (!copy.values().removeIf(node::equals)) {
+            return false;
+        }
+        ring = copy;
+        return true;
+    }
+
+    /**
+     * Whether a node is on the ring.
+     *
+     * @param node the node
+     * @return true if it is
+     */
+    boolean contains(T node) {
+        return ring.containsValue(node);
+    }
+
+    /**
+     * Finds the node a key belongs to.
+     *
+     * @param key the key, e.g. a game number
+     * @return the node, or null if the ring is empty
+     */
+    T get(long key) {
+        TreeMap<Long, T> current = ring;
+        if (current.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, T> entry = current.ceilingEntry(mix(key));
+        return (entry != null ? entry : current.firstEntry()).getValue();
+    }
+
+    /**
+     * Hashes a name to 64 bits (FNV-1a).
+     *
+     * @param name the name
+     * @return the hash
+     */
+    private static long hash(String name) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Scrambles 64 bits so that nearby inputs land far apart on the ring
+     * (the MurmurHash3 finalizer).
+     *
+     * @param x the input
+     * @return the scrambled bits
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB9FE1A85EC53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
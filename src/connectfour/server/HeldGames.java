@@ -0,0 +1,180 @@
+package connectfour.server;
+
+import connectfour.ConnectFourException;
+import connectfour.journal.GameRecord;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The games that were being played when the server stopped, recovered from
+ * the {@link connectfour.journal.Journal journal} and held open for a grace
+ * period so that their players can reconnect and {@link
+ * connectfour.ConnectFourProtocol#RESUME resume} them. A player takes its
+ * seat back with the session token it was given before the restart, which
+ * the journal keeps with the game, so a seat cannot be taken by guessing
+ * game numbers. A game starts again once both seats are taken. When the
+ * grace period is over, every game still missing a player ends in an
+ * error.
+ */
+class HeldGames {
+    /**
+     * A game waiting for its players.
+     */
+    private static class Held {
+        /** the game's entry in the journal, with the moves so far */
+        private GameRecord record;
+
+        /** the players back so far, by seat */
+        private ConnectFourPlayer[] seats;
+
+        /** how many of them have been sent the game so far */
+        private int ready;
+
+        /**
+         * Holds a recovered game.
+         *
+         * @param record the game's entry in the journal
+         */
+        private Held(GameRecord record) {
+            this.record = record;
+            seats = new ConnectFourPlayer[2];
+        }
+    }
+
+    /** the games still waiting, by game number */
+    private Map<Long, Held> games;
+
+    /** the games with an empty seat, by the token of its player */
+    private Map<String, Held> seats;
+
+    /** where resumed players are registered, or null if they are not */
+    private Sessions sessions;
+
+    /** whether the grace period is over */
+    private boolean expired;
+
+    /**
+     * Holds recovered games open.
+     *
+     * @param unfinished the records of the games that were being played,
+     *                   each with a token for both seats
+     * @param sessions where resumed players are registered so that they can
+     *                 resume again if their connection drops, or null
+     */
+    HeldGames(List<GameRecord> unfinished, Sessions sessions) {
+        games = new HashMap<>();
+        seats = new HashMap<>();
+        this.sessions = sessions;
+        for (GameRecord record : unfinished) {
+            Held held = new Held(record);
+            games.put(record.getId(), held);
+            seats.put(record.getToken(0), held);
+            seats.put(record.getToken(1), held);
+        }
+    }
+
+    /**
+     * Whether any games are still waiting for players.
+     *
+     * @return true until every game has started again or the grace period
+     * is over
+     */
+    synchronized boolean isOpen() {
+        return !expired && !games.isEmpty();
+    }
+
+    /**
+     * Whether a token is that of a player whose seat is still held.
+     *
+     * @param token the token
+     * @return true if {@link #resume} would seat the player
+     */
+    synchronized boolean holds(String token) {
+        return !expired && seats.containsKey(token);
+    }
+
+    /**
+     * Seats a player who has asked to resume a game, and sends them the game
+     * so far. The player keeps the token it resumed with.
+     *
+     * @param token the session token of the player who sat in the seat
+     * @param player the player
+     * @param start called with the game's record and both players, in seat
+     *              order, once the second of them is back
+     * @throws ConnectFourException If no held seat has the token.
+     */
+    void resume(String token, ConnectFourPlayer player, Starter start)
+            throws ConnectFourException {
+        Held held;
+        int seat;
+        synchronized (this) {
+            held = expired ? null : seats.remove(token);
+            if (held == null) {
+                throw new ConnectFourException("Cannot resume session " +
+                        token);
+            }
+            seat = token.equals(held.record.getToken(0)) ? 0 : 1;
+            held.seats[seat] = player;
+        }
+        player.setToken(token);
+        if (sessions != null) {
+            sessions.add(player);
+        }
+        player.snapshot(held.record.getId(), held.record.getMoves());
+
+        // whoever is sent the game last starts it, so that neither player
+        // is asked for a move before it has the game so far
+        synchronized (this) {
+            if (expired || ++held.ready < 2) {
+                return;
+            }
+            games.remove(held.record.getId());
+        }
+        start.start(held.record, held.seats[0], held.seats[1]);
+    }
+
+    /**
+     * Ends the grace period. Every game still missing a player ends in an
+     * error, and a player already back is told and disconnected.
+     */
+    void expire() {
+        Map<Long, Held> abandoned;
+        synchronized (this) {
+            expired = true;
+            abandoned = games;
+            games = new HashMap<>();
+            seats.clear();
+        }
+        for (Held held : abandoned.values()) {
+            for (ConnectFourPlayer player : held.seats) {
+                if (player != null) {
+                    player.error("The other player did not come back.");
+                    player.close();
+                }
+            }
+            held.record.gameOver("ERROR");
+        }
+        if (!abandoned.isEmpty()) {
+            System.out.println(abandoned.size() +
+                    " recovered games were not resumed in time");
+        }
+    }
+
+    /**
+     * Starts a resumed game.
+     */
+    interface Starter {
+        /**
+         * Starts a resumed game.
+         *
+         * @param record the game's entry in the journal, with the moves so
+         *               far
+         * @param playerOne the first player
+         * @param playerTwo the second player
+         */
+        void start(GameRecord record, ConnectFourPlayer playerOne,
+                   ConnectFourPlayer playerTwo);
+    }
+}
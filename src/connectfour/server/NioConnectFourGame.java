@@ -0,0 +1,343 @@
+package connectfour.server;
+
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourException;
+import connectfour.ConnectFourProtocol;
+import connectfour.journal.GameRecord;
+import connectfour.metrics.ServerMetrics;
+
+/**
+ * A Connect Four game driven by readiness events on the non-blocking
+ * transport instead of by a thread blocking on each player. The game moves
+ * between explicit states as the event loop reports input and drained
+ * output, and it plays by the same rules and sends the same messages as
+ * {@link ConnectFourGame}. A player who runs out of time on the game's
+ * {@link GameClock} either forfeits or has a move played for them.
+ */
+class NioConnectFourGame implements ConnectFourProtocol {
+    /** how spectators are told each player won, by player index */
+    private static final String[] WINNERS = { "PLAYER_ONE", "PLAYER_TWO" };
+
+    /**
+     * The states the game moves through.
+     */
+    enum State {
+        /** the current player has been sent {@link #MAKE_MOVE} */
+        AWAITING_MOVE,
+        /** a move was made and is being written out to the mover */
+        BROADCASTING,
+        /** the game is over and the connections are closing */
+        FINISHED
+    }
+
+    /** the two players, indexed by whose turn it is */
+    private NioConnection[] players;
+
+    /** the player whose turn it is; 0 for player 1, and 1 for player 2 */
+    private int current;
+
+    /** the game model */
+    private ConnectFour game;
+
+    /** where the game is in its turn cycle */
+    private State state;
+
+    /** the game's spectators */
+    private Spectators spectators;
+
+    /** the players' time controls */
+    private GameClock clock;
+
+    /** the game's entry in the journal */
+    private GameRecord record;
+
+    /** whether running out of time plays a move rather than forfeiting */
+    private boolean autoMove;
+
+    /** counts requests for a move, so a stale expiry can be recognised */
+    private int turns;
+
+    /** when the current player was asked for a move */
+    private long asked;
+
+    /**
+     * whether each player had a move played for them and may still send the
+     * move they were too late with
+     */
+    private boolean[] autoMoved;
+
+    /**
+     * Initialize the game. The players are attached with {@link #join}.
+     *
+     * @param spectators told about every move and the result
+     * @param clock the players' time controls
+     * @param autoMove true to play the centre-most open column for a player
+     *                 who runs out of time, false to make them forfeit
+     * @param record where every move and the result are journaled
+     */
+    NioConnectFourGame(Spectators spectators, GameClock clock,
+                       boolean autoMove, GameRecord record) {
+        this.spectators = spectators;
+        this.clock = clock;
+        this.record = record;
+        this.autoMove = autoMove;
+        autoMoved = new boolean[2];
+        players = new NioConnection[2];
+        game = new ConnectFour();
+        current = 0;
+        state = State.BROADCASTING;
+    }
+
+    /**
+     * Seats a player.
+     *
+     * @param player 0 for player 1, and 1 for player 2
+     * @param connection the player's connection
+     */
+    void join(int player, NioConnection connection) {
+        players[player] = connection;
+    }
+
+    /**
+     * Starts play by asking player 1 for a move. Must be called on the
+     * event loop thread once both players have joined. If either player
+     * has already gone, the game ends at once, like any other game whose
+     * player is lost, so the journal and the metrics never keep it open.
+     */
+    void start() {
+        ServerMetrics.get().gameStarted();
+        for (NioConnection player : players) {
+            if (!player.isOpen()) {
+                onDisconnect(player);
+                return;
+            }
+        }
+        askForMove();
+    }
+
+    /**
+     * Called when a player has sent more input.
+     *
+     * @param connection the player that sent it
+     */
+    void onReadable(NioConnection connection) {
+        if (state == State.AWAITING_MOVE && connection == players[current]) {
+            readMove();
+        }
+    }
+
+    /**
+     * Called when a player's queued output has been completely written.
+     * Once the last mover has been sent everything, the next player is asked
+     * for a move; that player's own copy of the last move is still buffered
+     * and goes out in the same write as the request.
+     *
+     * @param connection the player whose output drained
+     */
+    void onDrained(NioConnection connection) {
+        if (state == State.BROADCASTING && players[current ^ 1].isDrained()) {
+            askForMove();
+        }
+    }
+
+    /**
+     * Called when a player's connection has been lost. The game cannot go
+     * on, so the other player is told and the game ends.
+     *
+     * @param connection the player that disconnected
+     */
+    void onDisconnect(NioConnection connection) {
+        if (state == State.FINISHED) {
+            return;
+        }
+        NioConnection other =
+                connection == players[0] ? players[1] : players[0];
+        other.send(Message.ERROR, "Lost connection to other player.");
+        gameOver("ERROR");
+        finish();
+    }
+
+    /**
+     * Sends {@link #MAKE_MOVE} to the player whose turn it is and handles a
+     * move that may already have arrived.
+     */
+    private void askForMove() {
+        NioConnection player = players[current];
+        if (autoMoved[current]) {
+            autoMoved[current] = false;
+            try {
+                discardInput(player);
+            } catch (ConnectFourException e) {
+                fail(e.getMessage());
+                return;
+            }
+        }
+
+        state = State.AWAITING_MOVE;
+        player.send(Message.MAKE_MOVE);
+        player.flush();
+        asked = System.nanoTime();
+        int turn = ++turns;
+        clock.start(current, () -> player.execute(() -> onExpired(turn)));
+        readMove();
+    }
+
+    /**
+     * Throws away whatever a player sent while it was not their turn, such
+     * as a move that came too late and was played for them. A switch to
+     * {@link #BINARY} framing is still acknowledged.
+     *
+     * @param player the player
+     * @throws ConnectFourException If the input is not a valid message.
+     */
+    private void discardInput(NioConnection player)
+            throws ConnectFourException {
+        Message message;
+        while ((message = player.nextMessage()) != null) {
+            if (message == Message.BINARY) {
+                player.send(Message.BINARY);
+            }
+        }
+    }
+
+    /**
+     * Called on the event loop when the current player's clock has run out.
+     *
+     * @param turn which request for a move the clock was started for
+     */
+    private void onExpired(int turn) {
+        if (state == State.AWAITING_MOVE && turn == turns) {
+            clock.stop();
+            outOfTime();
+        }
+    }
+
+    /**
+     * Ends the current player's turn because they ran out of time.
+     */
+    private void outOfTime() {
+        if (autoMove) {
+            autoMoved[current] = true;
+            try {
+                playMove(game.centerMostMove());
+            } catch (ConnectFourException e) {
+                fail(e.getMessage());
+            }
+        } else {
+            players[current].send(Message.GAME_LOST);
+            players[current ^ 1].send(Message.GAME_WON);
+            gameOver(WINNERS[current ^ 1]);
+            finish();
+        }
+    }
+
+    /**
+     * Tries to take the current player's move from its input and play it,
+     * acknowledging a switch to {@link #BINARY} framing on the way.
+     */
+    private void readMove() {
+        NioConnection player = players[current];
+        try {
+            Message response = player.nextMessage();
+            if (response == Message.BINARY) {
+                // goes out with the next flush
+                player.send(Message.BINARY);
+                response = player.nextMessage();
+            }
+            if (response == null) {
+                return;
+            }
+            else if (response != Message.MOVE) {
+                throw new ConnectFourException("Invalid player response: " +
+                        player.codec().line());
+            }
+            ServerMetrics.get().getThinkTime()
+                    .record(System.nanoTime() - asked);
+            if (!clock.stop()) {
+                // too late, even though the expiry has not been handled yet
+                outOfTime();
+                return;
+            }
+            playMove(player.codec().column());
+        } catch (ConnectFourException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Plays a move, tells both players about it, and either ends the game
+     * or waits for the mover's output to drain before asking for the next
+     * move.
+     *
+     * @param column the column the current player moved in
+     * @throws ConnectFourException If the move is invalid.
+     */
+    private void playMove(int column) throws ConnectFourException {
+        long start = System.nanoTime();
+        game.makeMove(column);
+        spectators.moveMade(column);
+        record.moveMade(column);
+
+        NioConnection turn = players[current];
+        NioConnection other = players[current ^ 1];
+        state = State.BROADCASTING;
+        turn.send(Message.MOVE_MADE, column);
+        other.send(Message.MOVE_MADE, column);
+
+        if (game.hasWonGame()) {
+            turn.send(Message.GAME_WON);
+            other.send(Message.GAME_LOST);
+            gameOver(WINNERS[current]);
+            finish();
+        } else if (game.hasTiedGame()) {
+            turn.send(Message.GAME_TIED);
+            other.send(Message.GAME_TIED);
+            gameOver("TIE");
+            finish();
+        } else {
+            turn.flush();
+        }
+        ServerMetrics.get().movePlayed(System.nanoTime() - start);
+        if (state == State.BROADCASTING) {
+            // the next move may already be waiting; it is timed on its own
+            current ^= 1;
+            onDrained(turn);
+        }
+    }
+
+    /**
+     * Ends the game with an error sent to both players.
+     *
+     * @param message the error message
+     */
+    private void fail(String message) {
+        players[0].send(Message.ERROR, message);
+        players[1].send(Message.ERROR, message);
+        gameOver("ERROR");
+        finish();
+    }
+
+    /**
+     * Tells the spectators, the journal and the {@link ServerMetrics} how
+     * the game ended.
+     *
+     * @param outcome {@code PLAYER_ONE}, {@code PLAYER_TWO}, {@code TIE} or
+     *                {@code ERROR}
+     */
+    private void gameOver(String outcome) {
+        spectators.gameOver(outcome);
+        record.gameOver(outcome);
+        ServerMetrics.get().gameOver(outcome);
+    }
+
+    /**
+     * Ends the game, closing both connections once they have been sent
+     * everything.
+     */
+    private void finish() {
+        state = State.FINISHED;
+        clock.stop();
+        players[0].closeWhenDrained();
+        players[1].closeWhenDrained();
+    }
+}
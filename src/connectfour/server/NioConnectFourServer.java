@@ -0,0 +1,261 @@
+package connectfour.server;
+
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourException;
+import connectfour.ConnectFourProtocol;
+import connectfour.journal.GameRecord;
+import connectfour.journal.Journal;
+import connectfour.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * A {@link ConnectFourServer} alternative built on non-blocking channels.
+ * A small, fixed number of {@link EventLoop event loops} service every
+ * connection, and each game is an {@link NioConnectFourGame explicit state
+ * machine} rather than a thread, so an idle connection costs a few buffers
+ * instead of a thread stack.
+ */
+public class NioConnectFourServer implements ConnectFourProtocol, Runnable {
+    /**
+     * How many not yet accepted connections the OS should queue.
+     */
+    private static final int BACKLOG = 4096;
+
+    /**
+     * The channel used to wait for incoming client connections.
+     */
+    private ServerSocketChannel server;
+
+    /**
+     * The loops that games are spread across.
+     */
+    private EventLoop[] loops;
+
+    /**
+     * The connected player still waiting for an opponent, if any.
+     */
+    private NioConnection waiting;
+
+    /**
+     * The loop the waiting player, and so its game, is on.
+     */
+    private EventLoop waitingLoop;
+
+    /**
+     * The loop the next game is placed on.
+     */
+    private int nextLoop;
+
+    /**
+     * Accepts spectators, or null if games cannot be watched.
+     */
+    private SpectatorServer spectators;
+
+    /**
+     * The number given to the last game started.
+     */
+    private long lastGameId;
+
+    /**
+     * Where every game is recorded, or null if games are not journaled.
+     */
+    private Journal journal;
+
+    /**
+     * How long players may take to move.
+     */
+    private TimeControls time;
+
+    /**
+     * Creates a new {@link NioConnectFourServer} that listens for incoming
+     * connections on the specified port.
+     *
+     * @param port The port on which the server should listen for incoming
+     *             connections.
+     * @param loopCount The number of event loop threads.
+     * @throws ConnectFourException If there is an error opening the server
+     *                              channel or the selectors.
+     */
+    public NioConnectFourServer(int port, int loopCount)
+            throws ConnectFourException {
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop();
+            }
+        } catch (IOException e) {
+            throw new ConnectFourException(e);
+        }
+        time = new TimeControls(new ServerOptions(Arrays.asList()));
+    }
+
+    /**
+     * Creates a new {@link NioConnectFourServer} configured by named
+     * options: {@code loops}, the number of event loops (one per processor
+     * by default), {@code watch-port}, the port spectators connect to, the
+     * {@link TimeControls time controls}, and the {@link Journal#open(
+     * ServerOptions) journal} options.
+     *
+     * @param port The port on which the server should listen for incoming
+     *             connections.
+     * @param options The server's named options.
+     * @throws ConnectFourException If there is an error opening the server
+     *                              channel or the selectors.
+     */
+    public NioConnectFourServer(int port, ServerOptions options)
+            throws ConnectFourException {
+        this(port, (int) options.getLong("loops",
+                Runtime.getRuntime().availableProcessors()));
+        time = new TimeControls(options);
+        if (options.has("watch-port")) {
+            spectators = new SpectatorServer(
+                    (int) options.getLong("watch-port", 0));
+        }
+        try {
+            journal = Journal.open(options);
+        } catch (IOException e) {
+            throw new ConnectFourException(e);
+        }
+        if (journal != null) {
+            lastGameId = journal.getLastGameId();
+            // only the blocking server can hold games open for their
+            // players to resume
+            for (GameRecord record : journal.getUnfinished()) {
+                record.gameOver("ERROR");
+            }
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts connections on the calling
+     * thread until the server is closed. Players are paired off in arrival
+     * order and each game is placed on one of the loops round robin; a
+     * player is registered on its game's loop, which greets it, as soon as
+     * it arrives.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        time.start();
+        if (spectators != null) {
+            Thread watch = new Thread(spectators, "spectators");
+            watch.setDaemon(true);
+            watch.start();
+        }
+
+        System.out.println("Waiting for players...");
+        try {
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    ServerMetrics.get().connected();
+                    System.out.println("Player connected from " +
+                            channel.getRemoteAddress());
+                } catch (IOException e) {
+                    channel.close();
+                    continue;
+                }
+
+                NioConnection connection = new NioConnection(channel);
+                if (waiting == null) {
+                    waitingLoop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    waiting = connection;
+                    greet(waitingLoop, connection);
+                } else {
+                    greet(waitingLoop, connection);
+                    startGame(waitingLoop, waiting, connection);
+                    waiting = null;
+                }
+            }
+        } catch (IOException e) {
+            if (server.isOpen()) {
+                System.err.println("Something has gone horribly wrong!");
+                e.printStackTrace();
+            }
+        } finally {
+            time.close();
+            if (spectators != null) {
+                spectators.close();
+            }
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Has an event loop register a new player and send it
+     * {@link #CONNECT}, without blocking. A player that cannot be
+     * registered is closed; its game, if it gets one, ends at the start.
+     *
+     * @param loop the loop the player's game will be on
+     * @param player the player's connection
+     */
+    private void greet(EventLoop loop, NioConnection player) {
+        loop.execute(() -> {
+            try {
+                player.register(loop);
+            } catch (IOException e) {
+                player.close();
+                return;
+            }
+            player.send(Message.CONNECT, BINARY);
+            player.flush();
+        });
+    }
+
+    /**
+     * Has an event loop start a game for a pair of players already
+     * registered with it.
+     *
+     * @param loop the players' loop
+     * @param one the first player's connection
+     * @param two the second player's connection
+     */
+    private void startGame(EventLoop loop, NioConnection one,
+                           NioConnection two) {
+        long gameId = ++lastGameId;
+        NioConnectFourGame game = new NioConnectFourGame(
+                SpectatorServer.open(spectators, gameId), time.newClock(),
+                time.isAutoMove(), Journal.open(journal, gameId));
+        game.join(0, one);
+        game.join(1, two);
+
+        System.out.println("Starting game " + gameId + "!");
+        loop.execute(() -> {
+            one.join(game);
+            two.join(game);
+            game.start();
+        });
+    }
+
+    /**
+     * Stops accepting connections. {@link #run()} then shuts the event loops
+     * down, which abandons any games still in progress.
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package connectfour.server;
+
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourException;
+import connectfour.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One client connection on the non-blocking transport. Incoming bytes are
+ * buffered until the {@link NioConnectFourGame game} asks for a message, and
+ * outgoing messages are collected in a buffer until the game calls
+ * {@link #flush()}, so each game step costs one write per connection.
+ * A connection is registered, and greeted, as soon as it is accepted, and
+ * joins its game once an opponent arrives. Only ever used from its
+ * {@link EventLoop}'s thread.
+ */
+class NioConnection implements EventHandler {
+    /** how much output can be queued before the buffer has to grow */
+    private static final int OUTPUT_SIZE = 1024;
+
+    /** the client's channel */
+    private SocketChannel channel;
+
+    /** the event loop servicing this connection */
+    private EventLoop loop;
+
+    /** the channel's registration with the event loop's selector */
+    private SelectionKey key;
+
+    /** decodes the bytes read from the client */
+    private ConnectFourCodec codec;
+
+    /** encoded messages waiting to be written to the client, in write mode */
+    private ByteBuffer out;
+
+    /** the game this connection plays in, or null until it has one */
+    private NioConnectFourGame game;
+
+    /** whether to close the channel once the output queue drains */
+    private boolean closing;
+
+    /**
+     * Creates a connection for a channel that has already been put in
+     * non-blocking mode.
+     *
+     * @param channel the client's channel
+     */
+    NioConnection(SocketChannel channel) {
+        this.channel = channel;
+        codec = new ConnectFourCodec();
+        out = ByteBuffer.allocate(OUTPUT_SIZE);
+    }
+
+    /**
+     * Registers the channel with an event loop. Must be called on that
+     * loop's thread.
+     *
+     * @param loop the loop that will service this connection
+     * @throws IOException If the channel cannot be registered.
+     */
+    void register(EventLoop loop) throws IOException {
+        this.loop = loop;
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Joins the game this client plays in. Input that arrived before then
+     * is kept for the game.
+     *
+     * @param game the game
+     */
+    void join(NioConnectFourGame game) {
+        this.game = game;
+    }
+
+    /**
+     * Whether the connection is still open.
+     *
+     * @return false once it has been closed, by either end
+     */
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Starts writing every collected message to the client.
+     */
+    void flush() {
+        if (channel.isOpen()) {
+            flushOut();
+        }
+    }
+
+    /**
+     * Queues a message without arguments for the client.
+     *
+     * @param message the message
+     */
+    void send(Message message) {
+        if (channel.isOpen()) {
+            codec.encode(reserve(), message);
+        }
+    }
+
+    /**
+     * Queues a message carrying a column number for the client.
+     *
+     * @param message the message
+     * @param column the column
+     */
+    void send(Message message, int column) {
+        if (channel.isOpen()) {
+            codec.encode(reserve(), message, column);
+        }
+    }
+
+    /**
+     * Queues a message carrying text, such as an error, for the client.
+     *
+     * @param message the message
+     * @param text the text
+     */
+    void send(Message message, String text) {
+        if (channel.isOpen()) {
+            codec.encode(reserve(), message, text);
+        }
+    }
+
+    /**
+     * Whether every queued message has been handed to the socket.
+     *
+     * @return true if nothing is waiting to be written or flushed
+     */
+    boolean isDrained() {
+        return out.position() == 0;
+    }
+
+    /**
+     * Decodes the next complete message the client has sent, if there is
+     * one.
+     *
+     * @return the message, or null if a full line has not arrived yet
+     * @throws ConnectFourException If the client sent something that is not
+     * a valid message.
+     */
+    Message nextMessage() throws ConnectFourException {
+        Message message = codec.decode();
+        resumeReading();
+        return message;
+    }
+
+    /**
+     * Runs a task on this connection's event loop thread. May be called from
+     * any thread.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    /**
+     * The codec holding the last decoded message's arguments.
+     *
+     * @return the codec
+     */
+    ConnectFourCodec codec() {
+        return codec;
+    }
+
+    /**
+     * Called by the event loop when the channel has bytes to read.
+     */
+    @Override
+    public void onReadable() {
+        try {
+            ByteBuffer in = codec.inputBuffer();
+            if (channel.read(in) < 0) {
+                disconnected();
+                return;
+            }
+            if (!in.hasRemaining()) {
+                // leave the rest in the kernel until the game catches up
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (game != null) {
+                game.onReadable(this);
+            }
+        } catch (IOException e) {
+            disconnected();
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel can accept more output.
+     */
+    @Override
+    public void onWritable() {
+        flushOut();
+        if (isDrained() && channel.isOpen() && game != null) {
+            game.onDrained(this);
+        }
+    }
+
+    /**
+     * Flushes and closes the connection once every queued message has been
+     * written.
+     */
+    void closeWhenDrained() {
+        closing = true;
+        if (isDrained()) {
+            close();
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Closes the connection after the client has gone, and tells the game,
+     * if there is one yet.
+     */
+    private void disconnected() {
+        close();
+        if (game != null) {
+            game.onDisconnect(this);
+        }
+    }
+
+    /**
+     * Closes the connection immediately.
+     */
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket will take, asking the
+     * selector for write readiness if some is left over. A failed write is
+     * reported to the game on a later turn of the event loop, so the game
+     * never sees a disconnect in the middle of its own update.
+     */
+    private void flushOut() {
+        try {
+            out.flip();
+            long start = System.nanoTime();
+            channel.write(out);
+            ServerMetrics.get().getWriteTime()
+                    .record(System.nanoTime() - start);
+            boolean drained = !out.hasRemaining();
+            out.compact();
+            if (!drained) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            out.clear();
+            close();
+            loop.execute(() -> {
+                if (game != null) {
+                    game.onDisconnect(this);
+                }
+            });
+            return;
+        }
+
+        if (closing) {
+            close();
+        }
+    }
+
+    /**
+     * Makes sure the output buffer has room for one more message, growing it
+     * if a slow client has let output pile up.
+     *
+     * @return the output buffer
+     */
+    private ByteBuffer reserve() {
+        if (out.remaining() < ConnectFourCodec.MAX_LINE) {
+            ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        return out;
+    }
+
+    /**
+     * Turns reading back on after the input buffer has been consumed.
+     */
+    private void resumeReading() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+}
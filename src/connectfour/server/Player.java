@@ -0,0 +1,66 @@
+package connectfour.server;
+
+import connectfour.ConnectFourException;
+
+import java.io.Closeable;
+
+/**
+ * One side of a {@link ConnectFourGame}: a client connected over the
+ * network ({@link ConnectFourPlayer}) or a built-in {@link BotPlayer}. The
+ * game asks the player for moves and tells it everything that happens.
+ */
+public interface Player extends Closeable {
+    /**
+     * Asks the player for its next move.
+     *
+     * @return The column in which the player would like to move.
+     * @throws ConnectFourException If the player cannot answer.
+     */
+    int makeMove() throws ConnectFourException;
+
+    /**
+     * Stops waiting for the player's move because its time has run out. May
+     * be called from another thread while {@link #makeMove()} is running.
+     */
+    void abortMove();
+
+    /**
+     * Tells the player a move has been made, by either side.
+     *
+     * @param column The column in which the move has been made.
+     */
+    void moveMade(int column);
+
+    /**
+     * Tells the player it won the game.
+     */
+    void gameWon();
+
+    /**
+     * Tells the player it lost the game.
+     */
+    void gameLost();
+
+    /**
+     * Tells the player the game tied.
+     */
+    void gameTied();
+
+    /**
+     * Tells the player the game ended in an error.
+     *
+     * @param message The error message.
+     */
+    void error(String message);
+
+    /**
+     * Sends the player everything it has been told so far.
+     */
+    void flush();
+
+    /**
+     * Called once the game is over.
+     */
+    @Override
+    void close();
+}
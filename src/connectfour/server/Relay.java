@@ -0,0 +1,139 @@
+package connectfour.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One end of a connection relayed by the {@link GameRouter}: a client's
+ * channel or the backend channel it is joined to. Bytes read from one end
+ * are written straight to the other, through a direct buffer shared by
+ * every relay on the same {@link EventLoop}, so in the usual case they are
+ * never copied onto the heap and a relay holds no buffer of its own. Only
+ * when the other end cannot take everything at once are the leftover bytes
+ * kept, and this end stops reading until they have been written. The
+ * relay does not look at the bytes, so it carries text and
+ * {@link connectfour.ConnectFourProtocol#BINARY binary} framing alike.
+ * Only ever used from its event loop's thread.
+ */
+class Relay implements EventHandler {
+    /** this end's channel */
+    private SocketChannel channel;
+
+    /** the channel's registration with the event loop's selector */
+    private SelectionKey key;
+
+    /** the other end */
+    private Relay peer;
+
+    /** the event loop's buffer, which bytes pass through */
+    private ByteBuffer scratch;
+
+    /**
+     * Bytes read from this end that the other end has not taken yet, in read
+     * mode, or null if there are none.
+     */
+    private ByteBuffer pending;
+
+    /**
+     * Creates one end of a relay.
+     *
+     * @param channel the end's channel, already in non-blocking mode
+     * @param scratch the event loop's buffer
+     */
+    private Relay(SocketChannel channel, ByteBuffer scratch) {
+        this.channel = channel;
+        this.scratch = scratch;
+    }
+
+    /**
+     * Joins two channels and starts relaying between them. Must be called
+     * on the loop's thread.
+     *
+     * @param loop the loop that will service both channels
+     * @param scratch the loop's buffer
+     * @param client the client's channel, in non-blocking mode
+     * @param backend the backend's channel, in non-blocking mode
+     */
+    static void open(EventLoop loop, ByteBuffer scratch, SocketChannel client,
+                     SocketChannel backend) {
+        Relay front = new Relay(client, scratch);
+        Relay back = new Relay(backend, scratch);
+        front.peer = back;
+        back.peer = front;
+        try {
+            front.key = client.register(loop.selector(),
+                    SelectionKey.OP_READ, front);
+            back.key = backend.register(loop.selector(),
+                    SelectionKey.OP_READ, back);
+        } catch (IOException e) {
+            front.close();
+        }
+    }
+
+    /**
+     * Reads what has arrived on this end and writes it to the other. When
+     * either side closes, so does the other; everything read before then
+     * has already been passed on.
+     */
+    @Override
+    public void onReadable() {
+        scratch.clear();
+        try {
+            if (channel.read(scratch) < 0) {
+                close();
+                return;
+            }
+            scratch.flip();
+            peer.channel.write(scratch);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (scratch.hasRemaining()) {
+            // the other end is behind: keep the rest, stop reading until it
+            // has caught up
+            pending = ByteBuffer.allocate(scratch.remaining());
+            pending.put(scratch).flip();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            peer.key.interestOps(peer.key.interestOps() |
+                    SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Writes more of the bytes the other end is holding for this one, and
+     * lets the other end read again once they are all gone.
+     */
+    @Override
+    public void onWritable() {
+        ByteBuffer bytes = peer.pending;
+        try {
+            channel.write(bytes);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (!bytes.hasRemaining()) {
+            peer.pending = null;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            peer.key.interestOps(peer.key.interestOps() |
+                    SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Closes both ends.
+     */
+    private void close() {
+        for (SocketChannel end : new SocketChannel[] {
+                channel, peer.channel }) {
+            try {
+                end.close();
+            } catch (IOException e) {
+                // squash
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package connectfour.server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The named command line arguments of the server, given as
+ * <code>--<i>name</i>=<i>value</i></code>, with typed accessors that fall
+ * back to a default when an option is missing.
+ */
+public class ServerOptions {
+    /** option values by name */
+    private Map<String, String> values;
+
+    /**
+     * Parses named arguments.
+     *
+     * @param args the arguments, each of the form
+     *             <code>--<i>name</i>=<i>value</i></code>
+     * @throws IllegalArgumentException If an argument is not of that form.
+     */
+    public ServerOptions(List<String> args) {
+        values = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Bad option: " + arg);
+            }
+            values.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+    }
+
+    /**
+     * Gets a text option.
+     *
+     * @param name the option name
+     * @param fallback the value to use if the option was not given
+     * @return the option value
+     */
+    public String get(String name, String fallback) {
+        return values.getOrDefault(name, fallback);
+    }
+
+    /**
+     * Gets a whole number option.
+     *
+     * @param name the option name
+     * @param fallback the value to use if the option was not given
+     * @return the option value
+     * @throws NumberFormatException If the value is not a number.
+     */
+    public long getLong(String name, long fallback) {
+        String value = values.get(name);
+        return value == null ? fallback : Long.parseLong(value);
+    }
+
+    /**
+     * Whether an option was given at all.
+     *
+     * @param name the option name
+     * @return true if it was given
+     */
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+}
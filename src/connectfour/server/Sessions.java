@@ -0,0 +1,99 @@
+package connectfour.server;
+
+import connectfour.ConnectFourException;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The players seated in games, by the session token each was given in its
+ * {@link connectfour.ConnectFourProtocol#CONNECT}. A player whose
+ * connection drops keeps its seat for a grace period, and a new connection
+ * that presents the token in a {@link connectfour.ConnectFourProtocol#RESUME}
+ * takes the player's place in the game. Tokens are random, so that one
+ * player cannot guess another's, and are forgotten when the game ends.
+ */
+class Sessions {
+    /** how many random bytes make up a token */
+    private static final int TOKEN_BYTES = 8;
+
+    /** where tokens come from */
+    private final SecureRandom random;
+
+    /** the seated players, by token */
+    private final Map<String, ConnectFourPlayer> players;
+
+    /** how long a dropped player's seat is kept, in milliseconds */
+    private final long grace;
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param grace how long a dropped player's seat is kept, in milliseconds
+     */
+    Sessions(long grace) {
+        random = new SecureRandom();
+        players = new ConcurrentHashMap<>();
+        this.grace = grace;
+    }
+
+    /**
+     * How long a dropped player's seat is kept.
+     *
+     * @return the grace period in milliseconds
+     */
+    long getGrace() {
+        return grace;
+    }
+
+    /**
+     * Makes up a new token.
+     *
+     * @return the token, in hex
+     */
+    String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(2 * TOKEN_BYTES);
+        for (byte b : bytes) {
+            token.append(Character.forDigit(b >> 4 & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Registers a player that is taking a seat, so it can be resumed.
+     *
+     * @param player the player
+     */
+    void add(ConnectFourPlayer player) {
+        players.put(player.getToken(), player);
+    }
+
+    /**
+     * Forgets a player, e.g. because its game is over.
+     *
+     * @param player the player
+     */
+    void remove(ConnectFourPlayer player) {
+        players.remove(player.getToken(), player);
+    }
+
+    /**
+     * Hands a new connection to the player whose token it presented.
+     *
+     * @param token the token
+     * @param connection the new connection
+     * @throws ConnectFourException If no seated player has the token, or
+     *                              its game has ended.
+     */
+    void resume(String token, ConnectFourPlayer connection)
+            throws ConnectFourException {
+        ConnectFourPlayer player = players.get(token);
+        if (player == null || !player.reattach(connection)) {
+            throw new ConnectFourException("Cannot resume session " + token);
+        }
+    }
+}
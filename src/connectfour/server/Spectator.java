@@ -0,0 +1,241 @@
+package connectfour.server;
+
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourException;
+import connectfour.ConnectFourProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One connection watching a game, served by the {@link SpectatorServer}'s
+ * {@link EventLoop} without blocking, so a viewer costs a few buffers rather
+ * than a thread. The viewer first says which game it wants with
+ * {@link #WATCH}. Events are then handed over through a bounded queue and
+ * written straight from the buffer every spectator of the game shares, so a
+ * slow viewer only ever holds up itself. A viewer that falls so far behind
+ * that its queue fills up is disconnected rather than waited for.
+ */
+class Spectator implements ConnectFourProtocol, EventHandler {
+    /** marks the end of the event stream */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /** the spectator's connection, in non-blocking mode */
+    private SocketChannel channel;
+
+    /** finds the game the spectator asks for */
+    private SpectatorServer server;
+
+    /** the event loop servicing this connection */
+    private EventLoop loop;
+
+    /** the channel's registration with the event loop's selector */
+    private SelectionKey key;
+
+    /** decodes the spectator's {@link #WATCH} */
+    private ConnectFourCodec codec;
+
+    /** events waiting to be written, shared with every other spectator */
+    private BlockingQueue<ByteBuffer> queue;
+
+    /** the rest of the event being written, or null if there is none */
+    private ByteBuffer writing;
+
+    /** whether a write has been handed to the loop and not yet run */
+    private AtomicBoolean scheduled;
+
+    /** closes the connection if the spectator does not say what to watch */
+    private TimerWheel.Timeout handshake;
+
+    /** whether the spectator has said which game it wants */
+    private boolean watching;
+
+    /**
+     * Creates a spectator.
+     *
+     * @param channel the spectator's connection, in non-blocking mode
+     * @param server finds the game the spectator asks for
+     * @param capacity how many events may wait to be written before the
+     *                 spectator is dropped
+     */
+    Spectator(SocketChannel channel, SpectatorServer server, int capacity) {
+        this.channel = channel;
+        this.server = server;
+        codec = new ConnectFourCodec();
+        queue = new ArrayBlockingQueue<>(capacity);
+        scheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Registers the connection with an event loop and greets the spectator
+     * with {@link #CONNECT}. Must be called on that loop's thread.
+     *
+     * @param loop the loop that will service this connection
+     * @param greeting the encoded {@link #CONNECT}; it is never modified
+     * @param handshake closes the connection if the spectator does not send
+     *                  {@link #WATCH} in time
+     */
+    void register(EventLoop loop, ByteBuffer greeting,
+                  TimerWheel.Timeout handshake) {
+        this.loop = loop;
+        this.handshake = handshake;
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ,
+                    this);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        offer(greeting);
+    }
+
+    /**
+     * Hands an event to the spectator without ever blocking. May be called
+     * from any thread once the spectator is registered.
+     *
+     * @param event the encoded event; it is never modified
+     * @return false if the spectator was too far behind and has been dropped
+     */
+    boolean offer(ByteBuffer event) {
+        if (!queue.offer(event)) {
+            close();
+            return false;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                scheduled.set(false);
+                flush();
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Ends the event stream; the connection closes once everything before
+     * it has been written.
+     */
+    void finish() {
+        offer(END);
+    }
+
+    /**
+     * Reads which game the spectator wants, and after that only watches for
+     * it going away.
+     */
+    @Override
+    public void onReadable() {
+        try {
+            ByteBuffer in = codec.inputBuffer();
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            if (watching) {
+                // nothing more is expected
+                in.clear();
+                return;
+            }
+            Message request = codec.decode();
+            if (request == null) {
+                return;
+            }
+            watching = true;
+            handshake.cancel();
+            if (request != Message.WATCH) {
+                throw new ConnectFourException("Expected " + WATCH);
+            }
+            server.watch(this, codec.arguments());
+        } catch (ConnectFourException | NumberFormatException e) {
+            refuse(e.getMessage());
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes more of the events waiting.
+     */
+    @Override
+    public void onWritable() {
+        flush();
+    }
+
+    /**
+     * Closes the connection if the spectator has not said which game it
+     * wants. Runs on the event loop.
+     */
+    void timedOut() {
+        if (!watching) {
+            close();
+        }
+    }
+
+    /**
+     * Sends an {@link #ERROR} and ends the stream.
+     *
+     * @param message the error message
+     */
+    private void refuse(String message) {
+        ByteBuffer error = ByteBuffer.allocate(ConnectFourCodec.MAX_LINE);
+        codec.encode(error, Message.ERROR, message);
+        error.flip();
+        offer(error);
+        finish();
+    }
+
+    /**
+     * Writes as many waiting events as the socket will take, asking the
+     * selector for write readiness if some are left over.
+     */
+    private void flush() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (writing == null) {
+                    ByteBuffer event = queue.poll();
+                    if (event == null) {
+                        break;
+                    }
+                    if (event == END) {
+                        close();
+                        return;
+                    }
+                    // every spectator shares the event, so each needs its
+                    // own position
+                    writing = event.duplicate();
+                }
+                channel.write(writing);
+                if (writing.hasRemaining()) {
+                    key.interestOps(key.interestOps() |
+                            SelectionKey.OP_WRITE);
+                    return;
+                }
+                writing = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | CancelledKeyException e) {
+            // viewer went away, or was dropped
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. May be called from any thread.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package connectfour.server;
+
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourException;
+import connectfour.ConnectFourProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens on a separate port for spectators. Each one says which game it
+ * wants with {@link #WATCH}, and is then added to that game's
+ * {@link Spectators}. Every spectator is served by one {@link EventLoop}
+ * without blocking, whichever transport the players use, so the number of
+ * viewers is not limited by the number of threads.
+ */
+public class SpectatorServer implements ConnectFourProtocol, Runnable {
+    /** how long a new spectator has to send {@link #WATCH} */
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+
+    /** how many events may wait for a spectator before it is dropped */
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * The channel used to wait for incoming spectator connections.
+     */
+    private ServerSocketChannel server;
+
+    /**
+     * Services every spectator connection.
+     */
+    private EventLoop loop;
+
+    /**
+     * Times out spectators that do not say what to watch.
+     */
+    private TimerWheel wheel;
+
+    /**
+     * The encoded {@link #CONNECT} every spectator is greeted with.
+     */
+    private ByteBuffer greeting;
+
+    /**
+     * The games that can be watched, by number.
+     */
+    private ConcurrentMap<Long, Spectators> live;
+
+    /**
+     * The game watched by spectators that do not name one.
+     */
+    private volatile Spectators featured;
+
+    /**
+     * Creates a new {@link SpectatorServer} that listens for spectators on
+     * the specified port.
+     *
+     * @param port The port on which to listen for spectators.
+     * @throws ConnectFourException If the port or the selector cannot be
+     *                              opened.
+     */
+    public SpectatorServer(int port) throws ConnectFourException {
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            loop = new EventLoop();
+        } catch (IOException e) {
+            throw new ConnectFourException(e);
+        }
+        wheel = new TimerWheel(1, TimeUnit.SECONDS, 16);
+        greeting = ByteBuffer.allocate(ConnectFourCodec.MAX_LINE);
+        new ConnectFourCodec().encode(greeting, Message.CONNECT);
+        greeting.flip();
+        greeting = greeting.asReadOnlyBuffer();
+        live = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Makes a new game available to watch. It stops being listed once it is
+     * over.
+     *
+     * @param gameId the number of the game
+     * @return the game's audience, which the game reports its moves to
+     */
+    public Spectators open(long gameId) {
+        Spectators spectators =
+                new Spectators(gameId, () -> live.remove(gameId));
+        live.put(gameId, spectators);
+        featured = spectators;
+        return spectators;
+    }
+
+    /**
+     * Gets the audience for a new game.
+     *
+     * @param server the spectator server, or null if games cannot be watched
+     * @param gameId the number of the game
+     * @return the game's audience; one no one can join if there is no server
+     */
+    static Spectators open(SpectatorServer server, long gameId) {
+        return server == null ?
+                new Spectators(gameId, () -> {}) : server.open(gameId);
+    }
+
+    /**
+     * Starts the event loop and then accepts spectators until the server is
+     * closed.
+     */
+    @Override
+    public void run() {
+        Thread thread = new Thread(loop, "spectator-loop");
+        thread.setDaemon(true);
+        thread.start();
+        Thread timer = new Thread(wheel, "spectator-timer");
+        timer.setDaemon(true);
+        timer.start();
+        try {
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                try {
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    close(channel);
+                    continue;
+                }
+                Spectator spectator = new Spectator(channel, this,
+                        QUEUE_SIZE);
+                loop.execute(() -> spectator.register(loop, greeting,
+                        wheel.schedule(() -> loop.execute(spectator::timedOut),
+                                HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS)));
+            }
+        } catch (IOException e) {
+            if (server.isOpen()) {
+                System.err.println("Spectator port failed!");
+                e.printStackTrace();
+            }
+        } finally {
+            wheel.close();
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Hands a spectator to the game it asked for.
+     *
+     * @param spectator the spectator
+     * @param which the game's number, or empty for the featured game
+     * @throws ConnectFourException If there is no such game.
+     * @throws NumberFormatException If the game number is not a number.
+     */
+    void watch(Spectator spectator, String which)
+            throws ConnectFourException {
+        Spectators spectators = which.isEmpty() ?
+                featured : live.get(Long.parseLong(which));
+        if (spectators == null) {
+            throw new ConnectFourException("No such game: " + which);
+        }
+        spectators.watch(spectator);
+    }
+
+    /**
+     * Closes a spectator connection.
+     *
+     * @param channel the connection
+     */
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Stops accepting spectators.
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+}
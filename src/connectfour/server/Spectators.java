@@ -0,0 +1,162 @@
+package connectfour.server;
+
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The audience of one game. The game reports each move here, and every event
+ * is encoded once into a read-only buffer that all spectators share. Handing
+ * an event over never blocks, so the players' turn loop is not held up no
+ * matter how many spectators there are or how slow they are.
+ */
+public class Spectators implements ConnectFourProtocol {
+    /** the number of the game being watched */
+    private long id;
+
+    /** every column moved in so far, in order */
+    private int[] moves;
+
+    /** how many moves have been made */
+    private int moveCount;
+
+    /** whether the game is over */
+    private boolean over;
+
+    /** the {@link #GAME_OVER} event, once the game has ended */
+    private ByteBuffer result;
+
+    /** the spectators currently watching */
+    private List<Spectator> watchers;
+
+    /** encodes events, always as text */
+    private ConnectFourCodec codec;
+
+    /** where events are encoded before being copied into a shared buffer */
+    private ByteBuffer scratch;
+
+    /** called once the game is over */
+    private Runnable onGameOver;
+
+    /**
+     * Creates the audience for a game.
+     *
+     * @param id the number of the game
+     * @param onGameOver called once the game is over, e.g. to stop listing
+     *                   it
+     */
+    public Spectators(long id, Runnable onGameOver) {
+        this.id = id;
+        this.onGameOver = onGameOver;
+        moves = new int[ConnectFour.ROWS * ConnectFour.COLS];
+        watchers = new ArrayList<>();
+        codec = new ConnectFourCodec();
+        scratch = ByteBuffer.allocate(ConnectFourCodec.MAX_LINE);
+    }
+
+    /**
+     * The number of the game being watched.
+     *
+     * @return the game number
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Adds a spectator, starting it off with a {@link #SNAPSHOT} of the
+     * moves so far.
+     *
+     * @param spectator the new spectator
+     */
+    synchronized void watch(Spectator spectator) {
+        StringBuilder snapshot = new StringBuilder().append(id);
+        for (int i = 0; i < moveCount; i++) {
+            snapshot.append(' ').append(moves[i]);
+        }
+        codec.encode(scratch, Message.SNAPSHOT, snapshot.toString());
+        if (!spectator.offer(share())) {
+            return;
+        }
+
+        if (over) {
+            spectator.offer(result);
+            spectator.finish();
+        } else {
+            watchers.add(spectator);
+        }
+    }
+
+    /**
+     * Tells every spectator about a move. With no one watching, the move is
+     * only recorded for a later {@link #SNAPSHOT}.
+     *
+     * @param column the column moved in
+     */
+    public synchronized void moveMade(int column) {
+        if (moveCount < moves.length) {
+            moves[moveCount++] = column;
+        }
+        if (watchers.isEmpty()) {
+            return;
+        }
+        codec.encode(scratch, Message.MOVE_MADE, column);
+        broadcast(share());
+    }
+
+    /**
+     * Tells every spectator the result and ends their streams.
+     *
+     * @param outcome PLAYER_ONE or PLAYER_TWO for the winner, TIE, or ERROR
+     */
+    public void gameOver(String outcome) {
+        synchronized (this) {
+            if (over) {
+                return;
+            }
+            over = true;
+            codec.encode(scratch, Message.GAME_OVER, outcome);
+            result = share();
+            broadcast(result);
+            for (Spectator spectator : watchers) {
+                spectator.finish();
+            }
+            watchers.clear();
+        }
+        onGameOver.run();
+    }
+
+    /**
+     * Copies the encoded event out of the scratch buffer into a buffer of
+     * its own that no one may change.
+     *
+     * @return the shared, read-only event
+     */
+    private ByteBuffer share() {
+        scratch.flip();
+        ByteBuffer event = ByteBuffer.allocate(scratch.remaining());
+        event.put(scratch).flip();
+        scratch.clear();
+        return event.asReadOnlyBuffer();
+    }
+
+    /**
+     * Hands an event to every spectator, forgetting any that were dropped
+     * for falling behind.
+     *
+     * @param event the shared event
+     */
+    private void broadcast(ByteBuffer event) {
+        Iterator<Spectator> it = watchers.iterator();
+        while (it.hasNext()) {
+            if (!it.next().offer(event)) {
+                it.remove();
+            }
+        }
+    }
+}
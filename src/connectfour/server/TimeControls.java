@@ -0,0 +1,99 @@
+package connectfour.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's time controls, read from its options, and the one
+ * {@link TimerWheel} that keeps the deadlines of every game:
+ * <ul>
+ * <li>{@code --move-time=MS}: the most a single move may take</li>
+ * <li>{@code --game-time=MS}: the time each player has for a whole game</li>
+ * <li>{@code --on-timeout=forfeit|auto-move}: what happens to a player who
+ * runs out of time</li>
+ * </ul>
+ * Without either time option games are untimed and no wheel is started.
+ */
+public class TimeControls {
+    /** how often the wheel ticks, in milliseconds */
+    private static final int TICK_MILLIS = 10;
+
+    /** the number of wheel slots; one turn of the wheel is about 5 seconds */
+    private static final int SLOTS = 512;
+
+    /** the most a single move may take in milliseconds, or 0 for no limit */
+    private long moveMillis;
+
+    /** the time each player has for a game in milliseconds, or 0 */
+    private long gameMillis;
+
+    /** whether running out of time plays a move rather than forfeiting */
+    private boolean autoMove;
+
+    /** the wheel every game's deadlines are kept on, or null if untimed */
+    private TimerWheel wheel;
+
+    /**
+     * Reads the time controls from the server's options.
+     *
+     * @param options the server's options
+     * @throws IllegalArgumentException If the timeout action is unknown.
+     */
+    public TimeControls(ServerOptions options) {
+        moveMillis = options.getLong("move-time", 0);
+        gameMillis = options.getLong("game-time", 0);
+        String onTimeout = options.get("on-timeout", "forfeit");
+        switch (onTimeout) {
+            case "forfeit":
+                autoMove = false;
+                break;
+            case "auto-move":
+                autoMove = true;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown timeout action: " + onTimeout);
+        }
+        if (moveMillis > 0 || gameMillis > 0) {
+            wheel = new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, SLOTS);
+        }
+    }
+
+    /**
+     * Starts the timer wheel's thread, if games are timed.
+     */
+    public void start() {
+        if (wheel != null) {
+            Thread thread = new Thread(wheel, "timer-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates the clock for a new game.
+     *
+     * @return the clock
+     */
+    public GameClock newClock() {
+        return new GameClock(wheel, moveMillis, gameMillis);
+    }
+
+    /**
+     * Whether a player who runs out of time has a move played for them
+     * rather than forfeiting.
+     *
+     * @return true to play a move
+     */
+    public boolean isAutoMove() {
+        return autoMove;
+    }
+
+    /**
+     * Stops the timer wheel.
+     */
+    public void close() {
+        if (wheel != null) {
+            wheel.close();
+        }
+    }
+}
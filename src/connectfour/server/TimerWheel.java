@@ -0,0 +1,255 @@
+package connectfour.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: one thread and a ring of slots tracking every
+ * timeout on the server. A timeout lives in the slot its deadline hashes to,
+ * so scheduling and cancelling cost O(1) no matter how many are pending, and
+ * each tick only visits one slot. Deadlines are accurate to about one tick,
+ * which is plenty for game clocks.<P>
+ *
+ * Other threads never touch the slots; new and cancelled timeouts are handed
+ * to the wheel's thread through queues and picked up on its next tick.
+ * Expired tasks run on the wheel's thread and must be quick.
+ */
+public class TimerWheel implements Runnable {
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static final class Timeout {
+        /** waiting to expire */
+        private static final int PENDING = 0;
+        /** cancelled before it expired */
+        private static final int CANCELLED = 1;
+        /** expired, and its task has been run */
+        private static final int EXPIRED = 2;
+
+        /** changes {@link #state} atomically without an object per timeout */
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        /** the wheel this timeout is scheduled on */
+        private final TimerWheel wheel;
+
+        /** what to run on expiry */
+        private final Runnable task;
+
+        /** when to expire, in {@link System#nanoTime()} terms */
+        private final long deadline;
+
+        /** one of {@link #PENDING}, {@link #CANCELLED} or {@link #EXPIRED} */
+        private volatile int state;
+
+        /** how many more times round the wheel before expiring */
+        private long rounds;
+
+        /** the slot this timeout is linked into, or -1 if it is not */
+        private int slot = -1;
+
+        /** the neighbours in the slot's list */
+        private Timeout prev, next;
+
+        /**
+         * Creates a timeout.
+         *
+         * @param wheel the wheel it is scheduled on
+         * @param task what to run on expiry
+         * @param deadline when to expire
+         */
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if it was cancelled, false if it had already expired
+         * (or been cancelled)
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Whether the timeout has expired.
+         *
+         * @return true once its task has been started
+         */
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+
+    /** the time between ticks, in nanoseconds */
+    private final long tickNanos;
+
+    /** the first timeout in each slot */
+    private final Timeout[] slots;
+
+    /** slot count - 1; the count is a power of two */
+    private final int mask;
+
+    /** timeouts scheduled since the last tick */
+    private final Queue<Timeout> added;
+
+    /** timeouts cancelled since the last tick */
+    private final Queue<Timeout> cancelled;
+
+    /** when the wheel was created */
+    private final long start;
+
+    /** whether the wheel should keep ticking */
+    private volatile boolean running;
+
+    /**
+     * Creates a timer wheel. Start it by running it on a thread of its own.
+     *
+     * @param tick the time between ticks
+     * @param unit the unit of the tick
+     * @param slotCount the number of slots; rounded up to a power of two
+     */
+    public TimerWheel(long tick, TimeUnit unit, int slotCount) {
+        tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        slots = new Timeout[size];
+        mask = size - 1;
+        added = new ConcurrentLinkedQueue<>();
+        cancelled = new ConcurrentLinkedQueue<>();
+        start = System.nanoTime();
+        running = true;
+    }
+
+    /**
+     * Schedules a task. May be called from any thread.
+     *
+     * @param task what to run once the delay has passed
+     * @param delay how long to wait
+     * @param unit the unit of the delay
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout =
+                new Timeout(this, task, System.nanoTime() + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Ticks until {@link #close()} is called.
+     */
+    @Override
+    public void run() {
+        long tick = 0;
+        while (running) {
+            long wake = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < wake && running) {
+                LockSupport.parkNanos(wake - now);
+            }
+
+            removeCancelled();
+            addScheduled(tick);
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    /**
+     * Stops the wheel. Pending timeouts never expire.
+     */
+    public void close() {
+        running = false;
+    }
+
+    /**
+     * Unlinks the timeouts cancelled since the last tick.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    /**
+     * Links the timeouts scheduled since the last tick into the slots their
+     * deadlines hash to. Deadlines already passed go into the current slot.
+     *
+     * @param tick the tick being processed
+     */
+    private void addScheduled(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+            long due = Math.max((timeout.deadline - start) / tickNanos, tick);
+            timeout.rounds = (due - tick) / slots.length;
+            timeout.slot = (int) (due & mask);
+            timeout.next = slots[timeout.slot];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            slots[timeout.slot] = timeout;
+        }
+    }
+
+    /**
+     * Runs the tasks of the timeouts in a slot that are due this time
+     * round.
+     *
+     * @param slot the slot
+     */
+    private void expire(int slot) {
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                if (Timeout.STATE.compareAndSet(timeout, Timeout.PENDING,
+                        Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed!");
+                        e.printStackTrace();
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Removes a timeout from its slot's list.
+     *
+     * @param timeout the timeout
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.slot = -1;
+    }
+}
@@ -0,0 +1,18 @@
+package connectfour.tools;
+
+/**
+ * Wins at once when it can, and otherwise plays a random move that does
+ * not let the opponent win at once, blocking a threat if there is one.
+ */
+class GreedyStrategy extends RandomStrategy {
+    @Override
+    public int chooseMove() {
+        for (int col = 0; col < position.getCols(); col++) {
+            if (position.canPlay(col) && position.isWinningMove(col)) {
+                return col;
+            }
+        }
+        long safe = position.nonLosingMoves();
+        return pick(safe != 0 ? safe : position.playableCells());
+    }
+}
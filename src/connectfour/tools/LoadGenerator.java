@@ -0,0 +1,325 @@
+package connectfour.tools;
+
+import connectfour.ConnectFourCodec;
+import connectfour.ConnectFourCodec.Message;
+import connectfour.ConnectFourException;
+import connectfour.metrics.LatencyHistogram;
+import connectfour.server.ConnectFourServer;
+import connectfour.server.ServerOptions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static connectfour.ConnectFourProtocol.BINARY;
+import static connectfour.ConnectFourProtocol.RESUME;
+
+/**
+ * Loads a running server with many synthetic clients, e.g. to find out how
+ * many players a machine can take. Each client speaks the real protocol
+ * over its own connection: it connects, waits to be paired, plays a game
+ * with moves from a {@link Strategy} after a fixed think time, and then
+ * connects again for another game, until the run is over.<P>
+ *
+ * The round trip of every move is timed, from sending {@code MOVE} to the
+ * server's {@code MOVE_MADE} for it. Every few seconds, and at the end, the
+ * generator reports the round trip percentiles, the games finished per
+ * second and the connection errors: failed connections, {@code ERROR}
+ * messages and connections lost mid-game.<P>
+ *
+ * When the run is over, games under way may still finish for a grace
+ * period. Clients are then cut off, and this is not counted as an error.
+ */
+public class LoadGenerator {
+    /** how often to report progress, in seconds */
+    private static final int REPORT_INTERVAL = 5;
+
+    /** how long games under way may take to finish, in milliseconds */
+    private static final long GRACE_PERIOD = 10_000;
+
+    /** how long a client waits after an error, in milliseconds */
+    private static final long RETRY_DELAY = 100;
+
+    /** the server's host */
+    private String host;
+
+    /** the server's port */
+    private int port;
+
+    /** the number of clients */
+    private int clients;
+
+    /** how the clients pick moves */
+    private String strategy;
+
+    /** how long each client waits before sending a move, in milliseconds */
+    private long thinkMillis;
+
+    /** whether the clients ask for binary framing */
+    private boolean binary;
+
+    /** when the run ends, in {@link System#nanoTime()} */
+    private volatile long deadline;
+
+    /** set once clients are being cut off */
+    private volatile boolean cutOff;
+
+    /** the connections now open */
+    private Set<Socket> open;
+
+    /** move round trips, in nanoseconds */
+    private LatencyHistogram roundTrips;
+
+    /** games finished, counted once each by the player who moved first */
+    private LongAdder games;
+
+    /** connections that could not be made, or failed */
+    private LongAdder errors;
+
+    /**
+     * Sets up a run.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @param clients the number of clients
+     * @param strategy how the clients pick moves; see
+     *                 {@link Strategy#parse(String)}
+     * @param thinkMillis how long each client waits before sending a move
+     * @param binary whether the clients ask for binary framing
+     * @throws IllegalArgumentException If the strategy is unknown.
+     */
+    public LoadGenerator(String host, int port, int clients, String strategy,
+                         long thinkMillis, boolean binary) {
+        Strategy.parse(strategy);
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.strategy = strategy;
+        this.thinkMillis = thinkMillis;
+        this.binary = binary;
+    }
+
+    /**
+     * Runs the clients for a while, reporting as it goes.
+     *
+     * @param seconds how long to keep starting games
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void run(long seconds) throws InterruptedException {
+        open = ConcurrentHashMap.newKeySet();
+        roundTrips = new LatencyHistogram();
+        games = new LongAdder();
+        errors = new LongAdder();
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService threads = ConnectFourServer.newGameExecutor();
+        for (int i = 0; i < clients; i++) {
+            long seed = i;
+            threads.execute(() -> client(seed));
+        }
+        threads.shutdown();
+
+        long reported = start;
+        long lastGames = 0;
+        while (!threads.awaitTermination(REPORT_INTERVAL, TimeUnit.SECONDS)) {
+            long now = System.nanoTime();
+            long finished = games.sum();
+            System.out.printf("%3ds: %.1f games/s, %d errors, %s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start),
+                    (finished - lastGames) * 1e9 / (now - reported),
+                    errors.sum(), roundTrips);
+            reported = now;
+            lastGames = finished;
+            if (!cutOff && now - deadline >
+                    TimeUnit.MILLISECONDS.toNanos(GRACE_PERIOD)) {
+                cutOff = true;
+                for (Socket socket : open) {
+                    close(socket);
+                }
+            }
+        }
+        long elapsed = Math.min(System.nanoTime(), deadline) - start;
+        System.out.printf("%d clients, %d games, %.1f games/s, %d errors%n",
+                clients, games.sum(), games.sum() * 1e9 / elapsed,
+                errors.sum());
+        System.out.println("Move round trip: " + roundTrips);
+    }
+
+    /**
+     * Plays games as one client until the run is over.
+     *
+     * @param seed where the client's randomness starts
+     */
+    private void client(long seed) {
+        Strategy moves = Strategy.parse(strategy);
+        ByteBuffer out = ByteBuffer.allocate(ConnectFourCodec.MAX_LINE);
+        for (long game = 0; System.nanoTime() < deadline; game++) {
+            moves.newGame(seed * 1_000_003 + game);
+            if (!play(moves, out)) {
+                if (cutOff) {
+                    return;
+                }
+                errors.increment();
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays one game over a new connection.
+     *
+     * @param moves where the moves come from
+     * @param out room to encode messages in
+     * @return true if the game was played to the end
+     */
+    private boolean play(Strategy moves, ByteBuffer out) {
+        Socket socket = null;
+        try {
+            socket = new Socket(host, port);
+            open.add(socket);
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream net = socket.getOutputStream();
+            ConnectFourCodec codec = new ConnectFourCodec();
+
+            if (codec.readMessage(in) != Message.CONNECT) {
+                return false;
+            }
+            String offers = codec.arguments();
+            if (offers.contains(RESUME)) {
+                // nothing to resume; saves the server waiting to see
+                send(net, codec, out, Message.RESUME, -1);
+            }
+            if (binary && offers.contains(BINARY)) {
+                send(net, codec, out, Message.BINARY, -1);
+            }
+            boolean first = false;
+            boolean moved = false;
+            long sent = 0;
+            while (true) {
+                Message message = codec.readMessage(in);
+                if (message == null) {
+                    return false;
+                }
+                switch (message) {
+                    case MAKE_MOVE:
+                        first |= !moved;
+                        if (thinkMillis > 0) {
+                            Thread.sleep(thinkMillis);
+                        }
+                        int column = moves.chooseMove();
+                        sent = System.nanoTime();
+                        send(net, codec, out, Message.MOVE, column);
+                        break;
+                    case MOVE_MADE:
+                        if (sent != 0) {
+                            roundTrips.record(System.nanoTime() - sent);
+                            sent = 0;
+                        }
+                        moved = true;
+                        moves.moveMade(codec.column());
+                        break;
+                    case GAME_WON:
+                    case GAME_LOST:
+                    case GAME_TIED:
+                        if (first) {
+                            games.increment();
+                        }
+                        return true;
+                    case BINARY:
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (IOException | ConnectFourException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (socket != null) {
+                open.remove(socket);
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Sends one message.
+     *
+     * @param net where to send it
+     * @param codec the codec
+     * @param out room to encode it in
+     * @param message the message
+     * @param column its column, or -1 if it has none
+     * @throws IOException If it cannot be sent.
+     */
+    private static void send(OutputStream net, ConnectFourCodec codec,
+                             ByteBuffer out, Message message, int column)
+            throws IOException {
+        out.clear();
+        if (column < 0) {
+            codec.encode(out, message);
+        } else {
+            codec.encode(out, message, column);
+        }
+        net.write(out.array(), 0, out.position());
+    }
+
+    /**
+     * Closes a connection, ignoring any error.
+     *
+     * @param socket the connection
+     */
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Runs a load test.
+     *
+     * @param args the server's port, followed by any of
+     *             {@code --host=NAME} (localhost by default),
+     *             {@code --clients=N} (100), {@code --seconds=N} (30),
+     *             {@code --moves=STRATEGY} ({@code random}; see
+     *             {@link Strategy#parse(String)}), {@code --think=MS} (0)
+     *             and {@code --framing=text|binary} (text)
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoadGenerator <port> " +
+                    "[--host=NAME] [--clients=N] [--seconds=N] " +
+                    "[--moves=STRATEGY] [--think=MS] " +
+                    "[--framing=text|binary]");
+            System.exit(1);
+        }
+        ServerOptions options = new ServerOptions(
+                Arrays.asList(args).subList(1, args.length));
+        new LoadGenerator(options.get("host", "localhost"),
+                Integer.parseInt(args[0]),
+                (int) options.getLong("clients", 100),
+                options.get("moves", "random"),
+                options.getLong("think", 0),
+                options.get("framing", "text").equals("binary"))
+                .run(options.getLong("seconds", 30));
+    }
+}
@@ -0,0 +1,139 @@
+package connectfour.tools;
+
+import connectfour.ConnectFourException;
+import connectfour.server.ConnectFourServer;
+import connectfour.server.GameRouter;
+import connectfour.server.ServerOptions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a whole sharded cluster on this machine for testing: several
+ * {@link ConnectFourServer} backends, each in a process of its own on
+ * consecutive ports, and a {@link GameRouter} in this process in front of
+ * them. The backends' output is shown with their port in front of each
+ * line, and they are stopped when this process ends.<P>
+ *
+ * Options other than the cluster's own are passed on to every backend,
+ * except that each backend journals into a directory of its own under
+ * {@code --journal} and takes spectators on its own port from
+ * {@code --watch-port} up.
+ */
+public class LocalCluster {
+    /** how long to wait for the backends to start, in seconds */
+    private static final int STARTUP_TIMEOUT = 30;
+
+    /** what a backend prints once it is accepting players */
+    private static final String READY = "Waiting for players...";
+
+    /**
+     * Starts the cluster.
+     *
+     * @param args the router's port, followed by {@code --backends=N} (3),
+     *             {@code --backend-port=PORT} (the router's port plus one)
+     *             for the first backend, and any options for the backends
+     * @throws ConnectFourException If the router cannot be started.
+     * @throws IOException If a backend cannot be started.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public static void main(String[] args)
+            throws ConnectFourException, IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java LocalCluster <port> " +
+                    "[--backends=N] [--backend-port=PORT] " +
+                    "[backend options...]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        List<String> rest = Arrays.asList(args).subList(1, args.length);
+        ServerOptions options = new ServerOptions(rest);
+        int count = (int) options.getLong("backends", 3);
+        int first = (int) options.getLong("backend-port", port + 1);
+
+        String java = System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                processes.forEach(Process::destroy)));
+        CountDownLatch ready = new CountDownLatch(count);
+        StringBuilder backends = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int backendPort = first + i;
+            List<String> command = new ArrayList<>(Arrays.asList(java,
+                    "-cp", System.getProperty("java.class.path"),
+                    ConnectFourServer.class.getName(),
+                    String.valueOf(backendPort)));
+            for (String arg : rest) {
+                command.add(backendOption(arg, i));
+            }
+            command.removeIf(String::isEmpty);
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true).start();
+            processes.add(process);
+            Thread output = new Thread(() ->
+                    echo(process, "[" + backendPort + "] ", ready));
+            output.setDaemon(true);
+            output.start();
+            backends.append(i == 0 ? "" : ",").append(backendPort);
+        }
+        if (!ready.await(STARTUP_TIMEOUT, TimeUnit.SECONDS)) {
+            System.out.println("Not every backend has started; " +
+                    "the router will retry them");
+        }
+
+        new GameRouter(port, new ServerOptions(
+                Arrays.asList("--backends=" + backends))).run();
+    }
+
+    /**
+     * Adapts an option for one backend.
+     *
+     * @param arg the option as given
+     * @param index which backend, from 0
+     * @return the option for that backend, or an empty string to leave it
+     * out
+     */
+    private static String backendOption(String arg, int index) {
+        if (arg.startsWith("--backends=") ||
+                arg.startsWith("--backend-port=")) {
+            return "";
+        } else if (arg.startsWith("--journal=")) {
+            return arg + File.separator + "backend-" + index;
+        } else if (arg.startsWith("--watch-port=")) {
+            int watch = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            return "--watch-port=" + (watch + index);
+        }
+        return arg;
+    }
+
+    /**
+     * Copies a backend's output to standard output, a line at a time.
+     *
+     * @param process the backend
+     * @param prefix put in front of each line
+     * @param ready counted down when the backend is accepting players
+     */
+    private static void echo(Process process, String prefix,
+                             CountDownLatch ready) {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals(READY)) {
+                    ready.countDown();
+                }
+                System.out.println(prefix + line);
+            }
+        } catch (IOException e) {
+            // the backend has gone
+        }
+    }
+}
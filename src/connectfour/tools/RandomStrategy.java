@@ -0,0 +1,47 @@
+package connectfour.tools;
+
+import connectfour.ai.Position;
+import connectfour.server.ConnectFour;
+
+import java.util.SplittableRandom;
+
+/**
+ * Plays a uniformly random legal move.
+ */
+class RandomStrategy implements Strategy {
+    /** the game being played */
+    protected Position position;
+
+    /** where the moves come from */
+    private SplittableRandom random;
+
+    @Override
+    public void newGame(long seed) {
+        position = new Position(ConnectFour.ROWS, ConnectFour.COLS);
+        random = new SplittableRandom(seed);
+    }
+
+    @Override
+    public int chooseMove() {
+        return pick(position.playableCells());
+    }
+
+    @Override
+    public void moveMade(int column) {
+        position.play(column);
+    }
+
+    /**
+     * Picks one of a set of cells at random.
+     *
+     * @param cells the cells to pick from, one bit each; not empty
+     * @return the column of the cell picked
+     */
+    protected int pick(long cells) {
+        for (int skip = random.nextInt(Long.bitCount(cells)); skip > 0;
+             skip--) {
+            cells &= cells - 1;
+        }
+        return position.columnOf(Long.lowestOneBit(cells));
+    }
+}
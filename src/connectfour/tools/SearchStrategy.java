@@ -0,0 +1,49 @@
+package connectfour.tools;
+
+import connectfour.ai.AlphaBeta;
+import connectfour.ai.TranspositionTable;
+import connectfour.server.ConnectFour;
+
+/**
+ * Plays the move an {@link AlphaBeta} engine finds in a fixed time. The
+ * engine is new each game, but its transposition table is kept from one
+ * game to the next, as what it holds is true of any game.
+ */
+class SearchStrategy implements Strategy {
+    /** the table holds 2<sup>18</sup> entries, 4 MB */
+    private static final int TABLE_BITS = 18;
+
+    /** how long to think about each move, in milliseconds */
+    private long budgetMillis;
+
+    /** the table, kept across games */
+    private TranspositionTable table;
+
+    /** the engine following the current game */
+    private AlphaBeta engine;
+
+    /**
+     * Creates the strategy.
+     *
+     * @param budgetMillis how long to think about each move, in milliseconds
+     */
+    SearchStrategy(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+        table = new TranspositionTable(TABLE_BITS);
+    }
+
+    @Override
+    public void newGame(long seed) {
+        engine = new AlphaBeta(ConnectFour.ROWS, ConnectFour.COLS, table);
+    }
+
+    @Override
+    public int chooseMove() {
+        return engine.bestMove(budgetMillis);
+    }
+
+    @Override
+    public void moveMade(int column) {
+        engine.play(column);
+    }
+}
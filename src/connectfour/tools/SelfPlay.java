@@ -0,0 +1,360 @@
+package connectfour.tools;
+
+import connectfour.ConnectFourException;
+import connectfour.server.ConnectFour;
+import connectfour.server.ServerOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Plays bots against each other straight on the {@link ConnectFour} engine,
+ * with no sockets, on as many threads as there are cores, e.g. to check
+ * overnight that an engine change did not make a bot weaker.<P>
+ *
+ * Game {@code i} is seeded with the base seed plus {@code i}, and its
+ * first few moves can be played at random from that seed so that
+ * deterministic bots do not play the same game every time. Every game is
+ * written to the output file as it finishes, in whatever order the threads
+ * finish them. The file holds a header ({@link #MAGIC}, then a byte each
+ * for the rows and columns and two spare bytes), and then for each game:
+ * its number as a variable-length number (7 bits a byte, low bits first,
+ * high bit set on all but the last byte), a byte with the winner (0 for a
+ * tie, 1 or 2) in the top two bits and the number of moves in the rest,
+ * and the columns played, three bits each, packed low bits first. A
+ * typical game takes about 12 bytes.
+ */
+public class SelfPlay {
+    /** identifies a self-play file: "C4SP" */
+    public static final int MAGIC = 0x43345350;
+
+    /** the size of the header in bytes */
+    private static final int HEADER_SIZE = 8;
+
+    /** the most bytes one game can take */
+    private static final int MAX_RECORD =
+            10 + 1 + (3 * ConnectFour.ROWS * ConnectFour.COLS + 7) / 8;
+
+    /** how many bytes each thread gathers before writing them out */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** the strategy of the player who moves first */
+    private String one;
+
+    /** the strategy of the player who moves second */
+    private String two;
+
+    /** the number of games to play */
+    private long games;
+
+    /** the seed of game 0 */
+    private long seed;
+
+    /** how many moves to play at random at the start of each game */
+    private int opening;
+
+    /** the number of threads to play on */
+    private int threads;
+
+    /** where the games are written */
+    private FileChannel out;
+
+    /** the number of the next game to start */
+    private AtomicLong next;
+
+    /** games won by each player, and tied, by index 1, 2 and 0 */
+    private LongAdder[] results;
+
+    /** moves played in all games */
+    private LongAdder moves;
+
+    /**
+     * Sets up a run.
+     *
+     * @param one the strategy of the player who moves first
+     * @param two the strategy of the player who moves second
+     * @param games the number of games to play
+     * @param seed the seed of game 0
+     * @param opening how many moves to play at random at the start of each
+     *                game
+     * @param threads the number of threads to play on
+     * @throws IllegalArgumentException If either strategy is unknown.
+     */
+    public SelfPlay(String one, String two, long games, long seed,
+                    int opening, int threads) {
+        Strategy.parse(one);
+        Strategy.parse(two);
+        this.one = one;
+        this.two = two;
+        this.games = games;
+        this.seed = seed;
+        this.opening = opening;
+        this.threads = threads;
+    }
+
+    /**
+     * Plays every game, writing them to a file, and prints a summary.
+     *
+     * @param file where to write the games
+     * @throws IOException If the file cannot be written.
+     */
+    public void run(Path file) throws IOException {
+        next = new AtomicLong();
+        results = new LongAdder[] {
+                new LongAdder(), new LongAdder(), new LongAdder() };
+        moves = new LongAdder();
+        out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .put((byte) ConnectFour.ROWS)
+                    .put((byte) ConnectFour.COLS);
+            header.clear();
+            write(header);
+
+            long start = System.nanoTime();
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Thread worker = new Thread(() -> {
+                    try {
+                        play();
+                    } catch (IOException | ConnectFourException |
+                            RuntimeException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                        // stop the others early
+                        next.set(games);
+                    }
+                }, "self-play-" + i);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (!failures.isEmpty()) {
+                throw new IOException("Self-play failed", failures.get(0));
+            }
+            report(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Plays games on this thread until there are none left, writing them out
+     * a chunk at a time.
+     *
+     * @throws IOException If the games cannot be written.
+     * @throws ConnectFourException If a strategy makes an illegal move.
+     */
+    private void play() throws IOException, ConnectFourException {
+        Strategy first = Strategy.parse(one);
+        Strategy second = Strategy.parse(two);
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        byte[] columns = new byte[ConnectFour.ROWS * ConnectFour.COLS];
+        for (long game = next.getAndIncrement(); game < games;
+             game = next.getAndIncrement()) {
+            SplittableRandom random = new SplittableRandom(seed + game);
+            first.newGame(random.nextLong());
+            second.newGame(random.nextLong());
+            ConnectFour board = new ConnectFour();
+            int length = 0;
+            int winner = 0;
+            while (!board.hasTiedGame()) {
+                int column;
+                if (length < opening) {
+                    do {
+                        column = random.nextInt(ConnectFour.COLS);
+                    } while (!board.isValidMove(column));
+                } else {
+                    column = (length & 1) == 0 ?
+                            first.chooseMove() : second.chooseMove();
+                }
+                board.makeMove(column);
+                first.moveMade(column);
+                second.moveMade(column);
+                columns[length++] = (byte) column;
+                if (board.hasWonGame()) {
+                    winner = (length & 1) == 1 ? 1 : 2;
+                    break;
+                }
+            }
+            results[winner].increment();
+            moves.add(length);
+
+            if (chunk.remaining() < MAX_RECORD) {
+                chunk.flip();
+                write(chunk);
+                chunk.clear();
+            }
+            encode(chunk, game, winner, columns, length);
+        }
+        chunk.flip();
+        write(chunk);
+    }
+
+    /**
+     * Adds one game to a buffer.
+     *
+     * @param buffer where to add it
+     * @param game the game's number
+     * @param winner 1 or 2, or 0 for a tie
+     * @param columns the columns played
+     * @param length the number of moves
+     */
+    private static void encode(ByteBuffer buffer, long game, int winner,
+                               byte[] columns, int length) {
+        while ((game & ~0x7FL) != 0) {
+            buffer.put((byte) (game & 0x7F | 0x80));
+            game >>>= 7;
+        }
+        buffer.put((byte) game);
+        buffer.put((byte) (winner << 6 | length));
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            bits |= columns[i] << count;
+            count += 3;
+            if (count >= 8) {
+                buffer.put((byte) bits);
+                bits >>>= 8;
+                count -= 8;
+            }
+        }
+        if (count > 0) {
+            buffer.put((byte) bits);
+        }
+    }
+
+    /**
+     * Writes bytes to the output file. Threads take turns, so that each
+     * chunk lands in one piece.
+     *
+     * @param buffer the bytes
+     * @throws IOException If they cannot be written.
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        synchronized (out) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Prints the results and how fast they came.
+     *
+     * @param nanos how long the games took
+     */
+    private void report(long nanos) {
+        double seconds = nanos / 1e9;
+        long played = results[0].sum() + results[1].sum() + results[2].sum();
+        int cores = Math.min(threads,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%s vs %s: %d games, %d won by the first, " +
+                        "%d by the second, %d tied, %.1f moves on average%n",
+                one, two, played, results[1].sum(), results[2].sum(),
+                results[0].sum(), (double) moves.sum() / played);
+        System.out.printf("%.1fs, %.0f games/s, %.0f games/s per core " +
+                        "(%d threads on %d cores)%n",
+                seconds, played / seconds, played / seconds / cores,
+                threads, cores);
+    }
+
+    /**
+     * Prints a self-play file as text, one game per line: its number, the
+     * winner (0 for a tie) and the columns played.
+     *
+     * @param file the file
+     * @throws IOException If the file cannot be read or is not a self-play
+     *                     file.
+     */
+    public static void print(Path file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException("Not a self-play file");
+        }
+        in.position(HEADER_SIZE);
+        StringBuilder line = new StringBuilder();
+        while (in.hasRemaining()) {
+            long game = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.get();
+                game |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int header = in.get() & 0xFF;
+            int length = header & 0x3F;
+            line.setLength(0);
+            line.append(game).append(' ').append(header >>> 6).append(' ');
+            int bits = 0;
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                if (count < 3) {
+                    bits |= (in.get() & 0xFF) << count;
+                    count += 8;
+                }
+                line.append(bits & 0x7);
+                bits >>>= 3;
+                count -= 3;
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Runs a self-play match, or prints the games of an earlier one.
+     *
+     * @param args the output file, followed by any of
+     *             {@code --games=N} (1000 by default), {@code --seed=N},
+     *             {@code --one=STRATEGY} and {@code --two=STRATEGY} (see
+     *             {@link Strategy#parse(String)}; {@code alphabeta:10} and
+     *             {@code greedy} by default), {@code --opening=N} random
+     *             first moves (2 by default) and {@code --threads=N} (one
+     *             per core by default); or {@code --print} and a file
+     * @throws IOException If the games cannot be written or read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java SelfPlay <output file> " +
+                    "[--games=N] [--seed=N] [--one=STRATEGY] " +
+                    "[--two=STRATEGY] [--opening=N] [--threads=N]");
+            System.out.println("       java SelfPlay --print <file>");
+            System.exit(1);
+        }
+        if (args[0].equals("--print") && args.length == 2) {
+            print(Paths.get(args[1]));
+            return;
+        }
+        ServerOptions options = new ServerOptions(
+                Arrays.asList(args).subList(1, args.length));
+        new SelfPlay(options.get("one", "alphabeta:10"),
+                options.get("two", "greedy"),
+                options.getLong("games", 1000),
+                options.getLong("seed", 0),
+                (int) options.getLong("opening", 2),
+                (int) options.getLong("threads",
+                        Runtime.getRuntime().availableProcessors()))
+                .run(Paths.get(args[0]));
+    }
+}
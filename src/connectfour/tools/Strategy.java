@@ -0,0 +1,57 @@
+package connectfour.tools;
+
+/**
+ * A way of choosing moves in a headless game, with no sockets or clocks
+ * involved. A strategy follows one game at a time through
+ * {@link #moveMade(int)}, and is used by one thread at a time.
+ */
+public interface Strategy {
+    /**
+     * Starts following a new game on the standard board.
+     *
+     * @param seed the seed for any randomness, so that a game can be
+     *             replayed
+     */
+    void newGame(long seed);
+
+    /**
+     * Picks a move for the player to move.
+     *
+     * @return the column to play
+     */
+    int chooseMove();
+
+    /**
+     * Follows a move made in the game, by either player.
+     *
+     * @param column the column moved in
+     */
+    void moveMade(int column);
+
+    /**
+     * Creates a strategy from its name.
+     *
+     * @param spec {@code random} for uniformly random moves, {@code greedy}
+     *             for moves that win at once or else avoid losing at once,
+     *             or {@code alphabeta:MS} for the {@link connectfour.ai.AlphaBeta}
+     *             engine thinking for that many milliseconds a move (10 if
+     *             left out)
+     * @return a new strategy
+     * @throws IllegalArgumentException If there is no such strategy.
+     */
+    static Strategy parse(String spec) {
+        String[] parts = spec.split(":", 2);
+        switch (parts[0]) {
+            case "random":
+                return new RandomStrategy();
+            case "greedy":
+                return new GreedyStrategy();
+            case "alphabeta":
+                return new SearchStrategy(
+                        parts.length > 1 ? Long.parseLong(parts[1]) : 10);
+            default:
+                throw new IllegalArgumentException("Unknown strategy: " +
+                        spec);
+        }
+    }
+}